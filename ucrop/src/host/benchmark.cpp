@@ -0,0 +1,561 @@
+//
+// Host benchmark and golden image checks of the native crop core.
+//
+// ucrop_benchmark golden [--update]
+//     Crops small synthetic images with a set of geometries and compares the results with golden PNGs.
+//     Golden PNGs are snapshots of this crop code (see --update), they catch changes of the output but
+//     can't prove it right; only the straight PNG copy is checked against pixels computed from the source.
+// ucrop_benchmark bench [--sizes 12,48,108] [--formats jpeg,png] [--iterations 5] [--threads N]
+//                       [--budget MB] [--work DIR]
+//     Crops synthetic JPEGs and PNGs of the given megapixels at several angles and resize scales.
+//     Each case runs in a child process, so its peak RSS is its own.
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <unistd.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <algorithm>
+#include <string>
+#include <vector>
+#include "crop.h"
+
+extern "C" {
+#include "jpeglib.h"
+}
+#include "png.h"
+
+using namespace cimg_library;
+
+#ifndef UCROP_GOLDEN_DIR
+#define UCROP_GOLDEN_DIR "golden"
+#endif
+
+// Per channel difference from a golden image that is still a match: JPEG decoders differ
+// in their IDCT and chroma upsampling by a level or two.
+#define GOLDEN_TOLERANCE 4
+// Share of pixels that may differ at all.
+#define GOLDEN_DIFFERENT_SHARE 0.05
+
+/**
+ * Synthetic test image: gradients, a fine grid and some noise, so that both smooth areas
+ * and sharp edges are resampled and JPEG compresses it about as well as a photo.
+ */
+static void patternRow(int y, int width, int height, int channels, unsigned char *row) {
+    for (int x = 0; x < width; ++x) {
+        unsigned int hash = (unsigned int) x * 73856093u ^ (unsigned int) y * 19349663u;
+        hash = (hash ^ (hash >> 13)) * 1274126177u;
+        const int noise = (int) (hash >> 28) - 8;
+        const bool grid = x % 64 < 2 || y % 64 < 2;
+        unsigned char *pixel = row + x * channels;
+        pixel[0] = (unsigned char) std::min(255, std::max(0, 255 * x / width + noise));
+        pixel[1] = (unsigned char) std::min(255, std::max(0, 255 * y / height + noise));
+        pixel[2] = (unsigned char) (grid ? 255 : (128 + 100 * sin(x * 0.013) * cos(y * 0.011)));
+        if (channels == 4) {
+            pixel[3] = (unsigned char) (64 + 191 * (x + y) / (width + height));
+        }
+    }
+}
+
+static bool writeJpeg(const char *path, int width, int height) {
+    FILE *file = fopen(path, "wb");
+    if (!file) {
+        return false;
+    }
+    struct jpeg_compress_struct cinfo;
+    struct jpeg_error_mgr jerr;
+    cinfo.err = jpeg_std_error(&jerr);
+    jpeg_create_compress(&cinfo);
+    jpeg_stdio_dest(&cinfo, file);
+    cinfo.image_width = (JDIMENSION) width;
+    cinfo.image_height = (JDIMENSION) height;
+    cinfo.input_components = 3;
+    cinfo.in_color_space = JCS_RGB;
+    jpeg_set_defaults(&cinfo);
+    jpeg_set_quality(&cinfo, 90, TRUE);
+    jpeg_start_compress(&cinfo, TRUE);
+    std::vector<unsigned char> row((size_t) width * 3);
+    for (int y = 0; y < height; ++y) {
+        patternRow(y, width, height, 3, &row[0]);
+        JSAMPROW scanline = &row[0];
+        jpeg_write_scanlines(&cinfo, &scanline, 1);
+    }
+    jpeg_finish_compress(&cinfo);
+    jpeg_destroy_compress(&cinfo);
+    return fclose(file) == 0;
+}
+
+static bool writePng(const char *path, int width, int height, int channels, const unsigned char *pixels) {
+    FILE *file = fopen(path, "wb");
+    if (!file) {
+        return false;
+    }
+    png_structp png = png_create_write_struct(PNG_LIBPNG_VER_STRING, 0, 0, 0);
+    png_infop info = png_create_info_struct(png);
+    if (setjmp(png_jmpbuf(png))) {
+        png_destroy_write_struct(&png, &info);
+        fclose(file);
+        return false;
+    }
+    png_init_io(png, file);
+    // Sources are large, compression speed matters more than their size
+    png_set_compression_level(png, pixels ? 6 : 1);
+    png_set_IHDR(png, info, (png_uint_32) width, (png_uint_32) height, 8,
+                 channels == 4 ? PNG_COLOR_TYPE_RGB_ALPHA : PNG_COLOR_TYPE_RGB,
+                 PNG_INTERLACE_NONE, PNG_COMPRESSION_TYPE_DEFAULT, PNG_FILTER_TYPE_DEFAULT);
+    png_write_info(png, info);
+    std::vector<unsigned char> row((size_t) width * channels);
+    for (int y = 0; y < height; ++y) {
+        if (pixels) {
+            png_write_row(png, (png_bytep) (pixels + (size_t) y * width * channels));
+        } else {
+            patternRow(y, width, height, channels, &row[0]);
+            png_write_row(png, &row[0]);
+        }
+    }
+    png_write_end(png, info);
+    png_destroy_write_struct(&png, &info);
+    return fclose(file) == 0;
+}
+
+/**
+ * Reads an 8-bit PNG as RGBA.
+ */
+static bool readPng(const char *path, int &width, int &height, std::vector<unsigned char> &pixels) {
+    FILE *file = fopen(path, "rb");
+    if (!file) {
+        return false;
+    }
+    png_structp png = png_create_read_struct(PNG_LIBPNG_VER_STRING, 0, 0, 0);
+    png_infop info = png_create_info_struct(png);
+    if (setjmp(png_jmpbuf(png))) {
+        png_destroy_read_struct(&png, &info, 0);
+        fclose(file);
+        return false;
+    }
+    png_init_io(png, file);
+    png_read_info(png, info);
+    width = (int) png_get_image_width(png, info);
+    height = (int) png_get_image_height(png, info);
+    png_set_expand(png);
+    png_set_strip_16(png);
+    png_set_gray_to_rgb(png);
+    png_set_filler(png, 0xFF, PNG_FILLER_AFTER);
+    png_read_update_info(png, info);
+    pixels.resize((size_t) width * height * 4);
+    for (int y = 0; y < height; ++y) {
+        png_read_row(png, &pixels[(size_t) y * width * 4], 0);
+    }
+    png_read_end(png, 0);
+    png_destroy_read_struct(&png, &info, 0);
+    fclose(file);
+    return true;
+}
+
+static bool exists(const std::string &path) {
+    struct stat info;
+    return stat(path.c_str(), &info) == 0;
+}
+
+static double now() {
+    struct timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return time.tv_sec + time.tv_nsec * 1e-9;
+}
+
+/**
+ * Crop rect of the given share of the source, centered in the bounding box of the source
+ * rotated by angle after resize, as CropImageView would give it.
+ */
+static CropGeometry centeredCrop(int width, int height, float angle, float resizeScale,
+                                 int exifDegrees, int exifTranslation, double share) {
+    const bool swapSides = exifDegrees == 90 || exifDegrees == 270;
+    const int
+    resizedWidth = std::max(1, (int) ((swapSides ? height : width) * resizeScale)),
+    resizedHeight = std::max(1, (int) ((swapSides ? width : height) * resizeScale));
+    const double
+    rad = angle * M_PI / 180,
+    boxWidth = fabs(resizedWidth * cos(rad)) + fabs(resizedHeight * sin(rad)),
+    boxHeight = fabs(resizedWidth * sin(rad)) + fabs(resizedHeight * cos(rad));
+    const int
+    cropWidth = std::max(1, (int) (boxWidth * share)),
+    cropHeight = std::max(1, (int) (boxHeight * share));
+    const CropGeometry geometry = {
+            (int) ((boxWidth - cropWidth) / 2), (int) ((boxHeight - cropHeight) / 2), cropWidth, cropHeight,
+            angle, resizeScale, exifDegrees, exifTranslation
+    };
+    return geometry;
+}
+
+// Golden checks
+
+struct GoldenCase {
+    const char *name;
+    bool pngSource;
+    float angle, resizeScale;
+    int exifDegrees, exifTranslation;
+    int decodeDownscale;
+};
+
+static const GoldenCase GOLDEN_CASES[] = {
+        {"jpeg_straight",         false, 0,   1,     0,   1, 0},
+        {"jpeg_rotate90",         false, 90,  1,     0,   1, 0},
+        {"jpeg_rotate13_half",    false, 13,  0.5f,  0,   1, 0},
+        {"jpeg_exif90_resize",    false, 0,   0.37f, 90,  1, 0},
+        {"jpeg_exif270_mirror",   false, -27, 1,     270, 2, 0},
+        {"jpeg_dct_downscale",    false, 0,   0.25f, 0,   1, 2},
+        {"png_straight",          true,  0,   1,     0,   1, 0},
+        {"png_rotate45_exif180",  true,  45,  0.5f,  180, 1, 0},
+};
+
+#define GOLDEN_SOURCE_WIDTH 640
+#define GOLDEN_SOURCE_HEIGHT 480
+
+/**
+ * Unpremultiplies result pixels in place, golden images hold straight alpha.
+ */
+static void unpremultiply(std::vector<unsigned char> &pixels) {
+    for (size_t i = 0; i < pixels.size(); i += 4) {
+        const unsigned int alpha = pixels[i + 3];
+        if (alpha && alpha != 255) {
+            for (int c = 0; c < 3; ++c) {
+                pixels[i + c] = (unsigned char) std::min(255u, (pixels[i + c] * 255u + alpha / 2) / alpha);
+            }
+        }
+    }
+}
+
+static bool matches(const char *what, const std::vector<unsigned char> &actual,
+                    const std::vector<unsigned char> &golden) {
+    if (actual.size() != golden.size()) {
+        printf("  %s: size differs from the golden image\n", what);
+        return false;
+    }
+    size_t different = 0;
+    int maxDifference = 0;
+    for (size_t i = 0; i < actual.size(); i += 4) {
+        int pixelDifference = 0;
+        for (int c = 0; c < 4; ++c) {
+            pixelDifference = std::max(pixelDifference, abs(actual[i + c] - golden[i + c]));
+        }
+        different += pixelDifference > 0;
+        maxDifference = std::max(maxDifference, pixelDifference);
+    }
+    const double share = (double) different / (actual.size() / 4);
+    const bool match = maxDifference <= GOLDEN_TOLERANCE && share <= GOLDEN_DIFFERENT_SHARE;
+    printf("  %s: max difference %d, %.2f%% pixels differ%s\n", what, maxDifference, share * 100,
+           match ? "" : " - MISMATCH");
+    return match;
+}
+
+/**
+ * Straight crop of the PNG source at full scale copies pixels as they are, so its result is
+ * computed here from the source pattern instead of being compared with a golden image made by the crop itself.
+ */
+static bool matchesSourceCopy(const std::string &pngPath) {
+    const InputSource input = {pngPath.c_str(), -1, 0, 0};
+    const CropGeometry geometry = centeredCrop(GOLDEN_SOURCE_WIDTH, GOLDEN_SOURCE_HEIGHT, 0, 1, 0, 1, 0.6);
+    const CropOptions options = {SAVE_FORMAT_PNG, 100, 16LL * geometry.width * 4, 0, 4, false, 0, 0};
+    CropControl control;
+
+    std::vector<unsigned char> pixels((size_t) geometry.width * geometry.height * 4);
+    const RgbaPixels result = {&pixels[0], geometry.width, geometry.height, (long) geometry.width * 4};
+    try {
+        cropImageToPixels(input, result, geometry, options, control);
+    } catch (const CImgException &e) {
+        printf("  crop failed: %s\n", e.what());
+        return false;
+    }
+
+    std::vector<unsigned char> row((size_t) GOLDEN_SOURCE_WIDTH * 4);
+    for (int y = 0; y < geometry.height; ++y) {
+        patternRow(geometry.top + y, GOLDEN_SOURCE_WIDTH, GOLDEN_SOURCE_HEIGHT, 4, &row[0]);
+        for (int x = 0; x < geometry.width; ++x) {
+            const unsigned char *expected = &row[(size_t) (geometry.left + x) * 4];
+            const unsigned char *actual = &pixels[((size_t) y * geometry.width + x) * 4];
+            for (int c = 0; c < 4; ++c) {
+                // Result is premultiplied the way Skia rounds it
+                const unsigned int product = expected[c] * (c < 3 ? expected[3] : 255u) + 128;
+                if (actual[c] != ((product + (product >> 8)) >> 8)) {
+                    printf("  pixel %d,%d differs from the source\n", x, y);
+                    return false;
+                }
+            }
+        }
+    }
+    printf("  pixels: exact copy of the source\n");
+    return true;
+}
+
+static int runGolden(const std::string &goldenDir, const std::string &workDir, bool update) {
+    const std::string jpegPath = workDir + "/golden_source.jpg", pngPath = workDir + "/golden_source.png";
+    if (!writeJpeg(jpegPath.c_str(), GOLDEN_SOURCE_WIDTH, GOLDEN_SOURCE_HEIGHT)
+        || !writePng(pngPath.c_str(), GOLDEN_SOURCE_WIDTH, GOLDEN_SOURCE_HEIGHT, 4, 0)) {
+        fprintf(stderr, "Failed to write golden sources to %s\n", workDir.c_str());
+        return 2;
+    }
+
+    int failures = 0;
+    const int count = (int) (sizeof(GOLDEN_CASES) / sizeof(GOLDEN_CASES[0]));
+    for (int i = 0; i < count; ++i) {
+        const GoldenCase &c = GOLDEN_CASES[i];
+        printf("%s\n", c.name);
+        const std::string source = c.pngSource ? pngPath : jpegPath;
+        const std::string golden = goldenDir + "/" + c.name + ".png";
+        const InputSource input = {source.c_str(), -1, 0, 0};
+        const CropGeometry geometry = centeredCrop(GOLDEN_SOURCE_WIDTH, GOLDEN_SOURCE_HEIGHT, c.angle, c.resizeScale,
+                                                   c.exifDegrees, c.exifTranslation, 0.6);
+        // Small bands and several threads, so band and slice boundaries are crossed
+        const CropOptions options = {SAVE_FORMAT_PNG, 100, 16LL * geometry.width * 4, c.decodeDownscale, 4, false, 0, 0};
+        CropControl control;
+
+        std::vector<unsigned char> pixels((size_t) geometry.width * geometry.height * 4);
+        const RgbaPixels result = {&pixels[0], geometry.width, geometry.height, (long) geometry.width * 4};
+        try {
+            cropImageToPixels(input, result, geometry, options, control);
+        } catch (const CImgException &e) {
+            printf("  crop failed: %s\n", e.what());
+            ++failures;
+            continue;
+        }
+        unpremultiply(pixels);
+
+        if (update) {
+            if (!writePng(golden.c_str(), geometry.width, geometry.height, 4, &pixels[0])) {
+                printf("  failed to write %s\n", golden.c_str());
+                ++failures;
+            } else {
+                printf("  updated %s\n", golden.c_str());
+            }
+            continue;
+        }
+
+        int goldenWidth, goldenHeight;
+        std::vector<unsigned char> expected;
+        if (!readPng(golden.c_str(), goldenWidth, goldenHeight, expected)) {
+            printf("  no golden image %s\n", golden.c_str());
+            ++failures;
+            continue;
+        }
+        bool match = matches("pixels", pixels, expected);
+
+        // Same rows go through the band encoder when saved to a file
+        if (!c.pngSource) {
+            const std::string encoded = workDir + "/golden_result.png";
+            const OutputTarget output = {encoded.c_str(), -1};
+            int shiftX, shiftY, width, height;
+            std::vector<unsigned char> decoded;
+            try {
+                cropImage(input, output, geometry, options, control, shiftX, shiftY);
+                match = readPng(encoded.c_str(), width, height, decoded) && matches("encoded", decoded, expected)
+                        && match;
+            } catch (const CImgException &e) {
+                printf("  encoded crop failed: %s\n", e.what());
+                match = false;
+            }
+        }
+        failures += !match;
+    }
+    printf("png_source_copy\n");
+    failures += !matchesSourceCopy(pngPath);
+    printf("%d of %d golden cases failed\n", failures, count + 1);
+    return failures ? 1 : 0;
+}
+
+// Benchmark
+
+struct BenchCase {
+    std::string source;
+    int megapixels, width, height;
+    bool png;
+    float angle, resizeScale;
+};
+
+struct BenchResult {
+    double p50, p90, p99, mean;
+    long long resultPixels;
+    bool lossless, failed;
+    char message[200];
+};
+
+static const float BENCH_ANGLES[] = {0, 90, 30};
+static const float BENCH_SCALES[] = {1, 0.5f};
+
+/**
+ * Nearest-rank percentile of sorted values.
+ */
+static double percentile(const std::vector<double> &sorted, double p) {
+    const size_t rank = (size_t) ceil(p * sorted.size());
+    return sorted[std::min(sorted.size(), std::max((size_t) 1, rank)) - 1];
+}
+
+/**
+ * Runs the case in this (child) process and writes the result to the pipe.
+ */
+static void runCase(const BenchCase &c, int iterations, int threads, long long budget,
+                    const std::string &workDir, int pipe) {
+    BenchResult result;
+    memset(&result, 0, sizeof(result));
+    const std::string outputPath = workDir + (c.png ? "/bench_result.png" : "/bench_result.jpg");
+    const InputSource input = {c.source.c_str(), -1, 0, 0};
+    const OutputTarget output = {outputPath.c_str(), -1};
+    const CropGeometry geometry = centeredCrop(c.width, c.height, c.angle, c.resizeScale, 0, 1, 0.8);
+    const CropOptions options = {c.png ? SAVE_FORMAT_PNG : SAVE_FORMAT_JPEG, 90, budget, 0, threads, false, 0, 0};
+    CropControl control;
+    result.resultPixels = (long long) geometry.width * geometry.height;
+
+    std::vector<double> latencies;
+    try {
+        for (int i = 0; i < iterations; ++i) {
+            int shiftX, shiftY;
+            const double start = now();
+            result.lossless = cropImage(input, output, geometry, options, control, shiftX, shiftY);
+            latencies.push_back(now() - start);
+        }
+        std::sort(latencies.begin(), latencies.end());
+        result.p50 = percentile(latencies, 0.5);
+        result.p90 = percentile(latencies, 0.9);
+        result.p99 = percentile(latencies, 0.99);
+        for (size_t i = 0; i < latencies.size(); ++i) {
+            result.mean += latencies[i] / latencies.size();
+        }
+    } catch (const CImgException &e) {
+        result.failed = true;
+        snprintf(result.message, sizeof(result.message), "%s", e.what());
+    }
+    remove(outputPath.c_str());
+    if (write(pipe, &result, sizeof(result)) != (ssize_t) sizeof(result)) {
+        _exit(2);
+    }
+}
+
+static std::vector<int> parseList(const char *value) {
+    std::vector<int> list;
+    for (const char *p = value; *p;) {
+        list.push_back(atoi(p));
+        p = strchr(p, ',');
+        if (!p) {
+            break;
+        }
+        ++p;
+    }
+    return list;
+}
+
+static int runBench(int argc, char **argv, const std::string &defaultWorkDir) {
+    std::vector<int> sizes;
+    sizes.push_back(12);
+    sizes.push_back(48);
+    sizes.push_back(108);
+    bool jpeg = true, png = true;
+    int iterations = 5, threads = (int) sysconf(_SC_NPROCESSORS_ONLN);
+    long long budget = 16LL << 20;
+    std::string workDir = defaultWorkDir;
+    for (int i = 0; i + 1 < argc; i += 2) {
+        if (!strcmp(argv[i], "--sizes")) {
+            sizes = parseList(argv[i + 1]);
+        } else if (!strcmp(argv[i], "--formats")) {
+            jpeg = strstr(argv[i + 1], "jpeg") != 0;
+            png = strstr(argv[i + 1], "png") != 0;
+        } else if (!strcmp(argv[i], "--iterations")) {
+            iterations = std::max(1, atoi(argv[i + 1]));
+        } else if (!strcmp(argv[i], "--threads")) {
+            threads = std::max(1, atoi(argv[i + 1]));
+        } else if (!strcmp(argv[i], "--budget")) {
+            budget = (long long) atoi(argv[i + 1]) << 20;
+        } else if (!strcmp(argv[i], "--work")) {
+            workDir = argv[i + 1];
+        } else {
+            fprintf(stderr, "Unknown option %s\n", argv[i]);
+            return 2;
+        }
+    }
+    mkdir(workDir.c_str(), 0755);
+
+    printf("%-6s %4s %6s %5s %9s %9s %9s %9s %9s %8s\n",
+           "format", "MP", "angle", "scale", "result MP", "p50 ms", "p90 ms", "p99 ms", "src MP/s", "RSS MB");
+    int failures = 0;
+    for (size_t s = 0; s < sizes.size(); ++s) {
+        // 4:3 sources, as cameras take them
+        const int megapixels = sizes[s];
+        const int width = (int) (sqrt(megapixels * 1e6 * 4 / 3) + 0.5);
+        const int height = (int) (width * 3 / 4);
+        for (int f = 0; f < 2; ++f) {
+            const bool isPng = f == 1;
+            if ((isPng && !png) || (!isPng && !jpeg)) {
+                continue;
+            }
+            char name[64];
+            snprintf(name, sizeof(name), "/bench_%dmp.%s", megapixels, isPng ? "png" : "jpg");
+            const std::string source = workDir + name;
+            if (!exists(source)) {
+                printf("Writing %s (%d x %d)\n", source.c_str(), width, height);
+                fflush(stdout);
+                if (!(isPng ? writePng(source.c_str(), width, height, 3, 0) : writeJpeg(source.c_str(), width, height))) {
+                    fprintf(stderr, "Failed to write %s\n", source.c_str());
+                    return 2;
+                }
+            }
+
+            for (size_t a = 0; a < sizeof(BENCH_ANGLES) / sizeof(BENCH_ANGLES[0]); ++a) {
+                for (size_t r = 0; r < sizeof(BENCH_SCALES) / sizeof(BENCH_SCALES[0]); ++r) {
+                    const BenchCase c = {source, megapixels, width, height, isPng, BENCH_ANGLES[a], BENCH_SCALES[r]};
+                    int fds[2];
+                    if (pipe(fds)) {
+                        return 2;
+                    }
+                    fflush(stdout);
+                    const pid_t child = fork();
+                    if (child == 0) {
+                        close(fds[0]);
+                        runCase(c, iterations, threads, budget, workDir, fds[1]);
+                        _exit(0);
+                    }
+                    close(fds[1]);
+                    BenchResult result;
+                    const bool received = child > 0 && read(fds[0], &result, sizeof(result)) == (ssize_t) sizeof(result);
+                    close(fds[0]);
+                    int status = 0;
+                    struct rusage usage;
+                    memset(&usage, 0, sizeof(usage));
+                    if (child > 0) {
+                        wait4(child, &status, 0, &usage);
+                    }
+                    if (!received || result.failed) {
+                        printf("%-6s %4d %6.1f %5.2f failed: %s\n", isPng ? "png" : "jpeg", megapixels,
+                               c.angle, c.resizeScale, received ? result.message : "child process died");
+                        ++failures;
+                        continue;
+                    }
+                    printf("%-6s %4d %6.1f %5.2f %9.1f %9.1f %9.1f %9.1f %9.1f %8.1f%s\n",
+                           isPng ? "png" : "jpeg", megapixels, c.angle, c.resizeScale, result.resultPixels / 1e6,
+                           result.p50 * 1e3, result.p90 * 1e3, result.p99 * 1e3,
+                           (double) width * height / 1e6 / result.mean, usage.ru_maxrss / 1024.0,
+                           result.lossless ? " lossless" : "");
+                }
+            }
+        }
+    }
+    return failures ? 1 : 0;
+}
+
+int main(int argc, char **argv) {
+    const char *tmp = getenv("TMPDIR");
+    const std::string workDir = tmp ? tmp : "/tmp";
+    if (argc >= 2 && !strcmp(argv[1], "golden")) {
+        const bool update = argc >= 3 && !strcmp(argv[2], "--update");
+        return runGolden(UCROP_GOLDEN_DIR, workDir, update);
+    }
+    if (argc >= 2 && !strcmp(argv[1], "bench")) {
+        return runBench(argc - 2, argv + 2, workDir);
+    }
+    fprintf(stderr, "Usage: %s golden [--update] | bench [--sizes 12,48,108] [--formats jpeg,png]"
+                    " [--iterations 5] [--threads N] [--budget MB] [--work DIR]\n", argv[0]);
+    return 2;
+}
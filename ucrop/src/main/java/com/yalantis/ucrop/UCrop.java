@@ -12,6 +12,7 @@ import android.os.Bundle;
 import android.os.Parcelable;
 
 import com.yalantis.ucrop.model.AspectRatio;
+import com.yalantis.ucrop.task.BitmapCropTask;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,6 +46,7 @@ public class UCrop {
     public static final String EXTRA_OUTPUT_IMAGE_HEIGHT = EXTRA_PREFIX + ".ImageHeight";
     public static final String EXTRA_OUTPUT_OFFSET_X = EXTRA_PREFIX + ".OffsetX";
     public static final String EXTRA_OUTPUT_OFFSET_Y = EXTRA_PREFIX + ".OffsetY";
+    public static final String EXTRA_OUTPUT_CROP_STRATEGY = EXTRA_PREFIX + ".CropStrategy";
     public static final String EXTRA_ERROR = EXTRA_PREFIX + ".Error";
 
     public static final String EXTRA_ASPECT_RATIO_X = EXTRA_PREFIX + ".AspectRatioX";
@@ -252,6 +254,18 @@ public class UCrop {
         return intent.getFloatExtra(EXTRA_OUTPUT_CROP_ASPECT_RATIO, 0f);
     }
 
+    /**
+     * Retrieve how the image was cropped: whole source decoded, its region only, result saved by bands,
+     * or source decoded at reduced scale or sampled by the platform to fit the memory limit
+     *
+     * @param intent crop result intent
+     * @return one of {@link BitmapCropTask} strategies
+     */
+    @BitmapCropTask.CropStrategy
+    public static int getOutputCropStrategy(@NonNull Intent intent) {
+        return intent.getIntExtra(EXTRA_OUTPUT_CROP_STRATEGY, BitmapCropTask.STRATEGY_NONE);
+    }
+
     /**
      * Method retrieves error from the result intent.
      *
@@ -278,6 +292,12 @@ public class UCrop {
         public static final String EXTRA_MAX_BITMAP_SIZE = EXTRA_PREFIX + ".MaxBitmapSize";
         public static final String EXTRA_MAX_SCALE_MULTIPLIER = EXTRA_PREFIX + ".MaxScaleMultiplier";
         public static final String EXTRA_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION = EXTRA_PREFIX + ".ImageToCropBoundsAnimDuration";
+        public static final String EXTRA_CROP_MEMORY_BUDGET = EXTRA_PREFIX + ".CropMemoryBudget";
+        public static final String EXTRA_CROP_MEMORY_LIMIT = EXTRA_PREFIX + ".CropMemoryLimit";
+        public static final String EXTRA_CROP_THREAD_COUNT = EXTRA_PREFIX + ".CropThreadCount";
+        public static final String EXTRA_SNAP_TO_JPEG_BLOCKS = EXTRA_PREFIX + ".SnapToJpegBlocks";
+        public static final String EXTRA_PROGRESSIVE_LOAD = EXTRA_PREFIX + ".ProgressiveLoad";
+        public static final String EXTRA_TILED_ZOOM = EXTRA_PREFIX + ".TiledZoom";
 
         public static final String EXTRA_DIMMED_LAYER_COLOR = EXTRA_PREFIX + ".DimmedLayerColor";
         public static final String EXTRA_CIRCLE_DIMMED_LAYER = EXTRA_PREFIX + ".CircleDimmedLayer";
@@ -374,6 +394,65 @@ public class UCrop {
             mOptionBundle.putInt(EXTRA_MAX_BITMAP_SIZE, maxBitmapSize);
         }
 
+        /**
+         * Setter for how much native memory the resulting image may take while it is being saved.
+         * Larger budget means fewer (larger) bands to encode.
+         *
+         * @param cropMemoryBudget - size in bytes, 0 - keep the whole result image in memory
+         */
+        public void setCropMemoryBudget(@IntRange(from = 0) long cropMemoryBudget) {
+            mOptionBundle.putLong(EXTRA_CROP_MEMORY_BUDGET, cropMemoryBudget);
+        }
+
+        /**
+         * Setter for how much native memory a crop may take at its peak. Crop is planned to fit it
+         * (smaller bands, JPEG decoded at reduced scale, source sampled by the platform decoders),
+         * strategy used is reported in the output intent.
+         *
+         * @param cropMemoryLimit - size in bytes, 0 - half of the memory the device has free
+         */
+        public void setCropMemoryLimit(@IntRange(from = 0) long cropMemoryLimit) {
+            mOptionBundle.putLong(EXTRA_CROP_MEMORY_LIMIT, cropMemoryLimit);
+        }
+
+        /**
+         * Setter for max number of threads that render the resulting image.
+         *
+         * @param cropThreadCount - number of threads, 0 - one per available core
+         */
+        public void setCropThreadCount(@IntRange(from = 0) int cropThreadCount) {
+            mOptionBundle.putInt(EXTRA_CROP_THREAD_COUNT, cropThreadCount);
+        }
+
+        /**
+         * Setter for moving the crop rect of a JPEG onto its DCT block grid (by less than 16 pixels),
+         * so a crop without resize or free rotation is saved losslessly.
+         *
+         * @param snapToJpegBlocks - true to allow the shift, result offset is reported in the output intent
+         */
+        public void setSnapToJpegBlocks(boolean snapToJpegBlocks) {
+            mOptionBundle.putBoolean(EXTRA_SNAP_TO_JPEG_BLOCKS, snapToJpegBlocks);
+        }
+
+        /**
+         * Setter for showing the Exif thumbnail or a coarse decode of the image while the full one is loaded.
+         *
+         * @param progressiveLoad - true to show the preview first (default), false to wait for the full image
+         */
+        public void setProgressiveLoad(boolean progressiveLoad) {
+            mOptionBundle.putBoolean(EXTRA_PROGRESSIVE_LOAD, progressiveLoad);
+        }
+
+        /**
+         * Setter for drawing full resolution tiles of the source when the image is zoomed in beyond
+         * the resolution of the preview Bitmap, see {@link #setMaxBitmapSize(int)}.
+         *
+         * @param tiledZoom - true to decode sharp tiles of the visible part in background
+         */
+        public void setTiledZoom(boolean tiledZoom) {
+            mOptionBundle.putBoolean(EXTRA_TILED_ZOOM, tiledZoom);
+        }
+
         /**
          * @param color - desired color of dimmed area around the crop bounds
          */
@@ -187,6 +187,10 @@ public class UCropActivity extends AppCompatActivity {
         super.onStop();
         if (mGestureCropImageView != null) {
             mGestureCropImageView.cancelAllAnimations();
+            // User has left, no one waits for the result
+            if (isFinishing()) {
+                mGestureCropImageView.cancelCrop();
+            }
         }
     }
 
@@ -237,6 +241,12 @@ public class UCropActivity extends AppCompatActivity {
         mGestureCropImageView.setMaxBitmapSize(intent.getIntExtra(UCrop.Options.EXTRA_MAX_BITMAP_SIZE, CropImageView.DEFAULT_MAX_BITMAP_SIZE));
         mGestureCropImageView.setMaxScaleMultiplier(intent.getFloatExtra(UCrop.Options.EXTRA_MAX_SCALE_MULTIPLIER, CropImageView.DEFAULT_MAX_SCALE_MULTIPLIER));
         mGestureCropImageView.setImageToWrapCropBoundsAnimDuration(intent.getIntExtra(UCrop.Options.EXTRA_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION, CropImageView.DEFAULT_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION));
+        mGestureCropImageView.setCropMemoryBudget(intent.getLongExtra(UCrop.Options.EXTRA_CROP_MEMORY_BUDGET, CropImageView.DEFAULT_CROP_MEMORY_BUDGET));
+        mGestureCropImageView.setCropMemoryLimit(intent.getLongExtra(UCrop.Options.EXTRA_CROP_MEMORY_LIMIT, CropImageView.DEFAULT_CROP_MEMORY_LIMIT));
+        mGestureCropImageView.setCropThreadCount(intent.getIntExtra(UCrop.Options.EXTRA_CROP_THREAD_COUNT, CropImageView.DEFAULT_CROP_THREAD_COUNT));
+        mGestureCropImageView.setSnapToJpegBlocks(intent.getBooleanExtra(UCrop.Options.EXTRA_SNAP_TO_JPEG_BLOCKS, CropImageView.DEFAULT_SNAP_TO_JPEG_BLOCKS));
+        mGestureCropImageView.setProgressiveLoad(intent.getBooleanExtra(UCrop.Options.EXTRA_PROGRESSIVE_LOAD, CropImageView.DEFAULT_PROGRESSIVE_LOAD));
+        mGestureCropImageView.setTiledZoom(intent.getBooleanExtra(UCrop.Options.EXTRA_TILED_ZOOM, CropImageView.DEFAULT_TILED_ZOOM));
 
         // Overlay view options
         mOverlayView.setFreestyleCropEnabled(intent.getBooleanExtra(UCrop.Options.EXTRA_FREE_STYLE_CROP, OverlayView.DEFAULT_FREESTYLE_CROP_MODE != OverlayView.FREESTYLE_CROP_MODE_DISABLE));
@@ -690,6 +700,7 @@ public class UCropActivity extends AppCompatActivity {
                 .putExtra(UCrop.EXTRA_OUTPUT_IMAGE_HEIGHT, imageHeight)
                 .putExtra(UCrop.EXTRA_OUTPUT_OFFSET_X, offsetX)
                 .putExtra(UCrop.EXTRA_OUTPUT_OFFSET_Y, offsetY)
+                .putExtra(UCrop.EXTRA_OUTPUT_CROP_STRATEGY, mGestureCropImageView.getCropStrategy())
         );
     }
 
@@ -136,6 +136,15 @@ public class UCropFragment extends Fragment {
         return rootView;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // Fragment is gone for good, its crop result would not be delivered anywhere
+        if (isRemoving() && mGestureCropImageView != null) {
+            mGestureCropImageView.cancelCrop();
+        }
+    }
+
 
     public void setupViews(View view, Bundle args) {
         mActiveControlsWidgetColor = args.getInt(UCrop.Options.EXTRA_UCROP_COLOR_CONTROLS_WIDGET_ACTIVE, ContextCompat.getColor(getContext(), R.color.ucrop_color_widget_active));
@@ -219,6 +228,12 @@ public class UCropFragment extends Fragment {
         mGestureCropImageView.setMaxBitmapSize(bundle.getInt(UCrop.Options.EXTRA_MAX_BITMAP_SIZE, CropImageView.DEFAULT_MAX_BITMAP_SIZE));
         mGestureCropImageView.setMaxScaleMultiplier(bundle.getFloat(UCrop.Options.EXTRA_MAX_SCALE_MULTIPLIER, CropImageView.DEFAULT_MAX_SCALE_MULTIPLIER));
         mGestureCropImageView.setImageToWrapCropBoundsAnimDuration(bundle.getInt(UCrop.Options.EXTRA_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION, CropImageView.DEFAULT_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION));
+        mGestureCropImageView.setCropMemoryBudget(bundle.getLong(UCrop.Options.EXTRA_CROP_MEMORY_BUDGET, CropImageView.DEFAULT_CROP_MEMORY_BUDGET));
+        mGestureCropImageView.setCropMemoryLimit(bundle.getLong(UCrop.Options.EXTRA_CROP_MEMORY_LIMIT, CropImageView.DEFAULT_CROP_MEMORY_LIMIT));
+        mGestureCropImageView.setCropThreadCount(bundle.getInt(UCrop.Options.EXTRA_CROP_THREAD_COUNT, CropImageView.DEFAULT_CROP_THREAD_COUNT));
+        mGestureCropImageView.setSnapToJpegBlocks(bundle.getBoolean(UCrop.Options.EXTRA_SNAP_TO_JPEG_BLOCKS, CropImageView.DEFAULT_SNAP_TO_JPEG_BLOCKS));
+        mGestureCropImageView.setProgressiveLoad(bundle.getBoolean(UCrop.Options.EXTRA_PROGRESSIVE_LOAD, CropImageView.DEFAULT_PROGRESSIVE_LOAD));
+        mGestureCropImageView.setTiledZoom(bundle.getBoolean(UCrop.Options.EXTRA_TILED_ZOOM, CropImageView.DEFAULT_TILED_ZOOM));
 
         // Overlay view options
         mOverlayView.setFreestyleCropEnabled(bundle.getBoolean(UCrop.Options.EXTRA_FREE_STYLE_CROP, OverlayView.DEFAULT_FREESTYLE_CROP_MODE != OverlayView.FREESTYLE_CROP_MODE_DISABLE));
@@ -570,6 +585,7 @@ public class UCropFragment extends Fragment {
                 .putExtra(UCrop.EXTRA_OUTPUT_IMAGE_HEIGHT, imageHeight)
                 .putExtra(UCrop.EXTRA_OUTPUT_OFFSET_X, offsetX)
                 .putExtra(UCrop.EXTRA_OUTPUT_OFFSET_Y, offsetY)
+                .putExtra(UCrop.EXTRA_OUTPUT_CROP_STRATEGY, mGestureCropImageView.getCropStrategy())
         );
     }
 
@@ -1,6 +1,7 @@
 package com.yalantis.ucrop.callback;
 
 import android.graphics.Bitmap;
+import android.net.Uri;
 
 import com.yalantis.ucrop.model.ExifInfo;
 
@@ -9,7 +10,7 @@ import androidx.annotation.Nullable;
 
 public interface BitmapLoadCallback {
 
-    void onBitmapLoaded(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo, @NonNull String imageInputPath, @Nullable String imageOutputPath);
+    void onBitmapLoaded(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo, @NonNull Uri imageInputUri, @Nullable Uri imageOutputUri);
 
     void onFailure(@NonNull Exception bitmapWorkerException);
 
@@ -0,0 +1,22 @@
+package com.yalantis.ucrop.callback;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link BitmapLoadCallback} that is also given a low resolution version of the image
+ * before the full one is decoded.
+ */
+public interface BitmapPreviewCallback extends BitmapLoadCallback {
+
+    /**
+     * Called on the main thread before {@link #onBitmapLoaded}, not called if there is no fast way to get a preview.
+     *
+     * @param preview - small Bitmap of the whole image, Exif orientation is already applied
+     * @param width   - expected width of the Bitmap that is loaded next
+     * @param height  - expected height of the Bitmap that is loaded next
+     */
+    void onPreviewLoaded(@NonNull Bitmap preview, int width, int height);
+
+}
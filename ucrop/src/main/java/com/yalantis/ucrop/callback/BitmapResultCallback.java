@@ -0,0 +1,13 @@
+package com.yalantis.ucrop.callback;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+public interface BitmapResultCallback {
+
+    void onBitmapCropped(@NonNull Bitmap result, int offsetX, int offsetY);
+
+    void onCropFailure(@NonNull Throwable t);
+
+}
\ No newline at end of file
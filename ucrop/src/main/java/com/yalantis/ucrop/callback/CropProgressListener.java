@@ -0,0 +1,12 @@
+package com.yalantis.ucrop.callback;
+
+import androidx.annotation.FloatRange;
+
+/**
+ * Interface for crop progress notifying, called on the main thread.
+ */
+public interface CropProgressListener {
+
+    void onCropProgress(@FloatRange(from = 0, to = 1) float progress);
+
+}
\ No newline at end of file
@@ -1,6 +1,11 @@
 package com.yalantis.ucrop.model;
 
 import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.yalantis.ucrop.util.FileUtils;
+
+import java.io.File;
 
 /**
  * Created by Oleksii Shliama [https://github.com/shliama] on 6/21/16.
@@ -11,20 +16,40 @@ public class CropParameters {
 
     private Bitmap.CompressFormat mCompressFormat;
     private int mCompressQuality;
-    private String mImageInputPath, mImageOutputPath;
+    private Uri mImageInputUri, mImageOutputUri;
     private ExifInfo mExifInfo;
-
+    private long mMemoryBudget, mMemoryLimit;
+    private int mThreadCount;
+    private boolean mSnapToJpegBlocks;
 
     public CropParameters(int maxResultImageSizeX, int maxResultImageSizeY,
                           Bitmap.CompressFormat compressFormat, int compressQuality,
-                          String imageInputPath, String imageOutputPath, ExifInfo exifInfo) {
+                          Uri imageInputUri, Uri imageOutputUri, ExifInfo exifInfo,
+                          long memoryBudget, long memoryLimit, int threadCount, boolean snapToJpegBlocks) {
         mMaxResultImageSizeX = maxResultImageSizeX;
         mMaxResultImageSizeY = maxResultImageSizeY;
         mCompressFormat = compressFormat;
         mCompressQuality = compressQuality;
-        mImageInputPath = imageInputPath;
-        mImageOutputPath = imageOutputPath;
+        mImageInputUri = imageInputUri;
+        mImageOutputUri = imageOutputUri;
         mExifInfo = exifInfo;
+        mMemoryBudget = memoryBudget;
+        mMemoryLimit = memoryLimit;
+        mThreadCount = threadCount;
+        mSnapToJpegBlocks = snapToJpegBlocks;
+    }
+
+    /**
+     * @deprecated use the constructor that takes {@link Uri}s, this one reads and writes files only and keeps
+     * the whole result image in memory, default memory limit and thread count.
+     */
+    @Deprecated
+    public CropParameters(int maxResultImageSizeX, int maxResultImageSizeY,
+                          Bitmap.CompressFormat compressFormat, int compressQuality,
+                          String imageInputPath, String imageOutputPath, ExifInfo exifInfo) {
+        this(maxResultImageSizeX, maxResultImageSizeY, compressFormat, compressQuality,
+                Uri.fromFile(new File(imageInputPath)), Uri.fromFile(new File(imageOutputPath)), exifInfo,
+                0, 0, 0, false);
     }
 
     public int getMaxResultImageSizeX() {
@@ -43,16 +68,70 @@ public class CropParameters {
         return mCompressQuality;
     }
 
+    /**
+     * @return - file or content Uri of the source image
+     */
+    public Uri getImageInputUri() {
+        return mImageInputUri;
+    }
+
+    /**
+     * @return - file or content Uri the cropped image is written to
+     */
+    public Uri getImageOutputUri() {
+        return mImageOutputUri;
+    }
+
+    /**
+     * @return - path of the source image, null if it isn't a file
+     * @deprecated use {@link #getImageInputUri()}, the source may be a content Uri
+     */
+    @Deprecated
     public String getImageInputPath() {
-        return mImageInputPath;
+        return FileUtils.getFileUriPath(mImageInputUri);
     }
 
+    /**
+     * @return - path the cropped image is written to, null if it isn't a file
+     * @deprecated use {@link #getImageOutputUri()}, the output may be a content Uri
+     */
+    @Deprecated
     public String getImageOutputPath() {
-        return mImageOutputPath;
+        return FileUtils.getFileUriPath(mImageOutputUri);
     }
 
     public ExifInfo getExifInfo() {
         return mExifInfo;
     }
 
+    /**
+     * @return - bytes of native memory the result image may take while it is being encoded,
+     * 0 - whole result image is kept in memory.
+     */
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * @return - bytes of native memory the whole crop may take at its peak, 0 - derived from free device memory.
+     */
+    public long getMemoryLimit() {
+        return mMemoryLimit;
+    }
+
+    /**
+     * @return - max number of threads the native crop may use, 0 - one per available core.
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * @return - true if a JPEG crop rect may be shifted by a few pixels onto the DCT block grid
+     * of the source, so the image is cut without re-encoding.
+     */
+    public boolean isSnapToJpegBlocks() {
+        return mSnapToJpegBlocks;
+    }
+
 }
@@ -1,5 +1,7 @@
 package com.yalantis.ucrop.model;
 
+import androidx.annotation.Nullable;
+
 /**
  * Created by Oleksii Shliama [https://github.com/shliama] on 6/21/16.
  */
@@ -8,6 +10,7 @@ public class ExifInfo {
     private int mExifOrientation;
     private int mExifDegrees;
     private int mExifTranslation;
+    private ImageInfo mImageInfo;
 
     public ExifInfo(int exifOrientation, int exifDegrees, int exifTranslation) {
         mExifOrientation = exifOrientation;
@@ -15,6 +18,11 @@ public class ExifInfo {
         mExifTranslation = exifTranslation;
     }
 
+    public ExifInfo(int exifOrientation, int exifDegrees, int exifTranslation, @Nullable ImageInfo imageInfo) {
+        this(exifOrientation, exifDegrees, exifTranslation);
+        mImageInfo = imageInfo;
+    }
+
     public int getExifOrientation() {
         return mExifOrientation;
     }
@@ -27,6 +35,14 @@ public class ExifInfo {
         return mExifTranslation;
     }
 
+    /**
+     * @return - header info of the image read when it was loaded, null if it wasn't read
+     */
+    @Nullable
+    public ImageInfo getImageInfo() {
+        return mImageInfo;
+    }
+
     public void setExifOrientation(int exifOrientation) {
         mExifOrientation = exifOrientation;
     }
@@ -0,0 +1,99 @@
+package com.yalantis.ucrop.model;
+
+import androidx.annotation.Nullable;
+
+/**
+ * What the header of an image tells about it, read once when the image is loaded
+ * (see {@link com.yalantis.ucrop.util.ImageHeaderParser#getImageInfo()}) and reused by the crop.
+ * Sizes are of the image as it is stored, before Exif orientation. Offsets are in bytes from the start
+ * of the file, -1 when there is no such part.
+ */
+public class ImageInfo {
+
+    private final String mMimeType;
+    private final int mWidth, mHeight;
+    private final int mChannels;
+    private final int mExifOrientation;
+    private final byte[] mExifSegment;
+    private final long mExifOffset;
+    private final long mThumbnailOffset;
+    private final int mThumbnailLength;
+
+    public ImageInfo(@Nullable String mimeType, int width, int height, int channels,
+                     int exifOrientation, @Nullable byte[] exifSegment, long exifOffset,
+                     long thumbnailOffset, int thumbnailLength) {
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mChannels = channels;
+        mExifOrientation = exifOrientation;
+        mExifSegment = exifSegment;
+        mExifOffset = exifOffset;
+        mThumbnailOffset = thumbnailOffset;
+        mThumbnailLength = thumbnailLength;
+    }
+
+    /**
+     * @return - MIME type as BitmapFactory reports it, null if the format wasn't recognized
+     */
+    @Nullable
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return - color channels including alpha (1 - gray, 3 - color, 4 - color with alpha), 0 if unknown
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @return - Exif orientation tag, {@link com.yalantis.ucrop.util.ImageHeaderParser#UNKNOWN_ORIENTATION} if none
+     */
+    public int getExifOrientation() {
+        return mExifOrientation;
+    }
+
+    /**
+     * @return - raw Exif segment, "Exif\0\0" followed by the TIFF structure, null if there is none
+     */
+    @Nullable
+    public byte[] getExifSegment() {
+        return mExifSegment;
+    }
+
+    /**
+     * @return - offset of the Exif segment (after the APP1 marker and length)
+     */
+    public long getExifOffset() {
+        return mExifOffset;
+    }
+
+    /**
+     * @return - offset of the JPEG thumbnail embedded in Exif
+     */
+    public long getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    public int getThumbnailLength() {
+        return mThumbnailLength;
+    }
+
+    /**
+     * @return - true if the header was parsed far enough to tell the size of the image
+     */
+    public boolean hasSize() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+}
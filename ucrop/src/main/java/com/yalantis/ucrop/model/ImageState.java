@@ -12,11 +12,19 @@ public class ImageState {
 
     private float mCurrentScale, mCurrentAngle;
 
+    private boolean mViewBitmapOriented;
+
     public ImageState(RectF cropRect, RectF currentImageRect, float currentScale, float currentAngle) {
+        this(cropRect, currentImageRect, currentScale, currentAngle, true);
+    }
+
+    public ImageState(RectF cropRect, RectF currentImageRect, float currentScale, float currentAngle,
+                      boolean viewBitmapOriented) {
         mCropRect = cropRect;
         mCurrentImageRect = currentImageRect;
         mCurrentScale = currentScale;
         mCurrentAngle = currentAngle;
+        mViewBitmapOriented = viewBitmapOriented;
     }
 
     public RectF getCropRect() {
@@ -34,4 +42,11 @@ public class ImageState {
     public float getCurrentAngle() {
         return mCurrentAngle;
     }
+
+    /**
+     * @return - false if the Bitmap shown in the view is stored without Exif orientation applied
+     */
+    public boolean isViewBitmapOriented() {
+        return mViewBitmapOriented;
+    }
 }
@@ -1,22 +1,36 @@
 package com.yalantis.ucrop.task;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 
 import com.yalantis.ucrop.callback.BitmapCropCallback;
+import com.yalantis.ucrop.callback.BitmapResultCallback;
+import com.yalantis.ucrop.callback.CropProgressListener;
 import com.yalantis.ucrop.model.CropParameters;
 import com.yalantis.ucrop.model.ExifInfo;
+import com.yalantis.ucrop.model.ImageInfo;
 import com.yalantis.ucrop.model.ImageState;
+import com.yalantis.ucrop.util.BitmapLoadUtils;
 import com.yalantis.ucrop.util.FileUtils;
 import com.yalantis.ucrop.util.ImageHeaderParser;
 
-import java.io.File;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
@@ -27,15 +41,56 @@ import androidx.exifinterface.media.ExifInterface;
  * First image is downscaled if max size was set and if resulting image is larger that max size.
  * Then image is rotated accordingly.
  * Finally new Bitmap object is created and saved to file.
+ * <p/>
+ * Crop itself is done by the first {@link CropEngine} that can handle the formats of the source and the output.
+ * Engines poll {@link #isCancelled()}: a cancelled task stops within a few rows of the result,
+ * removes the partially written output and calls no callback. Progress is reported by rows rendered.
  */
-public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
+public class BitmapCropTask extends AsyncTask<Void, Float, Throwable> {
 
     private static final String TAG = "BitmapCropTask";
 
-    static {
-        System.loadLibrary("ucrop");
+    @IntDef({STRATEGY_NONE, STRATEGY_FULL, STRATEGY_REGION, STRATEGY_BANDED, STRATEGY_DOWNSCALED, STRATEGY_SAMPLED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface CropStrategy {
     }
 
+    /**
+     * Nothing was cropped (yet), the source is copied as is when it already fits the crop.
+     */
+    public static final int STRATEGY_NONE = -1;
+    /**
+     * Whole source image is decoded, its format has no region decoder.
+     */
+    public static final int STRATEGY_FULL = 0;
+    /**
+     * Only the source region under the crop rect is decoded, the result is rendered at once.
+     */
+    public static final int STRATEGY_REGION = 1;
+    /**
+     * Source region is decoded, the result is rendered and encoded by bands that fit the memory limit.
+     */
+    public static final int STRATEGY_BANDED = 2;
+    /**
+     * Source region is decoded reduced by the JPEG decoder to fit the memory limit, the result loses some detail.
+     */
+    public static final int STRATEGY_DOWNSCALED = 3;
+    /**
+     * Native decoding doesn't fit the memory limit in any way, the source is decoded by the platform
+     * with a sample size that fits, the result loses detail.
+     */
+    public static final int STRATEGY_SAMPLED = 4;
+
+    // Limit used when free device memory can't be queried, or when there is less of it.
+    private static final long MIN_MEMORY_LIMIT = 32 * 1024 * 1024;
+    // Fewest rows per band a crop is planned with, smaller bands cost more in encoder hand-overs than they save.
+    private static final int MIN_BAND_ROWS = 16;
+    // DCT coefficients read by lossless JPEG crop: 2 bytes per sample, 3 components at full resolution at worst.
+    private static final int LOSSLESS_BYTES_PER_PIXEL = 6;
+    private static final int MAX_DCT_DOWNSCALE = 8;
+    private static final int MAX_SAMPLE_SIZE = 64;
+
+    private final Context mContext;
     private Bitmap mViewBitmap;
 
     private final RectF mCropRect;
@@ -46,33 +101,124 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
 
     private final Bitmap.CompressFormat mCompressFormat;
     private final int mCompressQuality;
-    private final String mImageInputPath, mImageOutputPath;
+    private final Uri mImageInputUri, mImageOutputUri;
     private final ExifInfo mExifInfo;
+    private ImageInfo mImageInfo;
+    private final long mMemoryBudget, mMemoryLimit;
+    private final int mThreadCount;
+    private final boolean mSnapToJpegBlocks;
     private final BitmapCropCallback mCropCallback;
 
+    private final boolean mCropToBitmap;
+    private final Bitmap mReuseBitmap;
+    private final BitmapResultCallback mResultCallback;
+    private Bitmap mResultBitmap;
+    private boolean mViewBitmapFullResolution;
+    private final boolean mViewBitmapOriented;
+
+    private int mSourceWidth, mSourceHeight;
+    private String mSourceMimeType;
+    private int mCropStrategy = STRATEGY_NONE;
+    private int mDecodeDownscale;
+    private boolean mPlatformDecode;
+    private long mBandBudget;
+
+    private List<CropEngine> mCropEngines = Arrays.asList(
+            new NativeCropEngine(), new HybridCropEngine(), new PlatformCropEngine());
+    private CropProgressListener mProgressListener;
+    private int mProgressPercent = -1;
+
     private int mCroppedImageWidth, mCroppedImageHeight;
     private int cropOffsetX, cropOffsetY;
 
+    public BitmapCropTask(@NonNull Context context, @Nullable Bitmap viewBitmap, @NonNull ImageState imageState,
+                          @NonNull CropParameters cropParameters, @Nullable BitmapCropCallback cropCallback) {
+        this(context, viewBitmap, imageState, cropParameters, cropCallback, false, null, null);
+    }
+
+    /**
+     * @deprecated use {@link #BitmapCropTask(Context, Bitmap, ImageState, CropParameters, BitmapCropCallback)},
+     * the image Uris are opened with a Context. This one falls back to the application of the current process,
+     * the task fails with {@link IllegalStateException} if there is none.
+     */
+    @Deprecated
     public BitmapCropTask(@Nullable Bitmap viewBitmap, @NonNull ImageState imageState, @NonNull CropParameters cropParameters,
                           @Nullable BitmapCropCallback cropCallback) {
+        this(null, viewBitmap, imageState, cropParameters, cropCallback, false, null, null);
+    }
 
+    /**
+     * Creates a task that crops the image into a Bitmap instead of a file,
+     * output Uri and compress parameters are not used then.
+     *
+     * @param reuseBitmap - mutable ARGB_8888 Bitmap to draw the result into if it can hold it
+     *                    (exactly the crop size, or large enough allocation on API 19+),
+     *                    otherwise a new Bitmap is created. It must not be drawn while the task runs.
+     *                    Its pixels are overwritten even if the crop fails, its size is restored then.
+     */
+    public BitmapCropTask(@NonNull Context context, @Nullable Bitmap viewBitmap, @NonNull ImageState imageState,
+                          @NonNull CropParameters cropParameters,
+                          @Nullable Bitmap reuseBitmap, @Nullable BitmapResultCallback resultCallback) {
+        this(context, viewBitmap, imageState, cropParameters, null, true, reuseBitmap, resultCallback);
+    }
+
+    private BitmapCropTask(@Nullable Context context, @Nullable Bitmap viewBitmap, @NonNull ImageState imageState,
+                           @NonNull CropParameters cropParameters, @Nullable BitmapCropCallback cropCallback,
+                           boolean cropToBitmap, @Nullable Bitmap reuseBitmap, @Nullable BitmapResultCallback resultCallback) {
+
+        mContext = context != null ? context.getApplicationContext() : currentApplication();
         mViewBitmap = viewBitmap;
         mCropRect = imageState.getCropRect();
         mCurrentImageRect = imageState.getCurrentImageRect();
 
         mCurrentScale = imageState.getCurrentScale();
         mCurrentAngle = imageState.getCurrentAngle();
+        mViewBitmapOriented = imageState.isViewBitmapOriented();
         mMaxResultImageSizeX = cropParameters.getMaxResultImageSizeX();
         mMaxResultImageSizeY = cropParameters.getMaxResultImageSizeY();
 
         mCompressFormat = cropParameters.getCompressFormat();
         mCompressQuality = cropParameters.getCompressQuality();
 
-        mImageInputPath = cropParameters.getImageInputPath();
-        mImageOutputPath = cropParameters.getImageOutputPath();
+        mImageInputUri = cropParameters.getImageInputUri();
+        mImageOutputUri = cropParameters.getImageOutputUri();
         mExifInfo = cropParameters.getExifInfo();
+        mMemoryBudget = cropParameters.getMemoryBudget();
+        mMemoryLimit = cropParameters.getMemoryLimit() > 0
+                ? cropParameters.getMemoryLimit() : defaultMemoryLimit(mContext);
+        mThreadCount = cropParameters.getThreadCount() > 0
+                ? cropParameters.getThreadCount() : Runtime.getRuntime().availableProcessors();
+        mSnapToJpegBlocks = cropParameters.isSnapToJpegBlocks();
 
         mCropCallback = cropCallback;
+
+        mCropToBitmap = cropToBitmap;
+        mReuseBitmap = reuseBitmap;
+        mResultCallback = resultCallback;
+    }
+
+    /**
+     * Engines the crop is tried with, in order. By default the native engine, then the hybrid one
+     * for sources native code doesn't read, then the platform one for formats native code doesn't write.
+     * Must be set before the task is executed.
+     */
+    public void setCropEngines(@NonNull List<CropEngine> cropEngines) {
+        mCropEngines = cropEngines;
+    }
+
+    /**
+     * Must be set before the task is executed.
+     */
+    public void setProgressListener(@Nullable CropProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * @return - how the image was cropped, valid once the task is finished
+     */
+    @CropStrategy
+    public int getCropStrategy() {
+        return mCropStrategy;
     }
 
     @Override
@@ -84,12 +230,17 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
             return new NullPointerException("ViewBitmap is recycled");
         } else if (mCurrentImageRect.isEmpty()) {
             return new NullPointerException("CurrentImageRect is empty");
+        } else if (mContext == null) {
+            return new IllegalStateException("No Context to open the image with");
         }
 
-        float resizeScale = resize();
-
         try {
-            crop(resizeScale);
+            float resizeScale = resize();
+            if (mCropToBitmap) {
+                cropToBitmap(resizeScale);
+            } else {
+                crop(resizeScale);
+            }
             mViewBitmap = null;
         } catch (Throwable throwable) {
             return throwable;
@@ -98,14 +249,27 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
         return null;
     }
 
-    private float resize() {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(mImageInputPath, options);
+    private float resize() throws IOException {
+        // Header was read when the image was loaded, it is only read again if the caller didn't keep it
+        mImageInfo = mExifInfo.getImageInfo();
+        if (mImageInfo == null || !mImageInfo.hasSize()) {
+            mImageInfo = BitmapLoadUtils.readImageInfo(mContext, mImageInputUri);
+        }
+        mSourceWidth = mImageInfo.getWidth();
+        mSourceHeight = mImageInfo.getHeight();
+        mSourceMimeType = mImageInfo.getMimeType();
 
         boolean swapSides = mExifInfo.getExifDegrees() == 90 || mExifInfo.getExifDegrees() == 270;
-        float scaleX = (swapSides ? options.outHeight : options.outWidth) / (float) mViewBitmap.getWidth();
-        float scaleY = (swapSides ? options.outWidth : options.outHeight) / (float) mViewBitmap.getHeight();
+        // View may draw the Bitmap as it is stored and apply Exif orientation on the fly, crop math is oriented
+        boolean swapViewSides = swapSides && !mViewBitmapOriented;
+        int viewWidth = swapViewSides ? mViewBitmap.getHeight() : mViewBitmap.getWidth();
+        int viewHeight = swapViewSides ? mViewBitmap.getWidth() : mViewBitmap.getHeight();
+        float scaleX = (swapSides ? mSourceHeight : mSourceWidth) / (float) viewWidth;
+        float scaleY = (swapSides ? mSourceWidth : mSourceHeight) / (float) viewHeight;
+
+        // Images smaller than max bitmap size are shown without downsampling
+        mViewBitmapFullResolution = (swapSides ? mSourceHeight : mSourceWidth) == viewWidth
+                && (swapSides ? mSourceWidth : mSourceHeight) == viewHeight;
 
         float resizeScale = Math.min(scaleX, scaleY);
 
@@ -129,29 +293,340 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
     }
 
     private boolean crop(float resizeScale) throws IOException {
-        ExifInterface originalExif = new ExifInterface(mImageInputPath);
+        calculateCropRect();
+
+        boolean shouldCrop = shouldCrop(mCroppedImageWidth, mCroppedImageHeight);
+        Log.i(TAG, "Should crop: " + shouldCrop);
 
+        if (shouldCrop) {
+            boolean fromPreview = canCropFromPreview(resizeScale);
+            preflight(resizeScale, fromPreview);
+            CropRequest request = createRequest(resizeScale, fromPreview, null);
+            cropWithEngines(request);
+            // Lossless JPEG crop may have moved the rect onto the block grid
+            cropOffsetX = request.getLeft();
+            cropOffsetY = request.getTop();
+            copyExifFromSource();
+            return true;
+        } else {
+            FileUtils.copyFile(mContext, mImageInputUri, mImageOutputUri);
+            return false;
+        }
+    }
+
+    /**
+     * Estimates peak native memory of the crop from sizes of the source and of the crop, and picks
+     * the cheapest strategy that fits into the memory limit: the configured bands first, then smaller
+     * bands, then a JPEG source decoded at reduced scale. Estimates follow the native allocations:
+     * decoded source pixels, two bands of result rows (one rendered while the other one is encoded),
+     * the whole result for formats that CImg saves and DCT coefficients of the whole image for lossless crops.
+     * When nothing fits, the source is left to the platform decoders with a sample size (see {@link #STRATEGY_SAMPLED}).
+     */
+    private void preflight(float resizeScale, boolean fromPreview) {
+        boolean jpegSource = "image/jpeg".equals(mSourceMimeType);
+        // Other formats that BitmapRegionDecoder reads are decoded by region in the hybrid engine
+        boolean sourceRegionDecoded = jpegSource || "image/png".equals(mSourceMimeType)
+                || "image/webp".equals(mSourceMimeType) || "image/heif".equals(mSourceMimeType);
+        boolean regionDecoded = fromPreview || sourceRegionDecoded;
+        boolean banded = mCropToBitmap || Bitmap.CompressFormat.JPEG.equals(mCompressFormat)
+                || Bitmap.CompressFormat.PNG.equals(mCompressFormat);
+        // Preview is sampled as RGB, PNG may have alpha
+        int channels = fromPreview || jpegSource ? 3 : 4;
+        long minBandBudget = 2L * MIN_BAND_ROWS * mCroppedImageWidth * channels;
+        long losslessBytes = !fromPreview && jpegSource && !mCropToBitmap
+                && Bitmap.CompressFormat.JPEG.equals(mCompressFormat) && resizeScale == 1 && mCurrentAngle % 90 == 0
+                ? (long) mSourceWidth * mSourceHeight * LOSSLESS_BYTES_PER_PIXEL : 0;
+
+        // Decoder reduces the source on its own down to the result resolution
+        int factor = 1;
+        while (jpegSource && factor < MAX_DCT_DOWNSCALE && factor * 2 <= 1 / resizeScale + 0.01f) {
+            factor *= 2;
+        }
+        long sourceBytes = fromPreview ? 0 : regionDecoded
+                ? regionBytes(resizeScale, factor, channels) : (long) mSourceWidth * mSourceHeight * 4;
+
+        mDecodeDownscale = 0;
+        mPlatformDecode = false;
+        mBandBudget = mMemoryBudget;
+        long estimate = sourceBytes + resultBytes(banded, mMemoryBudget, channels);
+        if (!NativeCropEngine.isLibraryLoaded() || !banded) {
+            // Only the platform engine can crop (native engines write JPEG and PNG only), it holds the whole result Bitmap
+            estimate = planSampled(resizeScale, sourceRegionDecoded, false, 1);
+        } else if (estimate <= mMemoryLimit) {
+            if (losslessBytes > mMemoryLimit) {
+                mDecodeDownscale = 1;
+            }
+            mCropStrategy = !regionDecoded ? STRATEGY_FULL
+                    : banded && bandRows(mMemoryBudget, channels) < mCroppedImageHeight ? STRATEGY_BANDED : STRATEGY_REGION;
+        } else {
+            // Lossless crop needs at least as much memory as the whole image decoded
+            mDecodeDownscale = losslessBytes > 0 ? 1 : 0;
+            estimate = sourceBytes + minBandBudget;
+            if (banded && estimate <= mMemoryLimit) {
+                mBandBudget = mMemoryLimit - sourceBytes;
+                mCropStrategy = regionDecoded ? STRATEGY_BANDED : STRATEGY_FULL;
+            } else {
+                // JPEG decoder reduces the source in the DCT domain, native code keeps warping it
+                boolean dctDownscaled = banded && jpegSource && !fromPreview;
+                while (dctDownscaled && estimate > mMemoryLimit && factor < MAX_DCT_DOWNSCALE) {
+                    factor *= 2;
+                    sourceBytes = regionBytes(resizeScale, factor, channels);
+                    estimate = sourceBytes + minBandBudget;
+                }
+                if (dctDownscaled && estimate <= mMemoryLimit) {
+                    mDecodeDownscale = factor;
+                    mBandBudget = mMemoryLimit - sourceBytes;
+                    mCropStrategy = STRATEGY_DOWNSCALED;
+                } else {
+                    estimate = planSampled(resizeScale, sourceRegionDecoded, banded, factor * 2);
+                }
+            }
+        }
+        Log.i(TAG, "Crop strategy: " + mCropStrategy + ", estimated " + estimate + " of " + mMemoryLimit + " bytes");
+    }
+
+    /**
+     * Platform decodes the source as ARGB_8888 with a power of two sample size, starting from the given one
+     * and raised until the decoded source and the result fit the limit. If even the largest sample size
+     * doesn't fit, the crop is still tried with it.
+     *
+     * @param banded - false if the whole result is held in memory (by the platform engine or for formats CImg saves)
+     * @return - estimated peak memory
+     */
+    private long planSampled(float resizeScale, boolean regionDecoded, boolean banded, int factor) {
+        long resultBytes = banded ? 2L * MIN_BAND_ROWS * mCroppedImageWidth * 4
+                : (long) mCroppedImageWidth * mCroppedImageHeight * 4;
+        long sourceBytes = sampledBytes(resizeScale, regionDecoded, factor);
+        long estimate = sourceBytes + resultBytes;
+        while (estimate > mMemoryLimit && factor < MAX_SAMPLE_SIZE) {
+            factor *= 2;
+            sourceBytes = sampledBytes(resizeScale, regionDecoded, factor);
+            estimate = sourceBytes + resultBytes;
+        }
+        if (estimate > mMemoryLimit) {
+            Log.w(TAG, String.format(Locale.US, "planSampled: crop needs %d MB of native memory, limit is %d MB",
+                    estimate >> 20, mMemoryLimit >> 20));
+        }
+        mDecodeDownscale = factor;
+        mPlatformDecode = true;
+        mBandBudget = banded ? Math.max(resultBytes, mMemoryLimit - sourceBytes) : mMemoryBudget;
+        mCropStrategy = factor > 1 ? STRATEGY_SAMPLED : regionDecoded ? STRATEGY_REGION : STRATEGY_FULL;
+        return estimate;
+    }
+
+    private long sampledBytes(float resizeScale, boolean regionDecoded, int factor) {
+        return regionDecoded ? regionBytes(resizeScale, factor, 4)
+                : (long) ((mSourceWidth + factor - 1) / factor) * ((mSourceHeight + factor - 1) / factor) * 4;
+    }
+
+    /**
+     * Bounding box of the rotated crop rect in the source (with neighbours for interpolation),
+     * decoded reduced by the given factor.
+     */
+    private long regionBytes(float resizeScale, int factor, int channels) {
+        double angle = Math.toRadians(mCurrentAngle);
+        double cos = Math.abs(Math.cos(angle)), sin = Math.abs(Math.sin(angle));
+        double width = (mCroppedImageWidth * cos + mCroppedImageHeight * sin) / resizeScale;
+        double height = (mCroppedImageWidth * sin + mCroppedImageHeight * cos) / resizeScale;
+        int longSide = Math.max(mSourceWidth, mSourceHeight);
+        long regionWidth = (long) Math.ceil(Math.min(width, longSide) / factor) + 2;
+        long regionHeight = (long) Math.ceil(Math.min(height, longSide) / factor) + 2;
+        return Math.min(regionWidth * regionHeight, (long) mSourceWidth * mSourceHeight) * channels;
+    }
+
+    /**
+     * Result rows per band, as native code splits the given budget.
+     */
+    private int bandRows(long bandBudget, int channels) {
+        if (bandBudget <= 0) {
+            return mCroppedImageHeight;
+        }
+        long rows = bandBudget / (2L * mCroppedImageWidth * channels);
+        return (int) Math.max(1, Math.min(mCroppedImageHeight, rows));
+    }
+
+    private long resultBytes(boolean banded, long bandBudget, int channels) {
+        long rowBytes = (long) mCroppedImageWidth * channels;
+        if (!banded) {
+            return rowBytes * mCroppedImageHeight;
+        }
+        int rows = bandRows(bandBudget, channels);
+        return rows < mCroppedImageHeight ? 2 * rows * rowBytes : rows * rowBytes;
+    }
+
+    /**
+     * Half of the memory that is free before the system starts killing background processes.
+     */
+    private static long defaultMemoryLimit(@Nullable Context context) {
+        ActivityManager activityManager = context != null
+                ? (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE) : null;
+        if (activityManager == null) {
+            return MIN_MEMORY_LIMIT;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return Math.max(MIN_MEMORY_LIMIT, (memoryInfo.availMem - memoryInfo.threshold) / 2);
+    }
+
+    /**
+     * Application of the current process for the deprecated constructor that doesn't take a Context.
+     */
+    @Nullable
+    private static Context currentApplication() {
+        try {
+            return (Context) Class.forName("android.app.ActivityThread")
+                    .getMethod("currentApplication").invoke(null);
+        } catch (Exception e) {
+            Log.w(TAG, "currentApplication: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void calculateCropRect() {
         cropOffsetX = Math.round((mCropRect.left - mCurrentImageRect.left) / mCurrentScale);
         cropOffsetY = Math.round((mCropRect.top - mCurrentImageRect.top) / mCurrentScale);
         mCroppedImageWidth = Math.round(mCropRect.width() / mCurrentScale);
         mCroppedImageHeight = Math.round(mCropRect.height() / mCurrentScale);
+    }
 
-        boolean shouldCrop = shouldCrop(mCroppedImageWidth, mCroppedImageHeight);
-        Log.i(TAG, "Should crop: " + shouldCrop);
+    /**
+     * Renders the crop straight into {@link #mResultBitmap}, nothing is encoded or written to a file.
+     */
+    private void cropToBitmap(float resizeScale) throws IOException {
+        calculateCropRect();
+        boolean fromPreview = canCropFromPreview(resizeScale);
+        preflight(resizeScale, fromPreview);
+        int reuseWidth = mReuseBitmap != null ? mReuseBitmap.getWidth() : 0;
+        int reuseHeight = mReuseBitmap != null ? mReuseBitmap.getHeight() : 0;
+        Bitmap result = obtainResultBitmap(mCroppedImageWidth, mCroppedImageHeight);
+        try {
+            cropWithEngines(createRequest(resizeScale, fromPreview, result));
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            if (result == mReuseBitmap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Caller gets its Bitmap back in the size it had, pixels are already overwritten
+                result.reconfigure(reuseWidth, reuseHeight, Bitmap.Config.ARGB_8888);
+            }
+            throw e;
+        }
+        mResultBitmap = result;
+    }
 
-        if (shouldCrop) {
-            boolean cropped = cropCImg(mImageInputPath, mImageOutputPath,
-                    cropOffsetX, cropOffsetY, mCroppedImageWidth, mCroppedImageHeight,
-                    mCurrentAngle, resizeScale, mCompressFormat.ordinal(), mCompressQuality,
-                    mExifInfo.getExifDegrees(), mExifInfo.getExifTranslation());
-            if (cropped && mCompressFormat.equals(Bitmap.CompressFormat.JPEG)) {
-                ImageHeaderParser.copyExif(originalExif, mCroppedImageWidth, mCroppedImageHeight, mImageOutputPath);
+    @NonNull
+    private CropRequest createRequest(float resizeScale, boolean fromPreview, @Nullable Bitmap resultBitmap) {
+        return new CropRequest(this, mImageInputUri, resultBitmap == null ? mImageOutputUri : null,
+                mSourceMimeType, mSourceWidth, mSourceHeight,
+                mExifInfo.getExifDegrees(), mExifInfo.getExifTranslation(),
+                fromPreview && !mPlatformDecode ? mViewBitmap : null, mViewBitmapOriented, resultBitmap,
+                cropOffsetX, cropOffsetY, mCroppedImageWidth, mCroppedImageHeight, mCurrentAngle, resizeScale,
+                resultBitmap == null ? mCompressFormat : null, mCompressQuality,
+                resultBitmap == null ? readExifSegment() : null,
+                mBandBudget, mDecodeDownscale, mPlatformDecode, mThreadCount, mSnapToJpegBlocks);
+    }
+
+    /**
+     * Crops with the first engine that can, when it fails the next one that can is tried.
+     * Cancellation is never retried.
+     */
+    private void cropWithEngines(@NonNull CropRequest request) throws IOException {
+        Throwable failure = null;
+        for (CropEngine engine : mCropEngines) {
+            if (!engine.canCrop(request)) {
+                continue;
+            }
+            try {
+                engine.crop(mContext, request);
+                return;
+            } catch (CancellationException e) {
+                throw e;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                Log.w(TAG, "cropWithEngines: " + engine.getClass().getSimpleName() + " failed", e);
+                failure = e;
             }
-            return cropped;
+        }
+        if (failure == null) {
+            throw new IOException("No crop engine can crop " + mSourceMimeType + " into " + mCompressFormat);
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
         } else {
-            FileUtils.copyFile(mImageInputPath, mImageOutputPath);
+            throw (OutOfMemoryError) failure;
+        }
+    }
+
+    @NonNull
+    private Bitmap obtainResultBitmap(int width, int height) {
+        Bitmap bitmap = mReuseBitmap;
+        if (bitmap != null && bitmap.isMutable() && !bitmap.isRecycled()
+                && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                if (bitmap.getAllocationByteCount() >= (long) width * height * 4) {
+                    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                    // Native code writes premultiplied pixels
+                    bitmap.setPremultiplied(true);
+                    return bitmap;
+                }
+            } else if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Preview Bitmap can be cropped instead of the source image when it holds all the pixels of it:
+     * it was loaded without downsampling and it is opaque, so its premultiplied pixels are the same as decoded ones.
+     * JPEG crops that may be done losslessly (no resize, rotation by multiple of 90 degrees) still go to the file.
+     */
+    private boolean canCropFromPreview(float resizeScale) {
+        if (!mViewBitmapFullResolution
+                || mViewBitmap.getConfig() != Bitmap.Config.ARGB_8888 || mViewBitmap.hasAlpha()) {
             return false;
         }
+        return mCropToBitmap || !Bitmap.CompressFormat.JPEG.equals(mCompressFormat)
+                || resizeScale != 1 || mCurrentAngle % 90 != 0;
+    }
+
+    /**
+     * Takes the Exif segment from the header of a JPEG source and patches it for the result,
+     * engines write it into a JPEG result while they encode it.
+     *
+     * @return - null if the result isn't a JPEG or the source has no Exif
+     */
+    @Nullable
+    private byte[] readExifSegment() {
+        if (!Bitmap.CompressFormat.JPEG.equals(mCompressFormat) || !"image/jpeg".equals(mSourceMimeType)) {
+            return null;
+        }
+        // Segment is patched in place, the header info may be reused by another crop
+        byte[] exifSegment = mImageInfo.getExifSegment();
+        return exifSegment != null
+                ? ImageHeaderParser.patchExifSegment(exifSegment.clone(), mCroppedImageWidth, mCroppedImageHeight)
+                : null;
+    }
+
+    /**
+     * Exif of sources other than JPEG isn't read from the header, so engines can't write it while they encode.
+     * Tags that {@link ImageHeaderParser#copyExif} knows are copied into a JPEG result file after the crop instead,
+     * a result written to a content Uri is left without them.
+     */
+    private void copyExifFromSource() {
+        String outputPath = FileUtils.getFileUriPath(mImageOutputUri);
+        if (!Bitmap.CompressFormat.JPEG.equals(mCompressFormat) || "image/jpeg".equals(mSourceMimeType)
+                || outputPath == null) {
+            return;
+        }
+        InputStream stream = null;
+        try {
+            stream = mContext.getContentResolver().openInputStream(mImageInputUri);
+            if (stream != null) {
+                ImageHeaderParser.copyExif(new ExifInterface(stream), mCroppedImageWidth, mCroppedImageHeight, outputPath);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "copyExifFromSource: " + e.getMessage());
+        } finally {
+            BitmapLoadUtils.close(stream);
+        }
     }
 
     /**
@@ -173,20 +648,36 @@ public class BitmapCropTask extends AsyncTask<Void, Void, Throwable> {
                 || mCurrentAngle != 0;
     }
 
-    @SuppressWarnings("JniMissingFunction")
-    native public static boolean
-    cropCImg(String inputPath, String outputPath,
-             int left, int top, int width, int height,
-             float angle, float resizeScale,
-             int format, int quality,
-             int exifDegrees, int exifTranslation) throws IOException, OutOfMemoryError;
+    /**
+     * Called by crop engines on the crop thread each time a few more rows of the result are done.
+     */
+    @Keep
+    void onCropProgress(int rowsDone, int rowsTotal) {
+        int percent = (int) (100L * rowsDone / rowsTotal);
+        if (mProgressListener != null && percent != mProgressPercent) {
+            mProgressPercent = percent;
+            publishProgress(rowsDone / (float) rowsTotal);
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Float... values) {
+        if (mProgressListener != null) {
+            mProgressListener.onCropProgress(values[0]);
+        }
+    }
 
     @Override
     protected void onPostExecute(@Nullable Throwable t) {
-        if (mCropCallback != null) {
+        if (mResultCallback != null) {
+            if (t == null) {
+                mResultCallback.onBitmapCropped(mResultBitmap, cropOffsetX, cropOffsetY);
+            } else {
+                mResultCallback.onCropFailure(t);
+            }
+        } else if (mCropCallback != null) {
             if (t == null) {
-                Uri uri = Uri.fromFile(new File(mImageOutputPath));
-                mCropCallback.onBitmapCropped(uri, cropOffsetX, cropOffsetY, mCroppedImageWidth, mCroppedImageHeight);
+                mCropCallback.onBitmapCropped(mImageOutputUri, cropOffsetX, cropOffsetY, mCroppedImageWidth, mCroppedImageHeight);
             } else {
                 mCropCallback.onCropFailure(t);
             }
@@ -1,11 +1,14 @@
 package com.yalantis.ucrop.task;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -13,7 +16,9 @@ import androidx.annotation.Nullable;
 
 import com.yalantis.ucrop.UCropHttpClientStore;
 import com.yalantis.ucrop.callback.BitmapLoadCallback;
+import com.yalantis.ucrop.callback.BitmapPreviewCallback;
 import com.yalantis.ucrop.model.ExifInfo;
+import com.yalantis.ucrop.model.ImageInfo;
 import com.yalantis.ucrop.util.BitmapLoadUtils;
 
 import java.io.File;
@@ -31,20 +36,30 @@ import okio.Sink;
 
 /**
  * Creates and returns a Bitmap for a given Uri(String url).
- * inSampleSize is calculated based on requiredWidth property. However can be adjusted if OOM occurs.
- * If any EXIF config is found - bitmap is transformed properly.
+ * Size of the Bitmap is planned before decoding, from the required size and the memory available,
+ * and the image is decoded once right at that size.
+ * If any EXIF config is found - bitmap is transformed properly, unless the caller applies it itself.
+ * If the callback is a {@link BitmapPreviewCallback} a small version of the image is published first.
  */
-public class BitmapLoadTask extends AsyncTask<Void, Void, BitmapLoadTask.BitmapWorkerResult> {
+public class BitmapLoadTask extends AsyncTask<Void, Bitmap, BitmapLoadTask.BitmapWorkerResult> {
 
     private static final String TAG = "BitmapWorkerTask";
 
-    private static final int MAX_BITMAP_SIZE = 100 * 1024 * 1024;   // 100 MB
+    // Smaller images decode about as fast as their previews would
+    private static final int PREVIEW_MIN_PIXELS = 2 * 1024 * 1024;
+    // Coarse preview is 1/8 of the full size, JPEG at 1/8 scale only needs DC coefficients, no inverse DCT is done
+    private static final int PREVIEW_SAMPLE_SIZE = 8;
+    // Exif thumbnails of images that aren't 4:3 are often letterboxed into 160x120
+    private static final float PREVIEW_ASPECT_TOLERANCE = 0.02f;
 
     private final Context mContext;
     private Uri mInputUri;
     private Uri mOutputUri;
     private final int mRequiredWidth;
     private final int mRequiredHeight;
+    private final boolean mApplyExifOrientation;
+    private int mPreviewWidth, mPreviewHeight;
+    private boolean mBitmapOriented;
 
     private final BitmapLoadCallback mBitmapLoadCallback;
 
@@ -69,11 +84,23 @@ public class BitmapLoadTask extends AsyncTask<Void, Void, BitmapLoadTask.BitmapW
                           @NonNull Uri inputUri, @Nullable Uri outputUri,
                           int requiredWidth, int requiredHeight,
                           BitmapLoadCallback loadCallback) {
+        this(context, inputUri, outputUri, requiredWidth, requiredHeight, true, loadCallback);
+    }
+
+    /**
+     * @param applyExifOrientation - false to return the Bitmap as the image is stored,
+     *                             the caller applies orientation from {@link ExifInfo} when it draws it
+     */
+    public BitmapLoadTask(@NonNull Context context,
+                          @NonNull Uri inputUri, @Nullable Uri outputUri,
+                          int requiredWidth, int requiredHeight, boolean applyExifOrientation,
+                          BitmapLoadCallback loadCallback) {
         mContext = context;
         mInputUri = inputUri;
         mOutputUri = outputUri;
         mRequiredWidth = requiredWidth;
         mRequiredHeight = requiredHeight;
+        mApplyExifOrientation = applyExifOrientation;
         mBitmapLoadCallback = loadCallback;
     }
 
@@ -90,62 +117,227 @@ public class BitmapLoadTask extends AsyncTask<Void, Void, BitmapLoadTask.BitmapW
             return new BitmapWorkerResult(e);
         }
 
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        options.inSampleSize = BitmapLoadUtils.calculateInSampleSize(options, mRequiredWidth, mRequiredHeight);
-        options.inJustDecodeBounds = false;
+        // Size, orientation and Exif come from a single read of the header, the crop reuses them
+        ImageInfo imageInfo;
+        try {
+            imageInfo = BitmapLoadUtils.readImageInfo(mContext, mInputUri);
+        } catch (IOException e) {
+            return new BitmapWorkerResult(new IllegalArgumentException("Bitmap could not be decoded from the Uri: [" + mInputUri + "]", e));
+        }
+        if (!imageInfo.hasSize()) {
+            return new BitmapWorkerResult(new IllegalArgumentException("Bounds for bitmap could not be retrieved from the Uri: [" + mInputUri + "]"));
+        }
+
+        float scale = BitmapLoadUtils.calculateDecodeScale(mContext,
+                imageInfo.getWidth(), imageInfo.getHeight(), mRequiredWidth, mRequiredHeight);
+        int targetWidth = Math.max(1, Math.round(imageInfo.getWidth() * scale));
+        int targetHeight = Math.max(1, Math.round(imageInfo.getHeight() * scale));
+
+        int exifOrientation = imageInfo.getExifOrientation();
+        int exifDegrees = BitmapLoadUtils.exifToDegrees(exifOrientation);
+        int exifTranslation = BitmapLoadUtils.exifToTranslation(exifOrientation);
+        boolean swapSides = exifDegrees == 90 || exifDegrees == 270;
+
+        Matrix matrix = new Matrix();
+        if (exifDegrees != 0) {
+            matrix.preRotate(exifDegrees);
+        }
+        if (exifTranslation != 1) {
+            matrix.postScale(exifTranslation, 1);
+        }
 
-        Bitmap decodeSampledBitmap = null;
+        if (mBitmapLoadCallback instanceof BitmapPreviewCallback) {
+            publishPreview(imageInfo, targetWidth, targetHeight, matrix, swapSides);
+        }
 
-        boolean decodeAttemptSuccess = false;
-        while (!decodeAttemptSuccess) {
+        Bitmap decodedBitmap;
+        try {
             try {
-                InputStream stream = mContext.getContentResolver().openInputStream(mInputUri);
-                try {
-                    decodeSampledBitmap = BitmapFactory.decodeStream(stream, null, options);
-                    if (options.outWidth == -1 || options.outHeight == -1) {
-                        return new BitmapWorkerResult(new IllegalArgumentException("Bounds for bitmap could not be retrieved from the Uri: [" + mInputUri + "]"));
-                    }
-                } finally {
-                    BitmapLoadUtils.close(stream);
-                }
-                if (checkSize(decodeSampledBitmap, options)) continue;
-                decodeAttemptSuccess = true;
+                decodedBitmap = decodeBitmap(imageInfo, targetWidth, targetHeight, swapSides);
             } catch (OutOfMemoryError error) {
-                Log.e(TAG, "doInBackground: BitmapFactory.decodeFileDescriptor: ", error);
-                options.inSampleSize *= 2;
-            } catch (IOException e) {
-                Log.e(TAG, "doInBackground: ImageDecoder.createSource: ", e);
-                return new BitmapWorkerResult(new IllegalArgumentException("Bitmap could not be decoded from the Uri: [" + mInputUri + "]", e));
+                // Memory was taken since it was measured, one more decode at half the size
+                Log.e(TAG, "doInBackground: decodeBitmap: ", error);
+                decodedBitmap = decodeBitmap(imageInfo, Math.max(1, targetWidth / 2), Math.max(1, targetHeight / 2), swapSides);
             }
+        } catch (OutOfMemoryError | IOException e) {
+            Log.e(TAG, "doInBackground: decodeBitmap: ", e);
+            return new BitmapWorkerResult(new IllegalArgumentException("Bitmap could not be decoded from the Uri: [" + mInputUri + "]", e));
         }
 
-        if (decodeSampledBitmap == null) {
+        if (decodedBitmap == null) {
             return new BitmapWorkerResult(new IllegalArgumentException("Bitmap could not be decoded from the Uri: [" + mInputUri + "]"));
         }
 
-        int exifOrientation = BitmapLoadUtils.getExifOrientation(mContext, mInputUri);
-        int exifDegrees = BitmapLoadUtils.exifToDegrees(exifOrientation);
-        int exifTranslation = BitmapLoadUtils.exifToTranslation(exifOrientation);
+        ExifInfo exifInfo = new ExifInfo(exifOrientation, exifDegrees, exifTranslation, imageInfo);
 
-        ExifInfo exifInfo = new ExifInfo(exifOrientation, exifDegrees, exifTranslation);
+        if (mApplyExifOrientation && !mBitmapOriented && !matrix.isIdentity()) {
+            return new BitmapWorkerResult(BitmapLoadUtils.transformBitmap(decodedBitmap, matrix), exifInfo);
+        }
 
-        Matrix matrix = new Matrix();
-        if (exifDegrees != 0) {
-            matrix.preRotate(exifDegrees);
+        return new BitmapWorkerResult(decodedBitmap, exifInfo);
+    }
+
+    /**
+     * Decodes the image at the given size, ImageDecoder is used where there is one.
+     *
+     * @param targetWidth  - width of the result, before Exif orientation
+     * @param targetHeight - height of the result, before Exif orientation
+     */
+    @Nullable
+    private Bitmap decodeBitmap(@NonNull ImageInfo imageInfo, int targetWidth, int targetHeight, boolean swapSides) throws IOException {
+        mBitmapOriented = false;
+        // ImageDecoder always orients, it isn't used for images that must stay as they are stored
+        boolean oriented = BitmapLoadUtils.exifToDegrees(imageInfo.getExifOrientation()) == 0
+                && BitmapLoadUtils.exifToTranslation(imageInfo.getExifOrientation()) == 1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && (mApplyExifOrientation || oriented)) {
+            Bitmap bitmap = decodeWithImageDecoder(targetWidth, targetHeight, swapSides);
+            if (bitmap != null) {
+                return bitmap;
+            }
         }
-        if (exifTranslation != 1) {
-            matrix.postScale(exifTranslation, 1);
+        return decodeWithBitmapFactory(imageInfo, targetWidth, targetHeight);
+    }
+
+    /**
+     * ImageDecoder samples and scales to the exact size in one pass and always applies Exif orientation itself,
+     * so its target size is of the oriented image.
+     *
+     * @return - decoded Bitmap, null if ImageDecoder can't read the image
+     */
+    @TargetApi(Build.VERSION_CODES.P)
+    @Nullable
+    private Bitmap decodeWithImageDecoder(final int targetWidth, final int targetHeight, final boolean swapSides) throws IOException {
+        Bitmap bitmap;
+        try {
+            bitmap = ImageDecoder.decodeBitmap(ImageDecoder.createSource(mContext.getContentResolver(), mInputUri),
+                    new ImageDecoder.OnHeaderDecodedListener() {
+                        @Override
+                        public void onHeaderDecoded(@NonNull ImageDecoder decoder, @NonNull ImageDecoder.ImageInfo info,
+                                                    @NonNull ImageDecoder.Source source) {
+                            // Crop reads pixels of the preview, hardware Bitmaps don't allow that
+                            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                            if (swapSides) {
+                                decoder.setTargetSize(targetHeight, targetWidth);
+                            } else {
+                                decoder.setTargetSize(targetWidth, targetHeight);
+                            }
+                        }
+                    });
+        } catch (ImageDecoder.DecodeException e) {
+            Log.w(TAG, "decodeWithImageDecoder: ", e);
+            return null;
         }
+        mBitmapOriented = true;
+        return bitmap;
+    }
+
+    /**
+     * BitmapFactory samples by the largest power of two that doesn't go below the target size,
+     * density scaling takes it the rest of the way while decoding. Before KitKat that scaling is done
+     * on a copy, so the image is sampled once more instead and comes out a bit smaller.
+     */
+    @Nullable
+    private Bitmap decodeWithBitmapFactory(@NonNull ImageInfo imageInfo, int targetWidth, int targetHeight) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (imageInfo.getWidth() / (options.inSampleSize * 2) >= targetWidth
+                && imageInfo.getHeight() / (options.inSampleSize * 2) >= targetHeight) {
+            options.inSampleSize *= 2;
+        }
+
+        int sampledWidth = imageInfo.getWidth() / options.inSampleSize;
+        if (sampledWidth > targetWidth) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                options.inScaled = true;
+                options.inDensity = sampledWidth;
+                options.inTargetDensity = targetWidth;
+            } else {
+                options.inSampleSize *= 2;
+            }
+        }
+
+        Bitmap bitmap;
+        InputStream stream = mContext.getContentResolver().openInputStream(mInputUri);
+        try {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            BitmapLoadUtils.close(stream);
+        }
+        if (bitmap != null) {
+            // Density was only borrowed for scaling
+            bitmap.setDensity(mContext.getResources().getDisplayMetrics().densityDpi);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Publishes a small version of the image to show while the full one is decoded: JPEG thumbnail
+     * that cameras put into Exif (already read with the header), or else a JPEG decode at 1/8 scale.
+     * Nothing is published if neither is there or the image is small enough to decode quickly.
+     */
+    private void publishPreview(@NonNull ImageInfo imageInfo, int width, int height, @NonNull Matrix matrix, boolean swapSides) {
+        if ((long) width * height < PREVIEW_MIN_PIXELS) {
+            return;
+        }
+
+        Bitmap preview = null;
+        try {
+            preview = decodeThumbnail(imageInfo, width, height);
+            if (preview == null && "image/jpeg".equals(imageInfo.getMimeType())) {
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = 1;
+                while (imageInfo.getWidth() / (options.inSampleSize * 2) >= width / PREVIEW_SAMPLE_SIZE) {
+                    options.inSampleSize *= 2;
+                }
+                InputStream stream = mContext.getContentResolver().openInputStream(mInputUri);
+                try {
+                    preview = BitmapFactory.decodeStream(stream, null, options);
+                } finally {
+                    BitmapLoadUtils.close(stream);
+                }
+            }
+        } catch (OutOfMemoryError | IOException e) {
+            Log.w(TAG, "publishPreview: ", e);
+        }
+        if (preview == null) {
+            return;
+        }
+
         if (!matrix.isIdentity()) {
-            return new BitmapWorkerResult(BitmapLoadUtils.transformBitmap(decodeSampledBitmap, matrix), exifInfo);
+            preview = BitmapLoadUtils.transformBitmap(preview, matrix);
+        }
+        mPreviewWidth = swapSides ? height : width;
+        mPreviewHeight = swapSides ? width : height;
+        publishProgress(preview);
+    }
+
+    /**
+     * @return - decoded Exif thumbnail if it shows the whole image with the same aspect ratio, null otherwise
+     */
+    @Nullable
+    private static Bitmap decodeThumbnail(@NonNull ImageInfo imageInfo, int width, int height) {
+        byte[] exifSegment = imageInfo.getExifSegment();
+        int length = imageInfo.getThumbnailLength();
+        long offset = imageInfo.getThumbnailOffset() - imageInfo.getExifOffset();
+        if (exifSegment == null || length <= 0 || offset < 0 || offset + length > exifSegment.length) {
+            return null;
         }
 
-        return new BitmapWorkerResult(decodeSampledBitmap, exifInfo);
+        Bitmap thumbnail = BitmapFactory.decodeByteArray(exifSegment, (int) offset, length);
+        if (thumbnail == null) {
+            return null;
+        }
+        float aspectRatio = (float) thumbnail.getWidth() / thumbnail.getHeight() * height / width;
+        if (thumbnail.getWidth() >= width || Math.abs(aspectRatio - 1) > PREVIEW_ASPECT_TOLERANCE) {
+            thumbnail.recycle();
+            return null;
+        }
+        return thumbnail;
     }
 
     private void processInputUri() throws NullPointerException, IOException {
         Log.d(TAG, "Uri scheme: " + mInputUri.getScheme());
+        // Content Uris are not copied, the image is cropped right from the file descriptor of the provider
         if (isDownloadUri(mInputUri)) {
             try {
                 downloadFile(mInputUri, mOutputUri);
@@ -153,56 +345,13 @@ public class BitmapLoadTask extends AsyncTask<Void, Void, BitmapLoadTask.BitmapW
                 Log.e(TAG, "Downloading failed", e);
                 throw e;
             }
-        } else if (isContentUri(mInputUri)) {
-            try {
-                copyFile(mInputUri, mOutputUri);
-            } catch (NullPointerException | IOException e) {
-                Log.e(TAG, "Copying failed", e);
-                throw e;
-            }
-        } else if (!isFileUri(mInputUri)) {
+        } else if (!isContentUri(mInputUri) && !isFileUri(mInputUri)) {
             String inputUriScheme = mInputUri.getScheme();
             Log.e(TAG, "Invalid Uri scheme " + inputUriScheme);
             throw new IllegalArgumentException("Invalid Uri scheme" + inputUriScheme);
         }
     }
 
-    private void copyFile(@NonNull Uri inputUri, @Nullable Uri outputUri) throws NullPointerException, IOException {
-        Log.d(TAG, "copyFile");
-
-        if (outputUri == null) {
-            throw new NullPointerException("Output Uri is null - cannot copy image");
-        }
-
-        InputStream inputStream = null;
-        OutputStream outputStream = null;
-        try {
-            inputStream = mContext.getContentResolver().openInputStream(inputUri);
-            if (inputStream == null) {
-                throw new NullPointerException("InputStream for given input Uri is null");
-            }
-
-            if (isContentUri(outputUri)) {
-                outputStream = mContext.getContentResolver().openOutputStream(outputUri);
-            } else {
-                outputStream = new FileOutputStream(new File(outputUri.getPath()));
-            }
-
-            byte buffer[] = new byte[1024];
-            int length;
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
-            }
-        } finally {
-            BitmapLoadUtils.close(outputStream);
-            BitmapLoadUtils.close(inputStream);
-
-            // swap uris, because input image was copied to the output destination
-            // (cropped image will override it later)
-            mInputUri = mOutputUri;
-        }
-    }
-
     private void downloadFile(@NonNull Uri inputUri, @Nullable Uri outputUri) throws NullPointerException, IOException {
         Log.d(TAG, "downloadFile");
 
@@ -250,24 +399,20 @@ public class BitmapLoadTask extends AsyncTask<Void, Void, BitmapLoadTask.BitmapW
         }
     }
 
+    @Override
+    protected void onProgressUpdate(Bitmap... previews) {
+        ((BitmapPreviewCallback) mBitmapLoadCallback).onPreviewLoaded(previews[0], mPreviewWidth, mPreviewHeight);
+    }
+
     @Override
     protected void onPostExecute(@NonNull BitmapWorkerResult result) {
         if (result.mBitmapWorkerException == null) {
-            mBitmapLoadCallback.onBitmapLoaded(result.mBitmapResult, result.mExifInfo, mInputUri.getPath(), (mOutputUri == null) ? null : mOutputUri.getPath());
+            mBitmapLoadCallback.onBitmapLoaded(result.mBitmapResult, result.mExifInfo, mInputUri, mOutputUri);
         } else {
             mBitmapLoadCallback.onFailure(result.mBitmapWorkerException);
         }
     }
 
-    private boolean checkSize(Bitmap bitmap, BitmapFactory.Options options) {
-        int bitmapSize = bitmap != null ? bitmap.getByteCount() : 0;
-        if (bitmapSize > MAX_BITMAP_SIZE) {
-            options.inSampleSize *= 2;
-            return true;
-        }
-        return false;
-    }
-
     private boolean isDownloadUri(Uri uri) {
         final String schema = uri.getScheme();
         return schema.equals("http") || schema.equals("https");
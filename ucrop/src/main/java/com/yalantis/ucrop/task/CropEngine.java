@@ -0,0 +1,31 @@
+package com.yalantis.ucrop.task;
+
+import android.content.Context;
+
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Crops the source image of a {@link CropRequest} into its output Uri or result Bitmap.
+ * <p/>
+ * {@link BitmapCropTask} tries its engines in order: the first one that can crop the request does it,
+ * if it fails the next one that can crop it is used.
+ */
+public interface CropEngine {
+
+    /**
+     * Called on the task thread, must not read the source.
+     *
+     * @return - true if the engine handles source and output formats of the request
+     */
+    boolean canCrop(@NonNull CropRequest request);
+
+    /**
+     * Crops on the task thread. Engine should check {@link CropRequest#isCancelled()} as it goes
+     * and throw {@link java.util.concurrent.CancellationException} then, and report its progress.
+     * Partially written output is overwritten by the next engine or left to the caller.
+     */
+    void crop(@NonNull Context context, @NonNull CropRequest request) throws IOException;
+
+}
@@ -0,0 +1,244 @@
+package com.yalantis.ucrop.task;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Everything a {@link CropEngine} needs to crop the image: the source, the crop rect in pixels
+ * of the result, and where the result goes. Crop rect is given in the bounding box of the source
+ * that is oriented by Exif, resized by resize scale and rotated by angle.
+ */
+public class CropRequest {
+
+    private final BitmapCropTask mTask;
+
+    private final Uri mInputUri, mOutputUri;
+    private final String mSourceMimeType;
+    private final int mSourceWidth, mSourceHeight;
+    private final int mExifDegrees, mExifTranslation;
+    private final Bitmap mPreviewBitmap, mResultBitmap;
+    private final boolean mPreviewOriented;
+
+    private int mLeft, mTop;
+    private final int mWidth, mHeight;
+    private final float mAngle, mResizeScale;
+
+    private final Bitmap.CompressFormat mCompressFormat;
+    private final int mCompressQuality;
+    private final byte[] mExifSegment;
+
+    private final long mMemoryBudget;
+    private final int mDecodeDownscale, mThreadCount;
+    private final boolean mPlatformDecode, mSnapToJpegBlocks;
+
+    CropRequest(@NonNull BitmapCropTask task,
+                @NonNull Uri inputUri, @Nullable Uri outputUri,
+                @Nullable String sourceMimeType, int sourceWidth, int sourceHeight,
+                int exifDegrees, int exifTranslation,
+                @Nullable Bitmap previewBitmap, boolean previewOriented, @Nullable Bitmap resultBitmap,
+                int left, int top, int width, int height, float angle, float resizeScale,
+                @Nullable Bitmap.CompressFormat compressFormat, int compressQuality, @Nullable byte[] exifSegment,
+                long memoryBudget, int decodeDownscale, boolean platformDecode, int threadCount,
+                boolean snapToJpegBlocks) {
+        mTask = task;
+        mInputUri = inputUri;
+        mOutputUri = outputUri;
+        mSourceMimeType = sourceMimeType;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mExifDegrees = exifDegrees;
+        mExifTranslation = exifTranslation;
+        mPreviewBitmap = previewBitmap;
+        mPreviewOriented = previewOriented;
+        mResultBitmap = resultBitmap;
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mAngle = angle;
+        mResizeScale = resizeScale;
+        mCompressFormat = compressFormat;
+        mCompressQuality = compressQuality;
+        mExifSegment = exifSegment;
+        mMemoryBudget = memoryBudget;
+        mDecodeDownscale = decodeDownscale;
+        mPlatformDecode = platformDecode;
+        mThreadCount = threadCount;
+        mSnapToJpegBlocks = snapToJpegBlocks;
+    }
+
+    @NonNull
+    BitmapCropTask getTask() {
+        return mTask;
+    }
+
+    /**
+     * @return - true if the crop was cancelled, engines should stop as soon as they can then
+     */
+    public boolean isCancelled() {
+        return mTask.isCancelled();
+    }
+
+    /**
+     * Reports rows of the result that are done so far.
+     */
+    public void reportProgress(int rowsDone, int rowsTotal) {
+        mTask.onCropProgress(rowsDone, rowsTotal);
+    }
+
+    /**
+     * @return - file or content Uri of the source image
+     */
+    @NonNull
+    public Uri getInputUri() {
+        return mInputUri;
+    }
+
+    /**
+     * @return - file or content Uri the result is written to, null if it goes to the result Bitmap
+     */
+    @Nullable
+    public Uri getOutputUri() {
+        return mOutputUri;
+    }
+
+    /**
+     * @return - MIME type of the source as BitmapFactory reports it, null if it couldn't be decoded
+     */
+    @Nullable
+    public String getSourceMimeType() {
+        return mSourceMimeType;
+    }
+
+    /**
+     * @return - width of the source as it is stored, before Exif rotation
+     */
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    /**
+     * @return - height of the source as it is stored, before Exif rotation
+     */
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    public int getExifDegrees() {
+        return mExifDegrees;
+    }
+
+    public int getExifTranslation() {
+        return mExifTranslation;
+    }
+
+    /**
+     * @return - opaque ARGB_8888 preview that holds all pixels of the source and may be cropped instead of it,
+     * null if it can't
+     */
+    @Nullable
+    public Bitmap getPreviewBitmap() {
+        return mPreviewBitmap;
+    }
+
+    /**
+     * @return - true if the preview is already oriented by Exif, otherwise it is stored as the source is
+     * and engines apply {@link #getExifDegrees()} and {@link #getExifTranslation()} to it
+     */
+    public boolean isPreviewOriented() {
+        return mPreviewOriented;
+    }
+
+    /**
+     * @return - ARGB_8888 Bitmap of the crop size the result is drawn into, null if it goes to the output Uri
+     */
+    @Nullable
+    public Bitmap getResultBitmap() {
+        return mResultBitmap;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    /**
+     * Moves the crop rect, when an engine had to (e.g. onto the DCT block grid of a JPEG).
+     */
+    public void setOffset(int left, int top) {
+        mLeft = left;
+        mTop = top;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public float getAngle() {
+        return mAngle;
+    }
+
+    public float getResizeScale() {
+        return mResizeScale;
+    }
+
+    @Nullable
+    public Bitmap.CompressFormat getCompressFormat() {
+        return mCompressFormat;
+    }
+
+    public int getCompressQuality() {
+        return mCompressQuality;
+    }
+
+    /**
+     * @return - Exif segment of the source already patched for the result (see
+     * {@link com.yalantis.ucrop.util.ImageHeaderParser#patchExifSegment}), that engines write right after
+     * SOI of a JPEG result, null if there is none
+     */
+    @Nullable
+    public byte[] getExifSegment() {
+        return mExifSegment;
+    }
+
+    /**
+     * @return - bytes the result may take while it is being rendered, 0 - no limit
+     */
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * @return - least factor the source should be reduced by while decoding, 0 - engine decides
+     */
+    public int getDecodeDownscale() {
+        return mDecodeDownscale;
+    }
+
+    /**
+     * @return - true if the source has to be decoded by the platform, sampled by {@link #getDecodeDownscale()}:
+     * native decoding wouldn't fit the memory limit
+     */
+    public boolean isPlatformDecode() {
+        return mPlatformDecode;
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    public boolean isSnapToJpegBlocks() {
+        return mSnapToJpegBlocks;
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.yalantis.ucrop.task;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.yalantis.ucrop.util.BitmapLoadUtils;
+import com.yalantis.ucrop.util.FileUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decodes the source with the platform, so it reads every format the device can decode (HEIF, WebP...),
+ * and warps and encodes it with the native library on all cores. Only the source region under the crop rect
+ * is decoded by BitmapRegionDecoder, reduced by a power of two when the result is much smaller.
+ * Formats without a region decoder are decoded whole. Writes JPEG and PNG.
+ * <p/>
+ * Decoded region is held in memory at once, bands only split the result.
+ */
+public class HybridCropEngine implements CropEngine {
+
+    private static final String TAG = "HybridCropEngine";
+
+    @Override
+    public boolean canCrop(@NonNull CropRequest request) {
+        return NativeCropEngine.isLibraryLoaded() && request.getSourceMimeType() != null
+                && (request.getResultBitmap() != null
+                || Bitmap.CompressFormat.JPEG.equals(request.getCompressFormat())
+                || Bitmap.CompressFormat.PNG.equals(request.getCompressFormat()));
+    }
+
+    @Override
+    public void crop(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = PlatformCropEngine.sampleSize(request);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Rect region = new Rect();
+        Bitmap pixels = decodeRegion(context, request, options, region);
+        if (request.isCancelled()) {
+            pixels.recycle();
+            throw new CancellationException();
+        }
+        Log.i(TAG, "crop: region " + region + " decoded as " + pixels.getWidth() + " x " + pixels.getHeight());
+
+        try {
+            warp(context, request, pixels, region);
+        } finally {
+            pixels.recycle();
+        }
+    }
+
+    /**
+     * Decodes source pixels under the crop rect (with neighbours the warp interpolates with) into the region,
+     * or the whole source when its format has no region decoder.
+     */
+    @NonNull
+    private Bitmap decodeRegion(@NonNull Context context, @NonNull CropRequest request,
+                                @NonNull BitmapFactory.Options options, @NonNull Rect region) throws IOException {
+        Matrix resultToSource = PlatformCropEngine.resultToSource(request);
+        RectF bounds = new RectF(0, 0, request.getWidth(), request.getHeight());
+        resultToSource.mapRect(bounds);
+        bounds.roundOut(region);
+        region.inset(-2 * options.inSampleSize, -2 * options.inSampleSize);
+        if (!region.intersect(0, 0, request.getSourceWidth(), request.getSourceHeight())) {
+            region.set(0, 0, request.getSourceWidth(), request.getSourceHeight());
+        }
+
+        ParcelFileDescriptor input = FileUtils.openFileDescriptor(context, request.getInputUri(), "r");
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(input.getFileDescriptor(), false);
+        } catch (IOException e) {
+            Log.i(TAG, "decodeRegion: no region decoder for " + request.getSourceMimeType());
+        } finally {
+            if (decoder == null) {
+                BitmapLoadUtils.close(input);
+            }
+        }
+
+        Bitmap pixels;
+        if (decoder != null) {
+            try {
+                pixels = decoder.decodeRegion(region, options);
+            } finally {
+                decoder.recycle();
+                BitmapLoadUtils.close(input);
+            }
+        } else {
+            region.set(0, 0, request.getSourceWidth(), request.getSourceHeight());
+            InputStream stream = context.getContentResolver().openInputStream(request.getInputUri());
+            if (stream == null) {
+                throw new FileNotFoundException("InputStream for given input Uri is null");
+            }
+            try {
+                pixels = BitmapFactory.decodeStream(stream, null, options);
+            } finally {
+                BitmapLoadUtils.close(stream);
+            }
+        }
+        if (pixels == null) {
+            throw new IOException("Failed to decode region " + region + " of " + request.getInputUri());
+        }
+        return pixels;
+    }
+
+    private void warp(@NonNull Context context, @NonNull CropRequest request,
+                      @NonNull Bitmap pixels, @NonNull Rect region) throws IOException {
+        Bitmap result = request.getResultBitmap();
+        Uri output = request.getOutputUri();
+        int format = result == null ? request.getCompressFormat().ordinal() : 0;
+        ParcelFileDescriptor descriptor = null;
+        try {
+            if (result == null && !FileUtils.isFileUri(output)) {
+                descriptor = FileUtils.openFileDescriptor(context, output, "rwt");
+            }
+            NativeCropEngine.cropCImgFromRegion(pixels, pixels.hasAlpha(),
+                    request.getSourceWidth(), request.getSourceHeight(),
+                    region.left, region.top, region.width(), region.height(),
+                    result == null && descriptor == null ? output.getPath() : null,
+                    descriptor != null ? descriptor.getFd() : -1, result,
+                    request.getLeft(), request.getTop(), request.getWidth(), request.getHeight(),
+                    request.getAngle(), request.getResizeScale(),
+                    request.getExifDegrees(), request.getExifTranslation(),
+                    format, request.getCompressQuality(), request.getExifSegment(),
+                    request.getMemoryBudget(), request.getThreadCount(), request.getTask());
+        } finally {
+            BitmapLoadUtils.close(descriptor);
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package com.yalantis.ucrop.task;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.yalantis.ucrop.util.BitmapLoadUtils;
+import com.yalantis.ucrop.util.FileUtils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Crops with the native library: only the source region under the crop rect is decoded, the result
+ * is rendered on all cores and encoded band by band, straight JPEG crops are cut losslessly.
+ * Reads JPEG, PNG and BMP, writes JPEG and PNG.
+ */
+public class NativeCropEngine implements CropEngine {
+
+    private static final String TAG = "NativeCropEngine";
+
+    private static final boolean sLibraryLoaded = loadLibrary();
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary("ucrop");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "loadLibrary: ", e);
+            return false;
+        }
+    }
+
+    static boolean isLibraryLoaded() {
+        return sLibraryLoaded;
+    }
+
+    @Override
+    public boolean canCrop(@NonNull CropRequest request) {
+        if (!sLibraryLoaded || request.isPlatformDecode()) {
+            return false;
+        }
+        String mimeType = request.getSourceMimeType();
+        boolean readable = request.getPreviewBitmap() != null
+                || "image/jpeg".equals(mimeType) || "image/png".equals(mimeType)
+                || "image/bmp".equals(mimeType) || "image/x-ms-bmp".equals(mimeType);
+        return readable && (request.getResultBitmap() != null
+                || Bitmap.CompressFormat.JPEG.equals(request.getCompressFormat())
+                || Bitmap.CompressFormat.PNG.equals(request.getCompressFormat()));
+    }
+
+    @Override
+    public void crop(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        if (request.getPreviewBitmap() != null) {
+            cropFromPreview(context, request);
+        } else if (request.getResultBitmap() != null) {
+            cropToBitmap(context, request);
+        } else {
+            cropToUri(context, request);
+        }
+    }
+
+    /**
+     * Crops the preview Bitmap, the source image is not decoded again.
+     */
+    private void cropFromPreview(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        Bitmap result = request.getResultBitmap();
+        Uri output = request.getOutputUri();
+        int format = result == null ? request.getCompressFormat().ordinal() : 0;
+        if (result != null || FileUtils.isFileUri(output)) {
+            cropCImgFromBitmap(request.getPreviewBitmap(), result == null ? output.getPath() : null, -1, result,
+                    request.getLeft(), request.getTop(), request.getWidth(), request.getHeight(),
+                    request.getAngle(), request.getResizeScale(),
+                    request.isPreviewOriented() ? 0 : request.getExifDegrees(),
+                    request.isPreviewOriented() ? 1 : request.getExifTranslation(),
+                    format, request.getCompressQuality(),
+                    request.getExifSegment(), request.getMemoryBudget(), request.getThreadCount(), request.getTask());
+            return;
+        }
+        ParcelFileDescriptor descriptor = FileUtils.openFileDescriptor(context, output, "rwt");
+        try {
+            cropCImgFromBitmap(request.getPreviewBitmap(), null, descriptor.getFd(), null,
+                    request.getLeft(), request.getTop(), request.getWidth(), request.getHeight(),
+                    request.getAngle(), request.getResizeScale(),
+                    request.isPreviewOriented() ? 0 : request.getExifDegrees(),
+                    request.isPreviewOriented() ? 1 : request.getExifTranslation(),
+                    format, request.getCompressQuality(),
+                    request.getExifSegment(), request.getMemoryBudget(), request.getThreadCount(), request.getTask());
+        } finally {
+            BitmapLoadUtils.close(descriptor);
+        }
+    }
+
+    /**
+     * Renders the crop straight into the result Bitmap, nothing is encoded or written to a file.
+     */
+    private void cropToBitmap(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        ParcelFileDescriptor input = FileUtils.openFileDescriptor(context, request.getInputUri(), "r");
+        try {
+            ByteBuffer buffer = null;
+            if (input.getStatSize() < 0) {
+                buffer = readFully(new ParcelFileDescriptor.AutoCloseInputStream(input));
+                input = null;
+            }
+            cropCImgToBitmap(input != null ? input.getFd() : -1, buffer, request.getResultBitmap(),
+                    request.getLeft(), request.getTop(), request.getWidth(), request.getHeight(),
+                    request.getAngle(), request.getResizeScale(),
+                    request.getExifDegrees(), request.getExifTranslation(),
+                    request.getMemoryBudget(), request.getDecodeDownscale(), request.getThreadCount(),
+                    request.getTask());
+        } finally {
+            BitmapLoadUtils.close(input);
+        }
+    }
+
+    /**
+     * Files are cropped by their paths. Content is cropped right from the file descriptors of its provider,
+     * when the provider streams it through a pipe the image is read into memory first.
+     * The image is read into memory first as well when it is cropped into itself (downloaded images are),
+     * opening the output truncates it. If the crop fails the source is written back, so other engines can read it.
+     */
+    private void cropToUri(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        Uri inputUri = request.getInputUri(), outputUri = request.getOutputUri();
+        int[] cropOffset = {request.getLeft(), request.getTop()};
+        int format = request.getCompressFormat().ordinal();
+        boolean inPlace = inputUri.equals(outputUri);
+
+        if (FileUtils.isFileUri(inputUri) && FileUtils.isFileUri(outputUri) && !inPlace) {
+            cropCImg(inputUri.getPath(), outputUri.getPath(),
+                    cropOffset[0], cropOffset[1], request.getWidth(), request.getHeight(),
+                    request.getAngle(), request.getResizeScale(), format, request.getCompressQuality(),
+                    request.getExifSegment(), request.getExifDegrees(), request.getExifTranslation(),
+                    request.getMemoryBudget(), request.getDecodeDownscale(), request.getThreadCount(),
+                    request.isSnapToJpegBlocks(), cropOffset, request.getTask());
+        } else {
+            ParcelFileDescriptor input = null;
+            ParcelFileDescriptor output = null;
+            ByteBuffer buffer = null;
+            try {
+                input = FileUtils.openFileDescriptor(context, inputUri, "r");
+                if (input.getStatSize() < 0 || inPlace) {
+                    buffer = readFully(new ParcelFileDescriptor.AutoCloseInputStream(input));
+                    input = null;
+                }
+                output = FileUtils.openFileDescriptor(context, outputUri, "rwt");
+                if (buffer == null) {
+                    cropCImgFd(input.getFd(), output.getFd(),
+                            cropOffset[0], cropOffset[1], request.getWidth(), request.getHeight(),
+                            request.getAngle(), request.getResizeScale(), format, request.getCompressQuality(),
+                            request.getExifSegment(), request.getExifDegrees(), request.getExifTranslation(),
+                            request.getMemoryBudget(), request.getDecodeDownscale(), request.getThreadCount(),
+                            request.isSnapToJpegBlocks(), cropOffset, request.getTask());
+                } else {
+                    cropCImgBuffer(buffer, output.getFd(),
+                            cropOffset[0], cropOffset[1], request.getWidth(), request.getHeight(),
+                            request.getAngle(), request.getResizeScale(), format, request.getCompressQuality(),
+                            request.getExifSegment(), request.getExifDegrees(), request.getExifTranslation(),
+                            request.getMemoryBudget(), request.getDecodeDownscale(), request.getThreadCount(),
+                            request.isSnapToJpegBlocks(), cropOffset, request.getTask());
+                }
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                if (inPlace && buffer != null && output != null) {
+                    restoreSource(output, buffer);
+                }
+                throw e;
+            } finally {
+                BitmapLoadUtils.close(input);
+                BitmapLoadUtils.close(output);
+            }
+        }
+        // Lossless JPEG crop may have moved the rect onto the block grid
+        request.setOffset(cropOffset[0], cropOffset[1]);
+    }
+
+    /**
+     * Writes the source that was read into memory back over the failed result.
+     */
+    private static void restoreSource(@NonNull ParcelFileDescriptor output, @NonNull ByteBuffer source) {
+        // Stream is not closed, that would close the descriptor
+        FileChannel channel = new FileOutputStream(output.getFileDescriptor()).getChannel();
+        ByteBuffer bytes = source.duplicate();
+        bytes.rewind();
+        try {
+            channel.truncate(0);
+            channel.position(0);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "restoreSource: ", e);
+        }
+    }
+
+    /**
+     * Reads the whole stream into a direct buffer, that native code can access without a copy.
+     */
+    private static ByteBuffer readFully(InputStream stream) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(stream);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+            buffer.flip();
+            // Native code takes the whole capacity of the buffer
+            return buffer.slice();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Crops an image file into another one. Task (when not null) is polled for cancellation
+     * and receives progress, CancellationException is thrown if it was cancelled.
+     *
+     * @param memoryBudget    - bytes the result bands may take, 0 - whole result is rendered at once
+     * @param decodeDownscale - 0 to let native code pick the decode scale (and crop JPEG losslessly
+     *                        when it can), otherwise the least factor the source is reduced by
+     * @param exif            - Exif segment written into JPEG results as it is, null for none
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImg(String inputPath, String outputPath,
+             int left, int top, int width, int height,
+             float angle, float resizeScale,
+             int format, int quality, @Nullable byte[] exif,
+             int exifDegrees, int exifTranslation,
+             long memoryBudget, int decodeDownscale, int threadCount,
+             boolean snapToJpegBlocks, int[] cropOffset,
+             @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+    /**
+     * Same as {@link #cropCImg} for an image read from a seekable file descriptor
+     * and written to another one. Descriptors stay open.
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImgFd(int inputFd, int outputFd,
+               int left, int top, int width, int height,
+               float angle, float resizeScale,
+               int format, int quality, @Nullable byte[] exif,
+               int exifDegrees, int exifTranslation,
+               long memoryBudget, int decodeDownscale, int threadCount,
+               boolean snapToJpegBlocks, int[] cropOffset,
+               @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+    /**
+     * Same as {@link #cropCImg} for an encoded image held in a direct buffer (its whole capacity)
+     * and written to a file descriptor.
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImgBuffer(ByteBuffer input, int outputFd,
+                   int left, int top, int width, int height,
+                   float angle, float resizeScale,
+                   int format, int quality, @Nullable byte[] exif,
+                   int exifDegrees, int exifTranslation,
+                   long memoryBudget, int decodeDownscale, int threadCount,
+                   boolean snapToJpegBlocks, int[] cropOffset,
+                   @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+    /**
+     * Crops an image read from a seekable file descriptor, or from a direct buffer (its whole capacity)
+     * when it is not null, into an ARGB_8888 Bitmap of the crop size.
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImgToBitmap(int inputFd, ByteBuffer inputBuffer, Bitmap result,
+                     int left, int top, int width, int height,
+                     float angle, float resizeScale,
+                     int exifDegrees, int exifTranslation,
+                     long memoryBudget, int decodeDownscale, int threadCount,
+                     @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+    /**
+     * Crops an opaque ARGB_8888 Bitmap into the result Bitmap if it is not null,
+     * otherwise into the output path if it is not null, otherwise into the output file descriptor.
+     * Exif orientation is applied to the Bitmap, 0 and 1 if it is already oriented.
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImgFromBitmap(Bitmap source, String outputPath, int outputFd, Bitmap result,
+                       int left, int top, int width, int height,
+                       float angle, float resizeScale,
+                       int exifDegrees, int exifTranslation,
+                       int format, int quality, @Nullable byte[] exif,
+                       long memoryBudget, int threadCount,
+                       @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+    /**
+     * Same as {@link #cropCImgFromBitmap} for a region of the source image decoded by the platform,
+     * possibly reduced: the Bitmap holds source pixels of the region as they are stored, before Exif
+     * rotation. Pixels with alpha are unpremultiplied in place, the Bitmap must not be drawn afterwards.
+     */
+    @SuppressWarnings("JniMissingFunction")
+    native public static boolean
+    cropCImgFromRegion(Bitmap region, boolean hasAlpha, int sourceWidth, int sourceHeight,
+                       int regionLeft, int regionTop, int regionWidth, int regionHeight,
+                       String outputPath, int outputFd, Bitmap result,
+                       int left, int top, int width, int height,
+                       float angle, float resizeScale,
+                       int exifDegrees, int exifTranslation,
+                       int format, int quality, @Nullable byte[] exif,
+                       long memoryBudget, int threadCount,
+                       @Nullable BitmapCropTask task) throws IOException, OutOfMemoryError;
+
+}
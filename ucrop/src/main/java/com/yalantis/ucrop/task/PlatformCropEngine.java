@@ -0,0 +1,311 @@
+package com.yalantis.ucrop.task;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.yalantis.ucrop.util.BitmapLoadUtils;
+import com.yalantis.ucrop.util.FileUtils;
+
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Crops with the platform decoders and Canvas, so it reads every format the device can decode
+ * (WebP, HEIF, GIF...) and writes every {@link Bitmap.CompressFormat}.
+ * <p/>
+ * Source is decoded by BitmapRegionDecoder band by band, only the region under each band of result rows,
+ * formats that it can't decode by regions are decoded whole. Result is drawn with bilinear filtering
+ * and held in memory as a whole Bitmap.
+ */
+public class PlatformCropEngine implements CropEngine {
+
+    private static final String TAG = "PlatformCropEngine";
+
+    // Fewest result rows decoded at once, the memory budget sets how many more.
+    private static final int MIN_BAND_ROWS = 64;
+
+    @Override
+    public boolean canCrop(@NonNull CropRequest request) {
+        // BitmapFactory could read the bounds of the source
+        return request.getSourceMimeType() != null
+                && (request.getResultBitmap() != null || request.getCompressFormat() != null);
+    }
+
+    @Override
+    public void crop(@NonNull Context context, @NonNull CropRequest request) throws IOException {
+        Bitmap result = request.getResultBitmap();
+        if (result == null) {
+            result = Bitmap.createBitmap(request.getWidth(), request.getHeight(), Bitmap.Config.ARGB_8888);
+        } else {
+            result.eraseColor(Color.TRANSPARENT);
+        }
+
+        Matrix resultToSource = resultToSource(request);
+        Matrix sourceToResult = new Matrix();
+        if (!resultToSource.invert(sourceToResult)) {
+            throw new IllegalArgumentException("Crop can't be mapped onto the source");
+        }
+
+        ParcelFileDescriptor input = FileUtils.openFileDescriptor(context, request.getInputUri(), "r");
+        BitmapRegionDecoder decoder = null;
+        try {
+            try {
+                decoder = BitmapRegionDecoder.newInstance(input.getFileDescriptor(), false);
+            } catch (IOException e) {
+                Log.i(TAG, "crop: no region decoder for " + request.getSourceMimeType());
+            }
+            if (decoder != null) {
+                drawBands(decoder, request, result, resultToSource, sourceToResult);
+            } else {
+                drawWhole(context, request, result, sourceToResult);
+            }
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            BitmapLoadUtils.close(input);
+        }
+
+        if (request.getResultBitmap() == null) {
+            try {
+                write(context, request, result);
+            } finally {
+                result.recycle();
+            }
+        }
+    }
+
+    /**
+     * Decodes the source region under each band of result rows and draws it into the band.
+     */
+    private void drawBands(@NonNull BitmapRegionDecoder decoder, @NonNull CropRequest request, @NonNull Bitmap result,
+                           @NonNull Matrix resultToSource, @NonNull Matrix sourceToResult) throws IOException {
+        int width = request.getWidth(), height = request.getHeight();
+        int bandRows = height;
+        if (request.getMemoryBudget() > 0) {
+            bandRows = (int) Math.max(MIN_BAND_ROWS, Math.min(height, request.getMemoryBudget() / (4L * width)));
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(request);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Canvas canvas = new Canvas(result);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect bounds = new Rect(0, 0, decoder.getWidth(), decoder.getHeight());
+        RectF band = new RectF();
+        Rect region = new Rect();
+        for (int y = 0; y < height; y += bandRows) {
+            if (request.isCancelled()) {
+                throw new CancellationException();
+            }
+            int bandEnd = Math.min(height, y + bandRows);
+            band.set(0, y, width, bandEnd);
+            resultToSource.mapRect(band);
+            band.roundOut(region);
+            // Neighbours that filtering reaches for at the band edges
+            region.inset(-options.inSampleSize, -options.inSampleSize);
+            if (region.intersect(bounds)) {
+                Bitmap pixels = decoder.decodeRegion(region, options);
+                if (pixels == null) {
+                    throw new IOException("Failed to decode region " + region);
+                }
+                canvas.save();
+                canvas.clipRect(0, y, width, bandEnd);
+                canvas.drawBitmap(pixels, regionToResult(sourceToResult, region, pixels), paint);
+                canvas.restore();
+                pixels.recycle();
+            }
+            request.reportProgress(bandEnd, height);
+        }
+    }
+
+    /**
+     * Decodes the whole source (reduced when the result is much smaller) and draws it at once.
+     */
+    private void drawWhole(@NonNull Context context, @NonNull CropRequest request, @NonNull Bitmap result,
+                           @NonNull Matrix sourceToResult) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(request);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        Bitmap pixels;
+        InputStream stream = context.getContentResolver().openInputStream(request.getInputUri());
+        if (stream == null) {
+            throw new FileNotFoundException("InputStream for given input Uri is null");
+        }
+        try {
+            pixels = BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            BitmapLoadUtils.close(stream);
+        }
+        if (pixels == null) {
+            throw new IOException("Failed to decode " + request.getInputUri());
+        }
+        if (request.isCancelled()) {
+            pixels.recycle();
+            throw new CancellationException();
+        }
+
+        Rect region = new Rect(0, 0, request.getSourceWidth(), request.getSourceHeight());
+        new Canvas(result).drawBitmap(pixels, regionToResult(sourceToResult, region, pixels),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        pixels.recycle();
+        request.reportProgress(request.getHeight(), request.getHeight());
+    }
+
+    private static void write(@NonNull Context context, @NonNull CropRequest request, @NonNull Bitmap result) throws IOException {
+        Uri outputUri = request.getOutputUri();
+        OutputStream stream = context.getContentResolver().openOutputStream(outputUri, "wt");
+        if (stream == null) {
+            throw new FileNotFoundException("OutputStream for given output Uri is null");
+        }
+        byte[] exifSegment = request.getExifSegment();
+        if (exifSegment != null && Bitmap.CompressFormat.JPEG.equals(request.getCompressFormat())) {
+            stream = new ExifSplicingOutputStream(stream, exifSegment);
+        }
+        try {
+            if (!result.compress(request.getCompressFormat(), request.getCompressQuality(), stream)) {
+                throw new IOException("Failed to encode the result as " + request.getCompressFormat());
+            }
+        } finally {
+            BitmapLoadUtils.close(stream);
+        }
+    }
+
+    /**
+     * Power of two the source can be reduced by while decoding without dropping below the resolution
+     * of the result, or the least factor the request asks for.
+     */
+    static int sampleSize(@NonNull CropRequest request) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= 1 / request.getResizeScale() + 0.01f) {
+            sampleSize *= 2;
+        }
+        while (sampleSize < request.getDecodeDownscale()) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Maps decoded pixels of a source region (possibly reduced) onto the result.
+     */
+    @NonNull
+    private static Matrix regionToResult(@NonNull Matrix sourceToResult, @NonNull Rect region, @NonNull Bitmap pixels) {
+        Matrix matrix = new Matrix(sourceToResult);
+        matrix.preTranslate(region.left, region.top);
+        matrix.preScale(region.width() / (float) pixels.getWidth(), region.height() / (float) pixels.getHeight());
+        return matrix;
+    }
+
+    /**
+     * Maps the result onto the source as it is stored: the crop rect lives in the bounding box of the source
+     * rotated by the angle, after it was resized, mirrored and oriented by Exif. Same chain as the native
+     * engine builds, in coordinates of pixel edges (as Canvas uses them) rather than of pixel centers.
+     */
+    @NonNull
+    static Matrix resultToSource(@NonNull CropRequest request) {
+        int sourceWidth = request.getSourceWidth(), sourceHeight = request.getSourceHeight();
+        int degrees = ((request.getExifDegrees() % 360) + 360) % 360;
+        boolean swapSides = degrees == 90 || degrees == 270;
+        int orientedWidth = swapSides ? sourceHeight : sourceWidth;
+        int orientedHeight = swapSides ? sourceWidth : sourceHeight;
+
+        // Oriented image -> source, the rotated source is moved back to the origin
+        Matrix matrix = new Matrix();
+        matrix.setRotate(-degrees);
+        RectF oriented = new RectF(0, 0, sourceWidth, sourceHeight);
+        Matrix orientation = new Matrix();
+        orientation.setRotate(degrees);
+        orientation.mapRect(oriented);
+        matrix.preTranslate(oriented.left, oriented.top);
+
+        // Mirrored image -> oriented image
+        if (request.getExifTranslation() != 1) {
+            matrix.preTranslate(orientedWidth, 0);
+            matrix.preScale(-1, 1);
+        }
+
+        // Resized image -> mirrored image
+        int resizedWidth = orientedWidth, resizedHeight = orientedHeight;
+        float resizeScale = request.getResizeScale();
+        if (resizeScale != 1) {
+            resizedWidth = Math.max(1, (int) (orientedWidth * resizeScale));
+            resizedHeight = Math.max(1, (int) (orientedHeight * resizeScale));
+            matrix.preScale(orientedWidth / (float) resizedWidth, orientedHeight / (float) resizedHeight);
+        }
+
+        // Result image -> resized image, around the center of the rotated bounding box
+        RectF rotated = new RectF(0, 0, resizedWidth, resizedHeight);
+        Matrix rotation = new Matrix();
+        rotation.setRotate(request.getAngle(), resizedWidth / 2f, resizedHeight / 2f);
+        rotation.mapRect(rotated);
+        matrix.preRotate(-request.getAngle(), resizedWidth / 2f, resizedHeight / 2f);
+        matrix.preTranslate(rotated.left + request.getLeft(), rotated.top + request.getTop());
+        return matrix;
+    }
+
+    /**
+     * Writes an Exif segment right after SOI of the JPEG that goes through it, as the encoder writes it.
+     */
+    private static class ExifSplicingOutputStream extends FilterOutputStream {
+
+        private static final int SOI_LENGTH = 2;
+
+        private final byte[] mExifSegment;
+        private long mWritten;
+
+        ExifSplicingOutputStream(@NonNull OutputStream out, @NonNull byte[] exifSegment) {
+            super(out);
+            mExifSegment = exifSegment;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (++mWritten == SOI_LENGTH) {
+                writeExif();
+            }
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mWritten < SOI_LENGTH && mWritten + len >= SOI_LENGTH) {
+                int head = (int) (SOI_LENGTH - mWritten);
+                out.write(b, off, head);
+                mWritten += head;
+                writeExif();
+                off += head;
+                len -= head;
+            }
+            out.write(b, off, len);
+            mWritten += len;
+        }
+
+        private void writeExif() throws IOException {
+            int length = mExifSegment.length + 2;
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length});
+            out.write(mExifSegment);
+        }
+    }
+
+}
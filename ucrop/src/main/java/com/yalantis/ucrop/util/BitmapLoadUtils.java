@@ -1,21 +1,26 @@
 package com.yalantis.ucrop.util;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 
 import com.yalantis.ucrop.callback.BitmapLoadCallback;
+import com.yalantis.ucrop.model.ImageInfo;
 import com.yalantis.ucrop.task.BitmapLoadTask;
 
 import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -32,12 +37,31 @@ public class BitmapLoadUtils {
 
     private static final String TAG = "BitmapLoadUtils";
 
+    // Largest Bitmap a Canvas draws
+    private static final long MAX_BITMAP_BYTES = 100 * 1024 * 1024;
+    private static final long MIN_BITMAP_BYTES = 4 * 1024 * 1024;
+    // Decode needs more than the result for a moment: the sampled Bitmap it is scaled from
+    // and the copy that Exif orientation makes
+    private static final int DECODE_MEMORY_FACTOR = 4;
+
     public static void decodeBitmapInBackground(@NonNull Context context,
                                                 @NonNull Uri uri, @Nullable Uri outputUri,
                                                 int requiredWidth, int requiredHeight,
                                                 BitmapLoadCallback loadCallback) {
 
-        new BitmapLoadTask(context, uri, outputUri, requiredWidth, requiredHeight, loadCallback)
+        decodeBitmapInBackground(context, uri, outputUri, requiredWidth, requiredHeight, true, loadCallback);
+    }
+
+    /**
+     * @param applyExifOrientation - false to get the Bitmap as the image is stored, without the rotated copy,
+     *                             orientation is then applied by the caller from {@link com.yalantis.ucrop.model.ExifInfo}
+     */
+    public static void decodeBitmapInBackground(@NonNull Context context,
+                                                @NonNull Uri uri, @Nullable Uri outputUri,
+                                                int requiredWidth, int requiredHeight, boolean applyExifOrientation,
+                                                BitmapLoadCallback loadCallback) {
+
+        new BitmapLoadTask(context, uri, outputUri, requiredWidth, requiredHeight, applyExifOrientation, loadCallback)
                 .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
@@ -53,6 +77,27 @@ public class BitmapLoadUtils {
         return bitmap;
     }
 
+    /**
+     * Sets the matrix to draw an image as it is stored onto a rect at the origin with Exif orientation applied:
+     * rotated, mirrored and moved back to the origin the way {@link #transformBitmap} does it, then scaled to the rect.
+     *
+     * @param width          - width of the image as it is stored
+     * @param height         - height of the image as it is stored
+     * @param orientedWidth  - width of the rect, the image is oriented in it
+     * @param orientedHeight - height of the rect, the image is oriented in it
+     */
+    public static void setExifMatrix(@NonNull Matrix matrix, float width, float height, int exifDegrees, int exifTranslation,
+                                     float orientedWidth, float orientedHeight) {
+        matrix.setRotate(exifDegrees);
+        if (exifTranslation != 1) {
+            matrix.postScale(exifTranslation, 1);
+        }
+        RectF bounds = new RectF(0, 0, width, height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        matrix.postScale(orientedWidth / bounds.width(), orientedHeight / bounds.height());
+    }
+
     public static int calculateInSampleSize(@NonNull BitmapFactory.Options options, int reqWidth, int reqHeight) {
         // Raw height and width of image
         final int height = options.outHeight;
@@ -69,6 +114,81 @@ public class BitmapLoadUtils {
         return inSampleSize;
     }
 
+    /**
+     * Scale to decode an image at: it fits the required size and the memory that is available now,
+     * so the image can be decoded once right at that size. Images are never scaled up.
+     *
+     * @param width  - width of the image as it is stored
+     * @param height - height of the image as it is stored
+     */
+    public static float calculateDecodeScale(@NonNull Context context, int width, int height, int reqWidth, int reqHeight) {
+        float scale = Math.min(1f, Math.min(reqWidth / (float) width, reqHeight / (float) height));
+
+        long maxBytes = Math.min(MAX_BITMAP_BYTES, getAvailableBitmapMemory(context) / DECODE_MEMORY_FACTOR);
+        maxBytes = Math.max(maxBytes, MIN_BITMAP_BYTES);
+        double bytes = (double) width * height * scale * scale * 4;
+        if (bytes > maxBytes) {
+            scale *= (float) Math.sqrt(maxBytes / bytes);
+        }
+        return scale;
+    }
+
+    /**
+     * @return - bytes that Bitmaps can take now: free Java heap before Oreo, since then Bitmap pixels are
+     * in native memory and it is the system memory available before the low memory killer steps in
+     */
+    public static long getAvailableBitmapMemory(@NonNull Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            if (activityManager != null) {
+                ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+                activityManager.getMemoryInfo(memoryInfo);
+                return Math.max(0, memoryInfo.availMem - memoryInfo.threshold);
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Reads format, size, orientation and Exif of the image from its header in one pass.
+     * Formats that {@link ImageHeaderParser} doesn't parse are measured by BitmapFactory instead.
+     */
+    @NonNull
+    public static ImageInfo readImageInfo(@NonNull Context context, @NonNull Uri imageUri) throws IOException {
+        ImageInfo imageInfo;
+        InputStream stream = openInputStream(context, imageUri);
+        try {
+            imageInfo = new ImageHeaderParser(stream).getImageInfo();
+        } finally {
+            close(stream);
+        }
+        if (imageInfo.hasSize()) {
+            return imageInfo;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        stream = openInputStream(context, imageUri);
+        try {
+            BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            close(stream);
+        }
+        return new ImageInfo(options.outMimeType, options.outWidth, options.outHeight, 0,
+                imageInfo.getExifOrientation(), imageInfo.getExifSegment(), imageInfo.getExifOffset(),
+                imageInfo.getThumbnailOffset(), imageInfo.getThumbnailLength());
+    }
+
+    @NonNull
+    private static InputStream openInputStream(@NonNull Context context, @NonNull Uri imageUri) throws IOException {
+        InputStream stream = context.getContentResolver().openInputStream(imageUri);
+        if (stream == null) {
+            throw new FileNotFoundException("InputStream for given input Uri is null");
+        }
+        return stream;
+    }
+
     public static int getExifOrientation(@NonNull Context context, @NonNull Uri imageUri) {
         int orientation = ExifInterface.ORIENTATION_UNDEFINED;
         try {
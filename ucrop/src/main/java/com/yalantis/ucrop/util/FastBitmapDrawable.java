@@ -18,30 +18,122 @@ package com.yalantis.ucrop.util;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drawable of a Bitmap that is drawn with filtering. When it is scaled down (see {@link #setScale(float)})
+ * a smaller copy of the Bitmap is drawn: hardware accelerated canvas uses mipmaps of the texture,
+ * for software rendering half size levels are built in background when they are first needed.
+ * Bitmap may be drawn with Exif orientation (see {@link #setOrientation(int, int)}), so a decoded image
+ * doesn't need a rotated copy.
+ */
 public class FastBitmapDrawable extends Drawable {
 
+    private static final String TAG = "FastBitmapDrawable";
+
+    private static final int MIN_MIP_LEVEL_SIZE = 64;
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
     private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     private Bitmap mBitmap;
+    private boolean mBitmapHadMipMap;
     private int mAlpha;
     private int mWidth, mHeight;
 
+    private int mExifDegrees, mExifTranslation = 1;
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Rect mDrawMatrixBounds = new Rect();
+    private Bitmap mDrawMatrixBitmap;
+
+    private float mScale = 1f;
+    // Levels 1, 2, ... of the Bitmap, each half the size of the previous one
+    private List<Bitmap> mMipLevels = new ArrayList<>();
+    private boolean mMipLevelsPending;
+    private int mMipLevelLimit;
+
     public FastBitmapDrawable(Bitmap b) {
         mAlpha = 255;
         setBitmap(b);
     }
 
+    /**
+     * Drawable that is measured as if its Bitmap had given size, the Bitmap is stretched to it.
+     */
+    public FastBitmapDrawable(Bitmap b, int width, int height) {
+        this(b);
+        mWidth = width;
+        mHeight = height;
+    }
+
     @Override
     public void draw(Canvas canvas) {
         if (mBitmap != null && !mBitmap.isRecycled()) {
-            canvas.drawBitmap(mBitmap, null, getBounds(), mPaint);
+            Bitmap bitmap = canvas.isHardwareAccelerated() ? mBitmap : selectMipLevel();
+            if (hasOrientation()) {
+                canvas.drawBitmap(bitmap, getDrawMatrix(bitmap), mPaint);
+            } else {
+                canvas.drawBitmap(bitmap, null, getBounds(), mPaint);
+            }
         }
     }
 
+    /**
+     * Setter for Exif orientation to draw the Bitmap with, intrinsic size becomes the size of the oriented Bitmap.
+     *
+     * @param exifDegrees     - rotation, see {@link BitmapLoadUtils#exifToDegrees(int)}
+     * @param exifTranslation - -1 to mirror horizontally, see {@link BitmapLoadUtils#exifToTranslation(int)}
+     */
+    public void setOrientation(int exifDegrees, int exifTranslation) {
+        mExifDegrees = exifDegrees;
+        mExifTranslation = exifTranslation;
+        mDrawMatrixBitmap = null;
+        updateSize();
+    }
+
+    /**
+     * @return - true if the Bitmap is rotated or mirrored when it is drawn
+     */
+    public boolean hasOrientation() {
+        return mExifDegrees % 360 != 0 || mExifTranslation != 1;
+    }
+
+    /**
+     * @return - the Bitmap as it is drawn: a rotated or mirrored copy is made on each call if it has orientation
+     */
+    public Bitmap getOrientedBitmap() {
+        if (mBitmap == null || !hasOrientation()) {
+            return mBitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setRotate(mExifDegrees);
+        if (mExifTranslation != 1) {
+            matrix.postScale(mExifTranslation, 1);
+        }
+        return BitmapLoadUtils.transformBitmap(mBitmap, matrix);
+    }
+
+    /**
+     * Setter for the scale the drawable is drawn at, smaller copy of the Bitmap is drawn when it is below 0.5.
+     *
+     * @param scale - size on the screen divided by intrinsic size
+     */
+    public void setScale(float scale) {
+        mScale = scale;
+    }
+
     @Override
     public void setColorFilter(ColorFilter cf) {
         mPaint.setColorFilter(cf);
@@ -90,14 +182,118 @@ public class FastBitmapDrawable extends Drawable {
         return mBitmap;
     }
 
+    /**
+     * Bitmap is marked to have mip maps while it is drawn by hardware, the flag it had is restored
+     * once another Bitmap is set.
+     */
     public void setBitmap(Bitmap b) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && b != mBitmap) {
+            if (mBitmap != null && !mBitmap.isRecycled()) {
+                mBitmap.setHasMipMap(mBitmapHadMipMap);
+            }
+            if (b != null) {
+                mBitmapHadMipMap = b.hasMipMap();
+                b.setHasMipMap(true);
+            }
+        }
         mBitmap = b;
-        if (b != null) {
+        mMipLevels = new ArrayList<>();
+        mMipLevelsPending = false;
+        mMipLevelLimit = Integer.MAX_VALUE;
+        mDrawMatrixBitmap = null;
+        updateSize();
+    }
+
+    private void updateSize() {
+        if (mBitmap == null) {
+            mWidth = mHeight = 0;
+        } else if (isSideSwapped()) {
+            mWidth = mBitmap.getHeight();
+            mHeight = mBitmap.getWidth();
+        } else {
             mWidth = mBitmap.getWidth();
             mHeight = mBitmap.getHeight();
-        } else {
-            mWidth = mHeight = 0;
         }
     }
 
+    private boolean isSideSwapped() {
+        return mExifDegrees % 180 != 0;
+    }
+
+    /**
+     * @return - matrix that draws given level of the Bitmap oriented into the bounds
+     */
+    private Matrix getDrawMatrix(Bitmap bitmap) {
+        Rect bounds = getBounds();
+        if (bitmap != mDrawMatrixBitmap || !bounds.equals(mDrawMatrixBounds)) {
+            BitmapLoadUtils.setExifMatrix(mDrawMatrix, bitmap.getWidth(), bitmap.getHeight(),
+                    mExifDegrees, mExifTranslation, bounds.width(), bounds.height());
+            mDrawMatrix.postTranslate(bounds.left, bounds.top);
+            mDrawMatrixBitmap = bitmap;
+            mDrawMatrixBounds.set(bounds);
+        }
+        return mDrawMatrix;
+    }
+
+    /**
+     * @return - smallest level that still has a pixel for each pixel on the screen, levels that
+     * are missing are requested and the closest one that is there is returned meanwhile
+     */
+    private Bitmap selectMipLevel() {
+        float bitmapScale = mScale * mWidth / (isSideSwapped() ? mBitmap.getHeight() : mBitmap.getWidth());
+        int level = 0;
+        while (bitmapScale * (2 << level) <= 1
+                && (mBitmap.getWidth() >> (level + 1)) >= MIN_MIP_LEVEL_SIZE
+                && (mBitmap.getHeight() >> (level + 1)) >= MIN_MIP_LEVEL_SIZE) {
+            level++;
+        }
+        level = Math.min(level, mMipLevelLimit);
+        if (level > mMipLevels.size()) {
+            buildMipLevels(level);
+            level = mMipLevels.size();
+        }
+        return level == 0 ? mBitmap : mMipLevels.get(level - 1);
+    }
+
+    /**
+     * Builds levels after the last one there is down to the given one, each is filtered from the previous.
+     */
+    private void buildMipLevels(final int lastLevel) {
+        if (mMipLevelsPending) {
+            return;
+        }
+        mMipLevelsPending = true;
+
+        final Bitmap bitmap = mBitmap;
+        final List<Bitmap> levels = new ArrayList<>(mMipLevels);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bitmap level = levels.isEmpty() ? bitmap : levels.get(levels.size() - 1);
+                    while (levels.size() < lastLevel) {
+                        level = Bitmap.createScaledBitmap(level, level.getWidth() / 2, level.getHeight() / 2, true);
+                        levels.add(level);
+                    }
+                } catch (OutOfMemoryError | IllegalStateException e) {
+                    // Levels built so far are kept, the Bitmap itself is drawn for the rest
+                    Log.w(TAG, "buildMipLevels: ", e);
+                }
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mBitmap == bitmap && mMipLevelsPending) {
+                            mMipLevels = levels;
+                            mMipLevelsPending = false;
+                            if (levels.size() < lastLevel) {
+                                mMipLevelLimit = levels.size();
+                            }
+                            invalidateSelf();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
 }
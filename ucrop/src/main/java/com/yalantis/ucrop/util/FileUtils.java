@@ -17,12 +17,14 @@
 package com.yalantis.ucrop.util;
 
 import android.annotation.SuppressLint;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.text.TextUtils;
@@ -30,12 +32,16 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * @author Peli
@@ -234,4 +240,60 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Copies content of one Uri into the other, both file and content Uris are supported.
+     * Nothing is copied if the Uris are the same.
+     */
+    public static void copyFile(@NonNull Context context, @NonNull Uri uriFrom, @NonNull Uri uriTo) throws IOException {
+        if (uriFrom.equals(uriTo)) {
+            return;
+        }
+
+        InputStream inputStream = null;
+        OutputStream outputStream = null;
+        try {
+            inputStream = context.getContentResolver().openInputStream(uriFrom);
+            outputStream = context.getContentResolver().openOutputStream(uriTo, "wt");
+            if (inputStream == null || outputStream == null) {
+                throw new FileNotFoundException("Failed to copy " + uriFrom + " to " + uriTo);
+            }
+
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, length);
+            }
+        } finally {
+            if (inputStream != null) inputStream.close();
+            if (outputStream != null) outputStream.close();
+        }
+    }
+
+    /**
+     * Opens file or content Uri, throws instead of returning null.
+     *
+     * @param mode - "r", "w", "wt", "rw" or "rwt"
+     */
+    @NonNull
+    public static ParcelFileDescriptor openFileDescriptor(@NonNull Context context, @NonNull Uri uri,
+                                                         @NonNull String mode) throws IOException {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, mode);
+        if (descriptor == null) {
+            throw new FileNotFoundException("File descriptor for Uri is null: " + uri);
+        }
+        return descriptor;
+    }
+
+    public static boolean isFileUri(@NonNull Uri uri) {
+        return ContentResolver.SCHEME_FILE.equals(uri.getScheme());
+    }
+
+    /**
+     * @return - path of a file Uri, null if the Uri is null or of another scheme
+     */
+    @Nullable
+    public static String getFileUriPath(@Nullable Uri uri) {
+        return uri != null && isFileUri(uri) ? uri.getPath() : null;
+    }
+
 }
@@ -33,12 +33,16 @@ package com.yalantis.ucrop.util;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.yalantis.ucrop.model.ImageInfo;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.exifinterface.media.ExifInterface;
 
 /**
@@ -66,6 +70,26 @@ public class ImageHeaderParser {
     private static final int SEGMENT_START_ID = 0xFF;
     private static final int EXIF_SEGMENT_TYPE = 0xE1;
     private static final int ORIENTATION_TAG_TYPE = 0x0112;
+    private static final int IMAGE_WIDTH_TAG_TYPE = 0x0100;
+    private static final int IMAGE_LENGTH_TAG_TYPE = 0x0101;
+    private static final int EXIF_IFD_POINTER_TAG_TYPE = 0x8769;
+    private static final int PIXEL_X_DIMENSION_TAG_TYPE = 0xA002;
+    private static final int PIXEL_Y_DIMENSION_TAG_TYPE = 0xA003;
+    private static final int THUMBNAIL_OFFSET_TAG_TYPE = 0x0201;
+    private static final int THUMBNAIL_LENGTH_TAG_TYPE = 0x0202;
+    private static final int FORMAT_UNSIGNED_SHORT = 3;
+    private static final int FORMAT_UNSIGNED_LONG = 4;
+    private static final int ORIENTATION_NORMAL = 1;
+    private static final int PNG_MAGIC_NUMBER = 0x8950;
+    private static final int RIFF_MAGIC_NUMBER = 0x5249;
+    private static final int SEGMENT_SOF0 = 0xC0;
+    private static final int SEGMENT_SOF15 = 0xCF;
+    private static final int SEGMENT_DHT = 0xC4;
+    private static final int SEGMENT_JPG = 0xC8;
+    private static final int SEGMENT_DAC = 0xCC;
+    private static final int MARKER_TEM = 0x01;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
     private static final int[] BYTES_PER_FORMAT = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
 
     private final Reader reader;
@@ -104,6 +128,280 @@ public class ImageHeaderParser {
         }
     }
 
+    /**
+     * Reads what the load and the crop need to know about the image in a single pass over its header:
+     * format, size, channels and for JPEG the Exif segment with orientation and thumbnail location.
+     * JPEG is read up to its frame header, PNG up to IHDR and WebP up to its first chunk header.
+     *
+     * @return info with null MIME type and no size if the format isn't one of those
+     */
+    @NonNull
+    public ImageInfo getImageInfo() throws IOException {
+        final int magicNumber = reader.getUInt16();
+        if (magicNumber == EXIF_MAGIC_NUMBER) {
+            return probeJpeg();
+        } else if (magicNumber == PNG_MAGIC_NUMBER) {
+            return probePng();
+        } else if (magicNumber == RIFF_MAGIC_NUMBER) {
+            return probeWebp();
+        }
+        return new ImageInfo(null, 0, 0, 0, UNKNOWN_ORIENTATION, null, -1, -1, 0);
+    }
+
+    private ImageInfo probeJpeg() throws IOException {
+        int width = 0, height = 0, channels = 0;
+        int orientation = UNKNOWN_ORIENTATION;
+        byte[] exifSegment = null;
+        long exifOffset = -1, thumbnailOffset = -1, position = 2;
+        int thumbnailLength = 0;
+        while (true) {
+            if (reader.getUInt8() != SEGMENT_START_ID) {
+                break;
+            }
+            int segmentType = reader.getUInt8();
+            position += 2;
+            if (segmentType == SEGMENT_SOS || segmentType == MARKER_EOI) {
+                break;
+            } else if (segmentType == MARKER_TEM || (segmentType >= MARKER_RST0 && segmentType <= MARKER_RST7)) {
+                continue;
+            }
+            // Segment length includes bytes for segment length.
+            int segmentLength = reader.getUInt16() - 2;
+            position += 2;
+            if (segmentLength < 0) {
+                break;
+            }
+
+            if (segmentType == EXIF_SEGMENT_TYPE && exifSegment == null) {
+                byte[] segment = new byte[segmentLength];
+                if (reader.read(segment, segmentLength) != segmentLength) {
+                    break;
+                }
+                if (hasJpegExifPreamble(segment, segmentLength)) {
+                    exifSegment = segment;
+                    exifOffset = position;
+                    orientation = parseExifSegment(new RandomAccessReader(segment, segmentLength));
+                    int[] thumbnail = findThumbnail(segment);
+                    if (thumbnail != null) {
+                        thumbnailOffset = position + JPEG_EXIF_SEGMENT_PREAMBLE.length() + thumbnail[0];
+                        thumbnailLength = thumbnail[1];
+                    }
+                }
+            } else if (segmentType >= SEGMENT_SOF0 && segmentType <= SEGMENT_SOF15 && segmentType != SEGMENT_DHT
+                    && segmentType != SEGMENT_JPG && segmentType != SEGMENT_DAC) {
+                // Precision, height, width and number of components. Exif comes before the frame.
+                reader.getUInt8();
+                height = reader.getUInt16();
+                width = reader.getUInt16();
+                channels = reader.getUInt8();
+                break;
+            } else if (reader.skip(segmentLength) != segmentLength) {
+                break;
+            }
+            position += segmentLength;
+        }
+        return new ImageInfo("image/jpeg", width, height, channels, orientation, exifSegment, exifOffset,
+                thumbnailOffset, thumbnailLength);
+    }
+
+    private ImageInfo probePng() throws IOException {
+        // Rest of the signature, then IHDR: length, type, width, height, bit depth and color type
+        if (reader.skip(6 + 8) != 6 + 8) {
+            return new ImageInfo("image/png", 0, 0, 0, UNKNOWN_ORIENTATION, null, -1, -1, 0);
+        }
+        int width = reader.getUInt16() << 16 | reader.getUInt16();
+        int height = reader.getUInt16() << 16 | reader.getUInt16();
+        reader.getUInt8();
+        int channels;
+        switch (reader.getUInt8()) {
+            case 0:
+                channels = 1;
+                break;
+            case 4:
+                channels = 2;
+                break;
+            case 6:
+                channels = 4;
+                break;
+            default:
+                // RGB and palette, either may still get alpha from a tRNS chunk
+                channels = 3;
+        }
+        return new ImageInfo("image/png", width, height, channels, UNKNOWN_ORIENTATION, null, -1, -1, 0);
+    }
+
+    private ImageInfo probeWebp() throws IOException {
+        // Rest of "RIFF", file size and "WEBP", then the first chunk
+        byte[] header = new byte[2 + 4 + 4 + 8 + 10];
+        int read = reader.read(header, header.length);
+        ByteBuffer data = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int width = 0, height = 0, channels = 0;
+        if (read == header.length && header[6] == 'W' && header[7] == 'E' && header[8] == 'B' && header[9] == 'P') {
+            String chunk = new String(header, 10, 4, Charset.forName("US-ASCII"));
+            if ("VP8 ".equals(chunk)) {
+                // Frame tag, start code, then 14 bit sizes
+                width = data.getShort(18 + 6) & 0x3FFF;
+                height = data.getShort(18 + 8) & 0x3FFF;
+                channels = 3;
+            } else if ("VP8L".equals(chunk)) {
+                // Signature, then 14 bit sizes less one and the alpha bit
+                int bits = data.getInt(18 + 1);
+                width = (bits & 0x3FFF) + 1;
+                height = (bits >> 14 & 0x3FFF) + 1;
+                channels = (bits >> 28 & 1) != 0 ? 4 : 3;
+            } else if ("VP8X".equals(chunk)) {
+                // Flags, reserved bytes, then 24 bit canvas sizes less one
+                width = (data.getInt(18 + 4) & 0xFFFFFF) + 1;
+                height = (data.getInt(18 + 6) >> 8 & 0xFFFFFF) + 1;
+                channels = (header[18] & 0x10) != 0 ? 4 : 3;
+            }
+        }
+        return new ImageInfo("image/webp", width, height, channels, UNKNOWN_ORIENTATION, null, -1, -1, 0);
+    }
+
+    /**
+     * Makes a raw Exif segment (see {@link ImageInfo#getExifSegment()}) describe the cropped image: orientation
+     * is set to normal, image width and height to the crop size, and the thumbnail of the source is dropped.
+     * Tags are patched in place, so nothing else in the segment moves.
+     *
+     * @return the patched segment (possibly shorter without the thumbnail), or null if it can't be parsed
+     */
+    @Nullable
+    public static byte[] patchExifSegment(@NonNull byte[] exifSegment, int width, int height) {
+        final int headerOffsetSize = JPEG_EXIF_SEGMENT_PREAMBLE.length();
+        ByteBuffer tiff = tiffOf(exifSegment);
+        if (tiff == null) {
+            return null;
+        }
+        try {
+            int firstIfdOffset = tiff.getInt(4);
+            int tagCount = tiff.getShort(firstIfdOffset) & 0xFFFF;
+            for (int i = 0; i < tagCount; i++) {
+                int tagOffset = calcTagOffset(firstIfdOffset, i);
+                switch (tiff.getShort(tagOffset) & 0xFFFF) {
+                    case ORIENTATION_TAG_TYPE:
+                        putTagValue(tiff, tagOffset, ORIENTATION_NORMAL);
+                        break;
+                    case IMAGE_WIDTH_TAG_TYPE:
+                        putTagValue(tiff, tagOffset, width);
+                        break;
+                    case IMAGE_LENGTH_TAG_TYPE:
+                        putTagValue(tiff, tagOffset, height);
+                        break;
+                    case EXIF_IFD_POINTER_TAG_TYPE:
+                        patchExifIfd(tiff, tiff.getInt(tagOffset + 8), width, height);
+                        break;
+                }
+            }
+
+            // IFD1 holds the thumbnail, that shows the whole source. It is unlinked, and its data
+            // is cut off when it is the last thing in the segment (as cameras write it).
+            int nextIfdPosition = calcTagOffset(firstIfdOffset, tagCount);
+            int thumbnailIfdOffset = tiff.getInt(nextIfdPosition);
+            tiff.putInt(nextIfdPosition, 0);
+            if (thumbnailIfdOffset > 0) {
+                int[] thumbnail = findThumbnail(tiff, thumbnailIfdOffset);
+                if (thumbnail != null && thumbnail[0] > 0 && thumbnail[0] + thumbnail[1] >= tiff.limit()) {
+                    byte[] trimmed = new byte[headerOffsetSize + thumbnail[0]];
+                    System.arraycopy(exifSegment, 0, trimmed, 0, trimmed.length);
+                    return trimmed;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            Log.d(TAG, "patchExifSegment: malformed Exif", e);
+            return null;
+        }
+        return exifSegment;
+    }
+
+    private static void patchExifIfd(ByteBuffer tiff, int ifdOffset, int width, int height) {
+        int tagCount = tiff.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < tagCount; i++) {
+            int tagOffset = calcTagOffset(ifdOffset, i);
+            int tagType = tiff.getShort(tagOffset) & 0xFFFF;
+            if (tagType == PIXEL_X_DIMENSION_TAG_TYPE) {
+                putTagValue(tiff, tagOffset, width);
+            } else if (tagType == PIXEL_Y_DIMENSION_TAG_TYPE) {
+                putTagValue(tiff, tagOffset, height);
+            }
+        }
+    }
+
+    /**
+     * Writes a single SHORT or LONG value into the value field of a tag, other formats are left as they are.
+     */
+    private static void putTagValue(ByteBuffer tiff, int tagOffset, int value) {
+        int formatCode = tiff.getShort(tagOffset + 2);
+        if (tiff.getInt(tagOffset + 4) != 1) {
+            return;
+        }
+        if (formatCode == FORMAT_UNSIGNED_SHORT) {
+            tiff.putShort(tagOffset + 8, (short) value);
+        } else if (formatCode == FORMAT_UNSIGNED_LONG) {
+            tiff.putInt(tagOffset + 8, value);
+        }
+    }
+
+    /**
+     * @return TIFF structure of a raw Exif segment in its byte order, or null if it isn't one
+     */
+    @Nullable
+    private static ByteBuffer tiffOf(@NonNull byte[] exifSegment) {
+        final int headerOffsetSize = JPEG_EXIF_SEGMENT_PREAMBLE.length();
+        if (!hasJpegExifPreamble(exifSegment, exifSegment.length) || exifSegment.length < headerOffsetSize + 8) {
+            return null;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(exifSegment, headerOffsetSize, exifSegment.length - headerOffsetSize)
+                .slice();
+        short byteOrderIdentifier = tiff.getShort(0);
+        if (byteOrderIdentifier == MOTOROLA_TIFF_MAGIC_NUMBER) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else if (byteOrderIdentifier == INTEL_TIFF_MAGIC_NUMBER) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            return null;
+        }
+        return tiff;
+    }
+
+    /**
+     * @return offset (in the TIFF structure) and length of the thumbnail of a raw Exif segment,
+     * or null if it has none
+     */
+    @Nullable
+    private static int[] findThumbnail(@NonNull byte[] exifSegment) {
+        ByteBuffer tiff = tiffOf(exifSegment);
+        if (tiff == null) {
+            return null;
+        }
+        try {
+            int firstIfdOffset = tiff.getInt(4);
+            int thumbnailIfdOffset = tiff.getInt(calcTagOffset(firstIfdOffset, tiff.getShort(firstIfdOffset) & 0xFFFF));
+            return thumbnailIfdOffset > 0 ? findThumbnail(tiff, thumbnailIfdOffset) : null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return offset and length of the thumbnail data that IFD1 points to, or null if it has none
+     */
+    @Nullable
+    private static int[] findThumbnail(ByteBuffer tiff, int ifdOffset) {
+        int offset = -1, length = -1;
+        int tagCount = tiff.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < tagCount; i++) {
+            int tagOffset = calcTagOffset(ifdOffset, i);
+            int tagType = tiff.getShort(tagOffset) & 0xFFFF;
+            if (tagType == THUMBNAIL_OFFSET_TAG_TYPE) {
+                offset = tiff.getInt(tagOffset + 8);
+            } else if (tagType == THUMBNAIL_LENGTH_TAG_TYPE) {
+                length = tiff.getInt(tagOffset + 8);
+            }
+        }
+        return offset >= 0 && length >= 0 ? new int[]{offset, length} : null;
+    }
+
     private int parseExifSegment(byte[] tempArray, int exifSegmentLength) throws IOException {
         int read = reader.read(tempArray, exifSegmentLength);
         if (read != exifSegmentLength) {
@@ -126,7 +424,7 @@ public class ImageHeaderParser {
         }
     }
 
-    private boolean hasJpegExifPreamble(byte[] exifData, int exifSegmentLength) {
+    private static boolean hasJpegExifPreamble(byte[] exifData, int exifSegmentLength) {
         boolean result =
                 exifData != null && exifSegmentLength > JPEG_EXIF_SEGMENT_PREAMBLE_BYTES.length;
         if (result) {
@@ -377,6 +675,14 @@ public class ImageHeaderParser {
     }
 
     public static void copyExif(ExifInterface originalExif, int width, int height, String imageOutputPath) {
+        try {
+            copyExif(originalExif, width, height, new ExifInterface(imageOutputPath));
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage());
+        }
+    }
+
+    private static void copyExif(ExifInterface originalExif, int width, int height, ExifInterface newExif) throws IOException {
         String[] attributes = new String[]{
                 ExifInterface.TAG_F_NUMBER,
                 ExifInterface.TAG_DATETIME,
@@ -402,24 +708,18 @@ public class ImageHeaderParser {
                 ExifInterface.TAG_WHITE_BALANCE
         };
 
-        try {
-            ExifInterface newExif = new ExifInterface(imageOutputPath);
-            String value;
-            for (String attribute : attributes) {
-                value = originalExif.getAttribute(attribute);
-                if (!TextUtils.isEmpty(value)) {
-                    newExif.setAttribute(attribute, value);
-                }
+        String value;
+        for (String attribute : attributes) {
+            value = originalExif.getAttribute(attribute);
+            if (!TextUtils.isEmpty(value)) {
+                newExif.setAttribute(attribute, value);
             }
-            newExif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(width));
-            newExif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(height));
-            newExif.setAttribute(ExifInterface.TAG_ORIENTATION, "0");
-
-            newExif.saveAttributes();
-
-        } catch (IOException e) {
-            Log.d(TAG, e.getMessage());
         }
+        newExif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(width));
+        newExif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(height));
+        newExif.setAttribute(ExifInterface.TAG_ORIENTATION, "0");
+
+        newExif.saveAttributes();
     }
 
 }
@@ -11,15 +11,21 @@ import android.util.AttributeSet;
 
 import com.yalantis.ucrop.R;
 import com.yalantis.ucrop.callback.BitmapCropCallback;
+import com.yalantis.ucrop.callback.BitmapResultCallback;
 import com.yalantis.ucrop.callback.CropBoundsChangeListener;
+import com.yalantis.ucrop.callback.CropProgressListener;
 import com.yalantis.ucrop.model.CropParameters;
 import com.yalantis.ucrop.model.ImageState;
 import com.yalantis.ucrop.task.BitmapCropTask;
+import com.yalantis.ucrop.task.CropEngine;
+import com.yalantis.ucrop.task.HybridCropEngine;
+import com.yalantis.ucrop.task.PlatformCropEngine;
 import com.yalantis.ucrop.util.CubicEasing;
 import com.yalantis.ucrop.util.RectUtils;
 
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.List;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -36,6 +42,12 @@ public class CropImageView extends TransformImageView {
     public static final int DEFAULT_MAX_BITMAP_SIZE = 0;
     public static final int DEFAULT_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION = 500;
     public static final float DEFAULT_MAX_SCALE_MULTIPLIER = 10.0f;
+    public static final long DEFAULT_CROP_MEMORY_BUDGET = 8 * 1024 * 1024;
+    public static final long DEFAULT_CROP_MEMORY_LIMIT = 0;
+    public static final int DEFAULT_CROP_THREAD_COUNT = 0;
+    public static final boolean DEFAULT_SNAP_TO_JPEG_BLOCKS = false;
+    public static final boolean DEFAULT_PROGRESSIVE_LOAD = true;
+    public static final boolean DEFAULT_TILED_ZOOM = false;
     public static final float SOURCE_IMAGE_ASPECT_RATIO = 0f;
     public static final float DEFAULT_ASPECT_RATIO = SOURCE_IMAGE_ASPECT_RATIO;
 
@@ -47,12 +59,20 @@ public class CropImageView extends TransformImageView {
     private float mMaxScaleMultiplier = DEFAULT_MAX_SCALE_MULTIPLIER;
 
     private CropBoundsChangeListener mCropBoundsChangeListener;
+    private CropProgressListener mCropProgressListener;
+    private BitmapCropTask mCropTask;
+    private PendingCrop mPendingCrop;
+    private List<CropEngine> mCropEngines;
 
     private Runnable mWrapCropBoundsRunnable, mZoomImageToPositionRunnable = null;
 
     private float mMaxScale, mMinScale;
     private int mMaxResultImageSizeX = 0, mMaxResultImageSizeY = 0;
     private long mImageToWrapCropBoundsAnimDuration = DEFAULT_IMAGE_TO_CROP_BOUNDS_ANIM_DURATION;
+    private long mCropMemoryBudget = DEFAULT_CROP_MEMORY_BUDGET;
+    private long mCropMemoryLimit = DEFAULT_CROP_MEMORY_LIMIT;
+    private int mCropThreadCount = DEFAULT_CROP_THREAD_COUNT;
+    private boolean mSnapToJpegBlocks = DEFAULT_SNAP_TO_JPEG_BLOCKS;
 
     public CropImageView(Context context) {
         this(context, null);
@@ -69,23 +89,121 @@ public class CropImageView extends TransformImageView {
     /**
      * Cancels all current animations and sets image to fill crop area (without animation).
      * Then creates and executes {@link BitmapCropTask} with proper parameters.
+     * While the preview is shown (see {@link #setProgressiveLoad(boolean)}) the crop starts once the full image is loaded.
      */
-    public void cropAndSaveImage(@NonNull Bitmap.CompressFormat compressFormat, int compressQuality,
-                                 @Nullable BitmapCropCallback cropCallback) {
-        cancelAllAnimations();
-        setImageToWrapCropBounds(false);
+    public void cropAndSaveImage(@NonNull final Bitmap.CompressFormat compressFormat, final int compressQuality,
+                                 @Nullable final BitmapCropCallback cropCallback) {
+        if (isPreviewShown()) {
+            mPendingCrop = new PendingCrop() {
+                @Override
+                public void run() {
+                    cropAndSaveImage(compressFormat, compressQuality, cropCallback);
+                }
 
-        final ImageState imageState = new ImageState(
-                mCropRect, RectUtils.trapToRect(mCurrentImageCorners),
-                getCurrentScale(), getCurrentAngle());
+                @Override
+                void fail(@NonNull Exception e) {
+                    if (cropCallback != null) {
+                        cropCallback.onCropFailure(e);
+                    }
+                }
+            };
+            return;
+        }
+
+        final ImageState imageState = prepareCrop();
 
         final CropParameters cropParameters = new CropParameters(
                 mMaxResultImageSizeX, mMaxResultImageSizeY,
                 compressFormat, compressQuality,
-                getImageInputPath(), getImageOutputPath(), getExifInfo());
+                getImageInputUri(), getImageOutputUri(), getExifInfo(),
+                mCropMemoryBudget, mCropMemoryLimit, mCropThreadCount, mSnapToJpegBlocks);
+
+        startCrop(new BitmapCropTask(getContext(), getSourceBitmap(), imageState, cropParameters, cropCallback));
+    }
+
+    /**
+     * Same as {@link #cropAndSaveImage(Bitmap.CompressFormat, int, BitmapCropCallback)}, but the result
+     * is drawn straight into a Bitmap: nothing is encoded, written to the output Uri and decoded back.
+     *
+     * @param reuseBitmap - mutable ARGB_8888 Bitmap to draw the result into if it can hold it, otherwise
+     *                    a new one is created. It must not be drawn until the callback is called, its pixels
+     *                    are overwritten even if the crop fails.
+     */
+    public void cropToBitmap(@Nullable final Bitmap reuseBitmap, @Nullable final BitmapResultCallback resultCallback) {
+        if (isPreviewShown()) {
+            mPendingCrop = new PendingCrop() {
+                @Override
+                public void run() {
+                    cropToBitmap(reuseBitmap, resultCallback);
+                }
+
+                @Override
+                void fail(@NonNull Exception e) {
+                    if (resultCallback != null) {
+                        resultCallback.onCropFailure(e);
+                    }
+                }
+            };
+            return;
+        }
+
+        final ImageState imageState = prepareCrop();
+
+        final CropParameters cropParameters = new CropParameters(
+                mMaxResultImageSizeX, mMaxResultImageSizeY,
+                null, 0,
+                getImageInputUri(), null, getExifInfo(),
+                mCropMemoryBudget, mCropMemoryLimit, mCropThreadCount, false);
+
+        startCrop(new BitmapCropTask(getContext(), getSourceBitmap(), imageState, cropParameters, reuseBitmap, resultCallback));
+    }
+
+    /**
+     * Stops the running crop, if any. Its callback is not called then and a partially written
+     * output file is removed. Native crop stops within a few rows of the result image.
+     *
+     * @return - true if a running crop was cancelled
+     */
+    public boolean cancelCrop() {
+        if (mPendingCrop != null) {
+            mPendingCrop = null;
+            return true;
+        }
+        if (mCropTask == null || mCropTask.getStatus() == AsyncTask.Status.FINISHED) {
+            return false;
+        }
+        return mCropTask.cancel(false);
+    }
+
+    /**
+     * @return - how the last crop was done, one of {@link BitmapCropTask} strategies
+     */
+    @BitmapCropTask.CropStrategy
+    public int getCropStrategy() {
+        return mCropTask != null ? mCropTask.getCropStrategy() : BitmapCropTask.STRATEGY_NONE;
+    }
 
-        new BitmapCropTask(getViewBitmap(), imageState, cropParameters, cropCallback)
-                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    private void startCrop(@NonNull BitmapCropTask cropTask) {
+        cropTask.setProgressListener(mCropProgressListener);
+        if (mCropEngines != null) {
+            cropTask.setCropEngines(mCropEngines);
+        }
+        mCropTask = cropTask;
+        cropTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Cancels all current animations and sets image to fill crop area (without animation).
+     *
+     * @return - state of the image to crop
+     */
+    private ImageState prepareCrop() {
+        cancelAllAnimations();
+        setImageToWrapCropBounds(false);
+
+        return new ImageState(
+                mCropRect, RectUtils.trapToRect(mCurrentImageCorners),
+                getCurrentScale(), getCurrentAngle(), isBitmapOriented());
     }
 
     /**
@@ -157,6 +275,23 @@ public class CropImageView extends TransformImageView {
         mCropBoundsChangeListener = cropBoundsChangeListener;
     }
 
+    /**
+     * Listener is given to crops started after this call.
+     */
+    public void setCropProgressListener(@Nullable CropProgressListener cropProgressListener) {
+        mCropProgressListener = cropProgressListener;
+    }
+
+    /**
+     * Sets engines that crops started after this call are tried with, in order: the first one that can crop
+     * the source into the output format does it, the next one is tried if it fails.
+     *
+     * @param cropEngines - null for the native engine followed by {@link HybridCropEngine} and {@link PlatformCropEngine}
+     */
+    public void setCropEngines(@Nullable List<CropEngine> cropEngines) {
+        mCropEngines = cropEngines;
+    }
+
     /**
      * This method sets maximum width for resulting cropped image
      *
@@ -175,6 +310,50 @@ public class CropImageView extends TransformImageView {
         mMaxResultImageSizeY = maxResultImageSizeY;
     }
 
+    /**
+     * This method sets how much native memory the resulting image may take while it is being saved.
+     * Result is rendered and encoded in horizontal bands that fit into this budget,
+     * so even very tall results (panoramas, scanned documents) can be saved.
+     *
+     * @param cropMemoryBudget - size in bytes, 0 - keep the whole result image in memory
+     */
+    public void setCropMemoryBudget(@IntRange(from = 0) long cropMemoryBudget) {
+        mCropMemoryBudget = cropMemoryBudget;
+    }
+
+    /**
+     * This method limits how much native memory a crop may take at its peak. Before anything is decoded
+     * the crop is planned to fit: result bands are made smaller, then a JPEG source is decoded at reduced
+     * scale, then the source is decoded by the platform with a sample size (result loses some detail).
+     * Strategy that was used is reported by {@link #getCropStrategy()}.
+     *
+     * @param cropMemoryLimit - size in bytes, 0 - half of the memory the device has free
+     */
+    public void setCropMemoryLimit(@IntRange(from = 0) long cropMemoryLimit) {
+        mCropMemoryLimit = cropMemoryLimit;
+    }
+
+    /**
+     * This method limits number of threads that render the resulting image.
+     *
+     * @param cropThreadCount - max number of threads, 0 - one per available core
+     */
+    public void setCropThreadCount(@IntRange(from = 0) int cropThreadCount) {
+        mCropThreadCount = cropThreadCount;
+    }
+
+    /**
+     * JPEG that is only cropped, rotated by a multiple of 90 degrees or flipped is saved without
+     * re-encoding when the crop rect lies on the DCT block grid of the source (8 or 16 pixels).
+     * This method allows to move the rect by less than a block to get there,
+     * actual offset of the result is passed to {@link BitmapCropCallback}.
+     *
+     * @param snapToJpegBlocks - true to shift the crop rect onto the block grid when possible
+     */
+    public void setSnapToJpegBlocks(boolean snapToJpegBlocks) {
+        mSnapToJpegBlocks = snapToJpegBlocks;
+    }
+
     /**
      * This method sets animation duration for image to wrap the crop bounds
      *
@@ -402,6 +581,37 @@ public class CropImageView extends TransformImageView {
         }
     }
 
+    /**
+     * Scale bounds follow the size of the full image. Crop that was asked for while the preview
+     * was shown starts now.
+     */
+    @Override
+    protected void onPreviewReplaced() {
+        super.onPreviewReplaced();
+        if (mBitmapLaidOut) {
+            calculateImageScaleBounds();
+        }
+
+        if (mPendingCrop != null) {
+            PendingCrop pendingCrop = mPendingCrop;
+            mPendingCrop = null;
+            pendingCrop.run();
+        }
+    }
+
+    /**
+     * Crop that was asked for while the preview was shown fails with the error the image failed to load with.
+     */
+    @Override
+    protected void onImageLoadFailure(@NonNull Exception e) {
+        super.onImageLoadFailure(e);
+        if (mPendingCrop != null) {
+            PendingCrop pendingCrop = mPendingCrop;
+            mPendingCrop = null;
+            pendingCrop.fail(e);
+        }
+    }
+
     /**
      * This method checks whether current image fills the crop bounds.
      */
@@ -512,6 +722,16 @@ public class CropImageView extends TransformImageView {
         }
     }
 
+    /**
+     * Crop that waits for the full image to replace the preview: it is run once it does,
+     * or fails if the image can't be loaded.
+     */
+    private abstract static class PendingCrop implements Runnable {
+
+        abstract void fail(@NonNull Exception e);
+
+    }
+
     /**
      * This Runnable is used to animate an image so it fills the crop bounds entirely.
      * Given values are interpolated during the animation time.
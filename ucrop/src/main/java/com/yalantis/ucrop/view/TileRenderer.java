@@ -0,0 +1,342 @@
+package com.yalantis.ucrop.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+
+import com.yalantis.ucrop.util.BitmapLoadUtils;
+import com.yalantis.ucrop.util.FileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Draws full resolution tiles of the source image over the preview Bitmap when it is zoomed in
+ * so far that the preview is upscaled. Tiles of the visible part are decoded with {@link BitmapRegionDecoder}
+ * on a few background threads and kept in an LRU cache of bounded size.
+ * <p/>
+ * Tiles are decoded at a power of two sample size that keeps them at least as sharp as the screen,
+ * while those are loading tiles of the previous zoom level (or the preview) are shown.
+ * All methods except the decoding itself are called on the main thread.
+ */
+public class TileRenderer {
+
+    private static final String TAG = "TileRenderer";
+
+    private static final int TILE_SIZE = 512;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+    private static final int MIN_CACHE_SIZE = 8 * TILE_BYTES;
+    private static final int DECODER_THREADS = 2;
+
+    private final View mView;
+    private final Context mContext;
+    private final Uri mImageUri;
+    private final int mSourceWidth, mSourceHeight;
+    private final int mExifDegrees, mExifTranslation;
+
+    private final LruCache<Long, Bitmap> mTileCache;
+    private final Map<Long, Future<?>> mPendingTiles = new HashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    // Decoders are shared by the threads: one can only decode one region at a time
+    private final ConcurrentLinkedQueue<BitmapRegionDecoder> mIdleDecoders = new ConcurrentLinkedQueue<>();
+    private final List<BitmapRegionDecoder> mDecoders = new ArrayList<>();
+    private final List<ParcelFileDescriptor> mDescriptors = new ArrayList<>();
+    private volatile boolean mReleased;
+    private volatile boolean mFailed;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mSourceToView = new Matrix();
+    private final Matrix mViewToSource = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileRect = new RectF();
+    private final Rect mParentRect = new Rect();
+    private final Set<Long> mVisibleTiles = new HashSet<>();
+
+    /**
+     * @param view          - view to invalidate when tiles are decoded
+     * @param imageUri      - file or content Uri of the source image
+     * @param sourceWidth   - width of the source image as it is stored, before Exif orientation
+     * @param sourceHeight  - height of the source image as it is stored, before Exif orientation
+     * @param cacheSize     - max size of decoded tiles in bytes
+     */
+    public TileRenderer(@NonNull View view, @NonNull Uri imageUri,
+                        int sourceWidth, int sourceHeight, int exifDegrees, int exifTranslation,
+                        int cacheSize) {
+        mView = view;
+        mContext = view.getContext().getApplicationContext();
+        mImageUri = imageUri;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mExifDegrees = exifDegrees;
+        mExifTranslation = exifTranslation;
+
+        mTileCache = new LruCache<Long, Bitmap>(Math.max(cacheSize, MIN_CACHE_SIZE)) {
+            @Override
+            protected int sizeOf(Long key, Bitmap tile) {
+                return tile.getRowBytes() * tile.getHeight();
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(DECODER_THREADS, DECODER_THREADS,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Draws tiles that are decoded and requests the missing ones, if the preview is sharp enough nothing is drawn.
+     *
+     * @param canvas         - canvas in the coordinates of the image matrix
+     * @param imageMatrix    - current matrix of the preview drawable
+     * @param drawableWidth  - width of the preview drawable, with Exif orientation applied
+     * @param drawableHeight - height of the preview drawable, with Exif orientation applied
+     * @param viewport       - visible rect in the coordinates of the canvas
+     */
+    public void draw(@NonNull Canvas canvas, @NonNull Matrix imageMatrix,
+                     int drawableWidth, int drawableHeight, @NonNull RectF viewport) {
+        mVisibleTiles.clear();
+        if (mFailed || drawableWidth <= 0 || drawableHeight <= 0) {
+            return;
+        }
+
+        setSourceToDrawable(mSourceToView, drawableWidth, drawableHeight);
+        // Source pixels per preview pixel, tiles with less than that add nothing
+        float previewSampleSize = 1f / mSourceToView.mapRadius(1f);
+        mSourceToView.postConcat(imageMatrix);
+
+        mVisibleRect.set(viewport);
+        if (mSourceToView.invert(mViewToSource)) {
+            mViewToSource.mapRect(mVisibleRect);
+        }
+        if (!mVisibleRect.intersect(0, 0, mSourceWidth, mSourceHeight)) {
+            cancelPendingTiles(mVisibleTiles);
+            return;
+        }
+
+        // Largest power of two that keeps the tiles at least as sharp as the screen, raised
+        // until the visible tiles take at most half of the cache so they don't push each other out
+        float sourcePerScreen = 1f / mSourceToView.mapRadius(1f);
+        int sampleSize = 1;
+        while (sampleSize * 2 <= sourcePerScreen) {
+            sampleSize *= 2;
+        }
+        while (sampleSize < previewSampleSize && (long) countTiles(sampleSize) * TILE_BYTES > mTileCache.maxSize() / 2) {
+            sampleSize *= 2;
+        }
+
+        if (sampleSize >= previewSampleSize) {
+            cancelPendingTiles(mVisibleTiles);
+            return;
+        }
+
+        canvas.save();
+        canvas.concat(mSourceToView);
+        int tileSpan = TILE_SIZE * sampleSize;
+        int firstColumn = (int) (mVisibleRect.left / tileSpan), lastColumn = (int) Math.ceil(mVisibleRect.right / tileSpan);
+        int firstRow = (int) (mVisibleRect.top / tileSpan), lastRow = (int) Math.ceil(mVisibleRect.bottom / tileSpan);
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                long key = tileKey(sampleSize, column, row);
+                mVisibleTiles.add(key);
+                setTileRect(mTileRect, tileSpan, column, row);
+
+                Bitmap tile = mTileCache.get(key);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    drawParentTile(canvas, sampleSize, previewSampleSize, column, row);
+                    requestTile(key, sampleSize, mTileRect);
+                }
+            }
+        }
+        canvas.restore();
+
+        cancelPendingTiles(mVisibleTiles);
+    }
+
+    /**
+     * Stops decoding and drops the tiles, the renderer can't be used after that.
+     */
+    public void release() {
+        mReleased = true;
+        mExecutor.shutdownNow();
+        mPendingTiles.clear();
+        mTileCache.evictAll();
+        // Recycling waits for the running decode, it is done off the main thread
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDecoders) {
+                    for (BitmapRegionDecoder decoder : mDecoders) {
+                        decoder.recycle();
+                    }
+                    for (ParcelFileDescriptor descriptor : mDescriptors) {
+                        BitmapLoadUtils.close(descriptor);
+                    }
+                    mDecoders.clear();
+                    mDescriptors.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Same mapping as the Exif orientation the image is drawn with, scaled to the drawable.
+     */
+    private void setSourceToDrawable(@NonNull Matrix matrix, int drawableWidth, int drawableHeight) {
+        BitmapLoadUtils.setExifMatrix(matrix, mSourceWidth, mSourceHeight, mExifDegrees, mExifTranslation,
+                drawableWidth, drawableHeight);
+    }
+
+    private int countTiles(int sampleSize) {
+        int tileSpan = TILE_SIZE * sampleSize;
+        int columns = (int) Math.ceil(mVisibleRect.right / tileSpan) - (int) (mVisibleRect.left / tileSpan);
+        int rows = (int) Math.ceil(mVisibleRect.bottom / tileSpan) - (int) (mVisibleRect.top / tileSpan);
+        return columns * rows;
+    }
+
+    private void setTileRect(@NonNull RectF rect, int tileSpan, int column, int row) {
+        rect.set(column * tileSpan, row * tileSpan,
+                Math.min((column + 1) * tileSpan, mSourceWidth), Math.min((row + 1) * tileSpan, mSourceHeight));
+    }
+
+    /**
+     * Draws the part of a lower resolution tile that covers the missing one, if there is such tile in the cache.
+     */
+    private void drawParentTile(@NonNull Canvas canvas, int sampleSize, float previewSampleSize, int column, int row) {
+        for (int parentSampleSize = sampleSize * 2; parentSampleSize < previewSampleSize; parentSampleSize *= 2) {
+            int scale = parentSampleSize / sampleSize;
+            Bitmap parent = mTileCache.get(tileKey(parentSampleSize, column / scale, row / scale));
+            if (parent == null) {
+                continue;
+            }
+
+            int parentSpan = TILE_SIZE * parentSampleSize;
+            float parentLeft = column / scale * parentSpan, parentTop = row / scale * parentSpan;
+            float parentWidth = Math.min(parentLeft + parentSpan, mSourceWidth) - parentLeft;
+            float parentHeight = Math.min(parentTop + parentSpan, mSourceHeight) - parentTop;
+            float scaleX = parent.getWidth() / parentWidth, scaleY = parent.getHeight() / parentHeight;
+            mParentRect.set(
+                    Math.round((mTileRect.left - parentLeft) * scaleX), Math.round((mTileRect.top - parentTop) * scaleY),
+                    Math.round((mTileRect.right - parentLeft) * scaleX), Math.round((mTileRect.bottom - parentTop) * scaleY));
+            canvas.drawBitmap(parent, mParentRect, mTileRect, mPaint);
+            return;
+        }
+    }
+
+    private void requestTile(final long key, final int sampleSize, @NonNull RectF tileRect) {
+        if (mPendingTiles.containsKey(key) || mReleased) {
+            return;
+        }
+
+        final Rect region = new Rect();
+        tileRect.round(region);
+        mPendingTiles.put(key, mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap tile = decodeTile(region, sampleSize);
+                mView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingTiles.remove(key);
+                        if (tile != null && !mReleased) {
+                            mTileCache.put(key, tile);
+                            mView.invalidate();
+                        }
+                    }
+                });
+            }
+        }));
+    }
+
+    private void cancelPendingTiles(@NonNull Set<Long> visibleTiles) {
+        Iterator<Map.Entry<Long, Future<?>>> iterator = mPendingTiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Future<?>> pending = iterator.next();
+            if (!visibleTiles.contains(pending.getKey())) {
+                pending.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs on a decoder thread.
+     */
+    @Nullable
+    private Bitmap decodeTile(@NonNull Rect region, int sampleSize) {
+        BitmapRegionDecoder decoder = obtainDecoder();
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            return decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException | IllegalStateException | OutOfMemoryError e) {
+            // Decoder is recycled when the renderer was released meanwhile
+            Log.w(TAG, "decodeTile: " + region, e);
+            return null;
+        } finally {
+            mIdleDecoders.offer(decoder);
+        }
+    }
+
+    @Nullable
+    private BitmapRegionDecoder obtainDecoder() {
+        BitmapRegionDecoder decoder = mIdleDecoders.poll();
+        if (decoder != null || mFailed) {
+            return decoder;
+        }
+
+        synchronized (mDecoders) {
+            if (mReleased) {
+                return null;
+            }
+            ParcelFileDescriptor descriptor = null;
+            try {
+                descriptor = FileUtils.openFileDescriptor(mContext, mImageUri, "r");
+                decoder = BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false);
+            } catch (IOException e) {
+                Log.w(TAG, "obtainDecoder: no region decoder for " + mImageUri, e);
+                BitmapLoadUtils.close(descriptor);
+                mFailed = true;
+                return null;
+            }
+            mDecoders.add(decoder);
+            mDescriptors.add(descriptor);
+            return decoder;
+        }
+    }
+
+    private static long tileKey(int sampleSize, int column, int row) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 48) | ((long) row << 24) | column;
+    }
+
+}
@@ -2,6 +2,7 @@ package com.yalantis.ucrop.view;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
@@ -10,14 +11,18 @@ import android.util.AttributeSet;
 import android.util.Log;
 
 import com.yalantis.ucrop.callback.BitmapLoadCallback;
+import com.yalantis.ucrop.callback.BitmapPreviewCallback;
 import com.yalantis.ucrop.model.ExifInfo;
+import com.yalantis.ucrop.model.ImageInfo;
 import com.yalantis.ucrop.util.BitmapLoadUtils;
 import com.yalantis.ucrop.util.FastBitmapDrawable;
+import com.yalantis.ucrop.util.FileUtils;
 import com.yalantis.ucrop.util.RectUtils;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.appcompat.widget.AppCompatImageView;
 
 /**
@@ -33,6 +38,7 @@ public class TransformImageView extends AppCompatImageView {
     private static final int RECT_CORNER_POINTS_COORDS = 8;
     private static final int RECT_CENTER_POINT_COORDS = 2;
     private static final int MATRIX_VALUES_COUNT = 9;
+    private static final int MAX_TILE_CACHE_SIZE = 64 * 1024 * 1024;   // 64 MB
 
     protected final float[] mCurrentImageCorners = new float[RECT_CORNER_POINTS_COORDS];
     protected final float[] mCurrentImageCenter = new float[RECT_CENTER_POINT_COORDS];
@@ -49,10 +55,15 @@ public class TransformImageView extends AppCompatImageView {
 
     protected boolean mBitmapDecoded = false;
     protected boolean mBitmapLaidOut = false;
+    protected boolean mPreviewShown = false;
 
     private int mMaxBitmapSize = 0;
+    private boolean mProgressiveLoad = true;
+    private boolean mTiledZoom = false;
+    private TileRenderer mTileRenderer;
+    private final RectF mTileViewport = new RectF();
 
-    private String mImageInputPath, mImageOutputPath;
+    private Uri mImageInputUri, mImageOutputUri;
     private ExifInfo mExifInfo;
 
     /**
@@ -113,17 +124,75 @@ public class TransformImageView extends AppCompatImageView {
         return mMaxBitmapSize;
     }
 
+    /**
+     * Setter for showing a low resolution version of the image (Exif thumbnail or 1/8 scale JPEG decode)
+     * while the full one is decoded. The image can be moved and scaled right away, crop waits for the full image.
+     *
+     * @param progressiveLoad - true to show the preview first
+     */
+    public void setProgressiveLoad(boolean progressiveLoad) {
+        mProgressiveLoad = progressiveLoad;
+    }
+
+    /**
+     * Setter for drawing full resolution tiles of the source over the preview Bitmap when the image is zoomed in
+     * beyond the resolution of the preview. Tiles of the visible part are decoded in background and cached
+     * up to 1/8 of the heap (64 MB at most). Only opaque images are tiled.
+     *
+     * @param tiledZoom - true to draw sharp tiles when zoomed in
+     */
+    public void setTiledZoom(boolean tiledZoom) {
+        mTiledZoom = tiledZoom;
+        if (!tiledZoom) {
+            releaseTileRenderer();
+        }
+        invalidate();
+    }
+
+    /**
+     * @return - true if the low resolution preview is shown and the full image is still being decoded
+     */
+    public boolean isPreviewShown() {
+        return mPreviewShown;
+    }
+
     @Override
     public void setImageBitmap(final Bitmap bitmap) {
         setImageDrawable(new FastBitmapDrawable(bitmap));
     }
 
+    @Override
+    public void setImageDrawable(@Nullable Drawable drawable) {
+        Drawable previous = getDrawable();
+        if (previous instanceof FastBitmapDrawable && previous != drawable) {
+            // Gives the replaced Bitmap its own mip map flag back
+            ((FastBitmapDrawable) previous).setBitmap(null);
+        }
+        super.setImageDrawable(drawable);
+    }
+
+    public Uri getImageInputUri() {
+        return mImageInputUri;
+    }
+
+    public Uri getImageOutputUri() {
+        return mImageOutputUri;
+    }
+
+    /**
+     * @deprecated use {@link #getImageInputUri()}, null is returned for content Uris
+     */
+    @Deprecated
     public String getImageInputPath() {
-        return mImageInputPath;
+        return FileUtils.getFileUriPath(mImageInputUri);
     }
 
+    /**
+     * @deprecated use {@link #getImageOutputUri()}, null is returned for content Uris
+     */
+    @Deprecated
     public String getImageOutputPath() {
-        return mImageOutputPath;
+        return FileUtils.getFileUriPath(mImageOutputUri);
     }
 
     public ExifInfo getExifInfo() {
@@ -138,28 +207,10 @@ public class TransformImageView extends AppCompatImageView {
      */
     public void setImageUri(@NonNull Uri imageUri, @Nullable Uri outputUri) throws Exception {
         int maxBitmapSize = getMaxBitmapSize();
+        releaseTileRenderer();
 
-        BitmapLoadUtils.decodeBitmapInBackground(getContext(), imageUri, outputUri, maxBitmapSize, maxBitmapSize,
-                new BitmapLoadCallback() {
-
-                    @Override
-                    public void onBitmapLoaded(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo, @NonNull String imageInputPath, @Nullable String imageOutputPath) {
-                        mImageInputPath = imageInputPath;
-                        mImageOutputPath = imageOutputPath;
-                        mExifInfo = exifInfo;
-
-                        mBitmapDecoded = true;
-                        setImageBitmap(bitmap);
-                    }
-
-                    @Override
-                    public void onFailure(@NonNull Exception bitmapWorkerException) {
-                        Log.e(TAG, "onFailure: setImageUri", bitmapWorkerException);
-                        if (mTransformImageListener != null) {
-                            mTransformImageListener.onLoadFailure(bitmapWorkerException);
-                        }
-                    }
-                });
+        BitmapLoadUtils.decodeBitmapInBackground(getContext(), imageUri, outputUri, maxBitmapSize, maxBitmapSize, false,
+                mProgressiveLoad ? new ProgressiveImageLoadCallback() : new ImageLoadCallback());
     }
 
     /**
@@ -200,8 +251,24 @@ public class TransformImageView extends AppCompatImageView {
         updateCurrentImagePoints();
     }
 
+    /**
+     * @return - the image as it is shown, in Exif orientation. When the decoded image is drawn with
+     * orientation, a rotated copy is made on each call, see {@link #getSourceBitmap()}.
+     */
     @Nullable
     public Bitmap getViewBitmap() {
+        if (getDrawable() == null || !(getDrawable() instanceof FastBitmapDrawable)) {
+            return null;
+        } else {
+            return ((FastBitmapDrawable) getDrawable()).getOrientedBitmap();
+        }
+    }
+
+    /**
+     * @return - the decoded image as it is stored, see {@link #isBitmapOriented()}
+     */
+    @Nullable
+    public Bitmap getSourceBitmap() {
         if (getDrawable() == null || !(getDrawable() instanceof FastBitmapDrawable)) {
             return null;
         } else {
@@ -209,6 +276,23 @@ public class TransformImageView extends AppCompatImageView {
         }
     }
 
+    /**
+     * Decoded image is not rotated, Exif orientation is applied when it is drawn.
+     * All sizes and matrices of this view are of the oriented image.
+     *
+     * @return - true if {@link #getSourceBitmap()} is already in Exif orientation
+     */
+    public boolean isBitmapOriented() {
+        Drawable drawable = getDrawable();
+        return !(drawable instanceof FastBitmapDrawable) || !((FastBitmapDrawable) drawable).hasOrientation();
+    }
+
+    private void setImageBitmap(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo) {
+        FastBitmapDrawable drawable = new FastBitmapDrawable(bitmap);
+        drawable.setOrientation(exifInfo.getExifDegrees(), exifInfo.getExifTranslation());
+        setImageDrawable(drawable);
+    }
+
     /**
      * This method translates current image.
      *
@@ -260,6 +344,37 @@ public class TransformImageView extends AppCompatImageView {
         setScaleType(ScaleType.MATRIX);
     }
 
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final Drawable drawable = getDrawable();
+        if (drawable instanceof FastBitmapDrawable) {
+            // Picks the mip level of the Bitmap for the frame
+            ((FastBitmapDrawable) drawable).setScale(getCurrentScale());
+        }
+        super.onDraw(canvas);
+        if (!mTiledZoom || mPreviewShown || drawable == null) {
+            return;
+        }
+
+        TileRenderer tileRenderer = obtainTileRenderer();
+        if (tileRenderer != null) {
+            // Same coordinates ImageView draws the drawable in
+            canvas.save();
+            canvas.translate(getPaddingLeft(), getPaddingTop());
+            mTileViewport.set(-getPaddingLeft(), -getPaddingTop(),
+                    getWidth() - getPaddingLeft(), getHeight() - getPaddingTop());
+            tileRenderer.draw(canvas, mCurrentImageMatrix,
+                    drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), mTileViewport);
+            canvas.restore();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseTileRenderer();
+    }
+
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
@@ -276,6 +391,71 @@ public class TransformImageView extends AppCompatImageView {
         }
     }
 
+    /**
+     * Shows the full image in place of the preview. It stays where it is on the screen: the preview is drawn
+     * at the size the image was expected to have, if the actual size differs the matrix makes up for it.
+     */
+    private void replacePreview(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo) {
+        final Drawable preview = getDrawable();
+        mPreviewShown = false;
+        setImageBitmap(bitmap, exifInfo);
+
+        final Drawable drawable = getDrawable();
+        if (mBitmapLaidOut && preview != null && drawable != null) {
+            int width = drawable.getIntrinsicWidth();
+            int height = drawable.getIntrinsicHeight();
+            float scaleX = preview.getIntrinsicWidth() / (float) width;
+            float scaleY = preview.getIntrinsicHeight() / (float) height;
+            if (scaleX != 1 || scaleY != 1) {
+                RectF initialImageRect = new RectF(0, 0, width, height);
+                mInitialImageCorners = RectUtils.getCornersFromRect(initialImageRect);
+                mInitialImageCenter = RectUtils.getCenterFromRect(initialImageRect);
+
+                mCurrentImageMatrix.preScale(scaleX, scaleY);
+                setImageMatrix(mCurrentImageMatrix);
+            }
+        }
+        onPreviewReplaced();
+    }
+
+    /**
+     * Tiles are decoded from the source Uri, they need the size and orientation read from its header.
+     * Tiles are drawn over the preview, which only looks right when the image is opaque.
+     */
+    @Nullable
+    private TileRenderer obtainTileRenderer() {
+        if (mTileRenderer == null && mExifInfo != null && mImageInputUri != null) {
+            ImageInfo imageInfo = mExifInfo.getImageInfo();
+            if (imageInfo != null && imageInfo.hasSize()
+                    && (imageInfo.getChannels() == 1 || imageInfo.getChannels() == 3)) {
+                int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_TILE_CACHE_SIZE);
+                mTileRenderer = new TileRenderer(this, mImageInputUri,
+                        imageInfo.getWidth(), imageInfo.getHeight(),
+                        mExifInfo.getExifDegrees(), mExifInfo.getExifTranslation(), cacheSize);
+            }
+        }
+        return mTileRenderer;
+    }
+
+    private void releaseTileRenderer() {
+        if (mTileRenderer != null) {
+            mTileRenderer.release();
+            mTileRenderer = null;
+        }
+    }
+
+    /**
+     * Called when the full image has replaced the preview, the matrix is already adjusted to it.
+     */
+    protected void onPreviewReplaced() {
+    }
+
+    /**
+     * Called when the image couldn't be decoded, the preview (if it was shown) is not replaced then.
+     */
+    protected void onImageLoadFailure(@NonNull Exception e) {
+    }
+
     /**
      * When image is laid out {@link #mInitialImageCenter} and {@link #mInitialImageCenter}
      * must be set.
@@ -337,4 +517,45 @@ public class TransformImageView extends AppCompatImageView {
         mCurrentImageMatrix.mapPoints(mCurrentImageCenter, mInitialImageCenter);
     }
 
+    @VisibleForTesting
+    class ImageLoadCallback implements BitmapLoadCallback {
+
+        @Override
+        public void onBitmapLoaded(@NonNull Bitmap bitmap, @NonNull ExifInfo exifInfo, @NonNull Uri imageInputUri, @Nullable Uri imageOutputUri) {
+            mImageInputUri = imageInputUri;
+            mImageOutputUri = imageOutputUri;
+            mExifInfo = exifInfo;
+
+            mBitmapDecoded = true;
+            if (mPreviewShown) {
+                replacePreview(bitmap, exifInfo);
+            } else {
+                setImageBitmap(bitmap, exifInfo);
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception bitmapWorkerException) {
+            Log.e(TAG, "onFailure: setImageUri", bitmapWorkerException);
+            mPreviewShown = false;
+            onImageLoadFailure(bitmapWorkerException);
+            if (mTransformImageListener != null) {
+                mTransformImageListener.onLoadFailure(bitmapWorkerException);
+            }
+        }
+
+    }
+
+    @VisibleForTesting
+    class ProgressiveImageLoadCallback extends ImageLoadCallback implements BitmapPreviewCallback {
+
+        @Override
+        public void onPreviewLoaded(@NonNull Bitmap preview, int width, int height) {
+            mBitmapDecoded = true;
+            mPreviewShown = true;
+            setImageDrawable(new FastBitmapDrawable(preview, width, height));
+        }
+
+    }
+
 }
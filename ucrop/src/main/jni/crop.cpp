@@ -0,0 +1,1883 @@
+//
+// Crop core: fused transform, region decoders, parallel warp and band encoders.
+// JNI glue lives in uCrop.cpp.
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <setjmp.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <vector>
+#include "crop.h"
+#include "sampler.h"
+
+using namespace std;
+
+extern "C" {
+#include "jpeglib.h"
+}
+#include "png.h"
+
+using namespace cimg_library;
+
+#define LOG_TAG "uCrop JNI"
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#else
+#define LOGD(...) ((void) 0)
+#define LOGE(...) (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#endif
+
+#define MAX_THREADS 16
+
+// Result rows each thread renders between two checks for cancellation (and progress reports).
+#define ROWS_PER_CHECK 16
+
+/**
+ * Backward mapping from a pixel of the result image to a pixel of the decoded source image:
+ * sx = a * x + b * y + tx
+ * sy = c * x + d * y + ty
+ */
+struct Affine {
+    double a, b, tx;
+    double c, d, ty;
+};
+
+/**
+ * Returns transform that applies inner first and outer afterwards.
+ */
+static Affine concat(const Affine &outer, const Affine &inner) {
+    Affine r;
+    r.a = outer.a * inner.a + outer.b * inner.c;
+    r.b = outer.a * inner.b + outer.b * inner.d;
+    r.tx = outer.a * inner.tx + outer.b * inner.ty + outer.tx;
+    r.c = outer.c * inner.a + outer.d * inner.c;
+    r.d = outer.c * inner.b + outer.d * inner.d;
+    r.ty = outer.c * inner.tx + outer.d * inner.ty + outer.ty;
+    return r;
+}
+
+/**
+ * Builds single transform from the result image to the decoded source. It replaces the chain of
+ * exif rotation, exif mirroring, resize and free rotation, each of which used to produce
+ * a full size copy of the source image.
+ *
+ * Coordinate spaces (from the source up):
+ * source -> oriented (exif rotation) -> mirrored (exif translation) -> resized -> rotated (crop rect lives here)
+ */
+static Affine buildCropTransform(int sourceWidth, int sourceHeight,
+                                 int left, int top, float angle, float resizeScale,
+                                 int exifDegrees, int exifTranslation) {
+    const int
+    wm1 = sourceWidth - 1, hm1 = sourceHeight - 1,
+    degrees = ((exifDegrees % 360) + 360) % 360;
+    const bool swapSides = degrees == 90 || degrees == 270;
+    const int
+    orientedWidth = swapSides ? sourceHeight : sourceWidth,
+    orientedHeight = swapSides ? sourceWidth : sourceHeight;
+
+    // Oriented image -> source. Same pixel mapping as CImg::rotate() for orthogonal angles.
+    Affine orientation;
+    switch (degrees) {
+        case 90:
+            orientation = {0, 1, 0, -1, 0, (double) hm1};
+            break;
+        case 180:
+            orientation = {-1, 0, (double) wm1, 0, -1, (double) hm1};
+            break;
+        case 270:
+            orientation = {0, -1, (double) wm1, 1, 0, 0};
+            break;
+        default:
+            orientation = {1, 0, 0, 0, 1, 0};
+            break;
+    }
+
+    // Mirrored image -> oriented image.
+    Affine mirror = {1, 0, 0, 0, 1, 0};
+    if (exifTranslation != 1) {
+        mirror = {-1, 0, (double) (orientedWidth - 1), 0, 1, 0};
+    }
+
+    // Resized image -> mirrored image.
+    int resizedWidth = orientedWidth, resizedHeight = orientedHeight;
+    Affine resize = {1, 0, 0, 0, 1, 0};
+    if (resizeScale != 1) {
+        resizedWidth = cimg::max(1, (int) (orientedWidth * resizeScale));
+        resizedHeight = cimg::max(1, (int) (orientedHeight * resizeScale));
+        resize = {(double) orientedWidth / resizedWidth, 0, 0, 0, (double) orientedHeight / resizedHeight, 0};
+    }
+
+    // Result image -> resized image. Crop rect is given in the bounding box of the rotated image.
+    const double
+    rad = angle * cimg::PI / 180,
+    ca = std::cos(rad), sa = std::sin(rad),
+    ux = cimg::abs(resizedWidth * ca), uy = cimg::abs(resizedWidth * sa),
+    vx = cimg::abs(resizedHeight * sa), vy = cimg::abs(resizedHeight * ca),
+    w2 = 0.5 * resizedWidth, h2 = 0.5 * resizedHeight,
+    dw2 = 0.5 * (ux + vx), dh2 = 0.5 * (uy + vy),
+    u0 = left - dw2, v0 = top - dh2;
+
+    const Affine rotation = {
+            ca, sa, w2 + u0 * ca + v0 * sa,
+            -sa, ca, h2 - u0 * sa + v0 * ca
+    };
+
+    return concat(orientation, concat(mirror, concat(resize, rotation)));
+}
+
+static ImageView viewOf(CImg<unsigned char> &img) {
+    const ImageView view = {
+            img.data(), img.width(), img.height(), img.spectrum(),
+            1, img.width(), (long) img.width() * img.height()
+    };
+    return view;
+}
+
+static bool isInterleavedColor(const ImageView &view) {
+    return (view.channels == 3 || view.channels == 4)
+           && view.pixelStride == view.channels && view.channelStride == 1;
+}
+
+/**
+ * Sources the fixed-point kernels read: interleaved RGB(A), or RGB pixels padded to 4 bytes
+ * (color channels of an opaque RGBA Bitmap).
+ */
+static bool isSampledColor(const ImageView &view) {
+    return isInterleavedColor(view) || (view.channels == 3 && view.pixelStride == 4 && view.channelStride == 1);
+}
+
+/**
+ * Bilinear warp of result rows [yStart, yEnd) into dst, whose first row is the result row yStart.
+ * Source coordinates are stepped incrementally along each row, so no per-pixel coordinate buffer
+ * is needed. Coordinates outside of the source are clamped to its edges.
+ * Interleaved RGB(A) rows go to the fixed-point sampleRow kernel, other layouts are interpolated here.
+ */
+static void warpRows(const ImageView &src, const ImageView &dst, const Affine &transform,
+                     BilinearRowFunction sampleRow, int yStart, int yEnd) {
+    const float wm1 = src.width - 1, hm1 = src.height - 1;
+    const int channels = cimg::min(src.channels, dst.channels);
+
+    if (isSampledColor(src) && isInterleavedColor(dst) && src.channels == dst.channels) {
+        for (int y = yStart; y < yEnd; ++y) {
+            sampleRow(src, dst.data + (y - yStart) * dst.rowStride, dst.width,
+                      (float) (transform.b * y + transform.tx), (float) (transform.d * y + transform.ty),
+                      (float) transform.a, (float) transform.c);
+        }
+        return;
+    }
+
+    for (int y = yStart; y < yEnd; ++y) {
+        // Row origin is computed in double precision, so the error of incremental stepping
+        // does not build up over long rows.
+        double sx = transform.b * y + transform.tx;
+        double sy = transform.d * y + transform.ty;
+        unsigned char *out = dst.data + (y - yStart) * dst.rowStride;
+
+        for (int x = 0; x < dst.width; ++x, sx += transform.a, sy += transform.c, out += dst.pixelStride) {
+            const float
+            cx = sx < 0 ? 0 : (sx > wm1 ? wm1 : (float) sx),
+            cy = sy < 0 ? 0 : (sy > hm1 ? hm1 : (float) sy);
+            const int
+            ix = (int) cx, iy = (int) cy,
+            nx = ix < wm1 ? 1 : 0, ny = iy < hm1 ? 1 : 0;
+            const float
+            fx = cx - ix, fy = cy - iy;
+
+            const unsigned char *p00 = src.data + iy * src.rowStride + ix * src.pixelStride;
+            const unsigned char *p01 = p00 + nx * src.pixelStride;
+            const unsigned char *p10 = p00 + ny * src.rowStride;
+            const unsigned char *p11 = p10 + nx * src.pixelStride;
+
+            for (int c = 0; c < channels; ++c) {
+                const long offset = c * src.channelStride;
+                const float
+                top = p00[offset] + fx * (p01[offset] - p00[offset]),
+                bottom = p10[offset] + fx * (p11[offset] - p10[offset]);
+                out[c * dst.channelStride] = (unsigned char) (top + fy * (bottom - top) + 0.5f);
+            }
+        }
+    }
+}
+
+/**
+ * Kinds of result-to-source mappings that have dedicated kernels.
+ * WARP_COPY - source pixels are copied 1:1, possibly transposed or flipped (no interpolation).
+ * WARP_AXIS_ALIGNED - rows and columns map to rows or columns of the source, but are scaled.
+ * WARP_GENERIC - free rotation, every pixel is interpolated from its own source coordinates.
+ */
+enum WarpKind {
+    WARP_GENERIC,
+    WARP_AXIS_ALIGNED,
+    WARP_COPY
+};
+
+// Max drift (in pixels) over the whole result image for which a coefficient still counts as exact.
+static const double AXIS_TOLERANCE = 0.01;
+
+static bool isNear(double value, double target, double extent) {
+    return cimg::abs(value - target) * extent < AXIS_TOLERANCE;
+}
+
+static bool isNearInteger(double value) {
+    return cimg::abs(value - cimg::round(value)) < AXIS_TOLERANCE;
+}
+
+static int clamp(int value, int min, int max) {
+    return value < min ? min : (value > max ? max : value);
+}
+
+/**
+ * Checks whether free rotation is 0 or a multiple of 90 degrees (after exif orientation was applied)
+ * and whether result pixels map onto whole source pixels.
+ */
+static WarpKind classifyTransform(const Affine &t, int width, int height) {
+    const double extent = cimg::max(width, height);
+    const bool
+    aligned = isNear(t.b, 0, extent) && isNear(t.c, 0, extent),
+    transposed = isNear(t.a, 0, extent) && isNear(t.d, 0, extent);
+    if (!aligned && !transposed) {
+        return WARP_GENERIC;
+    }
+
+    const double
+    scaleX = aligned ? t.a : t.c,
+    scaleY = aligned ? t.d : t.b;
+    if ((isNear(scaleX, 1, extent) || isNear(scaleX, -1, extent))
+        && (isNear(scaleY, 1, extent) || isNear(scaleY, -1, extent))
+        && isNearInteger(t.tx) && isNearInteger(t.ty)) {
+        return WARP_COPY;
+    }
+    return WARP_AXIS_ALIGNED;
+}
+
+/**
+ * Copy of result rows [yStart, yEnd) into dst (first row is yStart) for WARP_COPY transforms. Each result row is a run of source
+ * pixels with a constant step: a row (possibly flipped) or a column (transposed).
+ * Plain rows are copied with memcpy.
+ */
+static void copyRows(const ImageView &src, const ImageView &dst, const Affine &transform,
+                     int yStart, int yEnd) {
+    const bool transposed = cimg::abs(transform.a) < 0.5;
+    const int
+    ta = (int) cimg::round(transform.a), tb = (int) cimg::round(transform.b),
+    tc = (int) cimg::round(transform.c), td = (int) cimg::round(transform.d),
+    tx = (int) cimg::round(transform.tx), ty = (int) cimg::round(transform.ty),
+    channels = cimg::min(src.channels, dst.channels);
+    const long step = transposed ? tc * src.rowStride : ta * src.pixelStride;
+    const bool contiguous = step == src.pixelStride && src.pixelStride == dst.pixelStride
+                            && (src.pixelStride == 1 || (src.pixelStride == channels && src.channelStride == 1
+                                                         && dst.channelStride == 1));
+
+    for (int y = yStart; y < yEnd; ++y) {
+        unsigned char *out = dst.data + (y - yStart) * dst.rowStride;
+        // Source of the first and the last pixel in this row.
+        const int
+        sx0 = tb * y + tx, sy0 = td * y + ty,
+        sx1 = sx0 + ta * (dst.width - 1), sy1 = sy0 + tc * (dst.width - 1);
+
+        if (sx0 >= 0 && sx1 >= 0 && sx0 < src.width && sx1 < src.width
+            && sy0 >= 0 && sy1 >= 0 && sy0 < src.height && sy1 < src.height) {
+            const unsigned char *in = src.data + sy0 * src.rowStride + sx0 * src.pixelStride;
+            if (contiguous && src.pixelStride == 1) {
+                for (int c = 0; c < channels; ++c) {
+                    memcpy(out + c * dst.channelStride, in + c * src.channelStride, (size_t) dst.width);
+                }
+            } else if (contiguous) {
+                memcpy(out, in, (size_t) dst.width * channels);
+            } else {
+                for (int x = 0; x < dst.width; ++x, in += step, out += dst.pixelStride) {
+                    for (int c = 0; c < channels; ++c) {
+                        out[c * dst.channelStride] = in[c * src.channelStride];
+                    }
+                }
+            }
+        } else {
+            // Crop rect touches the image border (rounding), clamp each pixel.
+            for (int x = 0; x < dst.width; ++x, out += dst.pixelStride) {
+                const int
+                sx = clamp(sx0 + ta * x, 0, src.width - 1),
+                sy = clamp(sy0 + tc * x, 0, src.height - 1);
+                const unsigned char *in = src.data + sy * src.rowStride + sx * src.pixelStride;
+                for (int c = 0; c < channels; ++c) {
+                    out[c * dst.channelStride] = in[c * src.channelStride];
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Precomputed sampling positions along one axis of the result image for WARP_AXIS_ALIGNED transforms.
+ * Offsets are in bytes relative to the source origin, so a source column and a source row look the same.
+ */
+struct AxisTable {
+    vector<long> offset, next;
+    vector<float> weight;
+
+    void build(int count, double scale, double translate, int sourceSize, long sourceStride) {
+        offset.resize(count);
+        next.resize(count);
+        weight.resize(count);
+        const float max = sourceSize - 1;
+        for (int i = 0; i < count; ++i) {
+            const double s = scale * i + translate;
+            const float c = s < 0 ? 0 : (s > max ? max : (float) s);
+            const int index = (int) c;
+            offset[i] = index * sourceStride;
+            next[i] = index < max ? sourceStride : 0;
+            weight[i] = c - index;
+        }
+    }
+};
+
+/**
+ * Bilinear resampling of result rows [yStart, yEnd) into dst (first row is yStart) for WARP_AXIS_ALIGNED transforms.
+ * Uses per-column and per-row tables instead of computing coordinates for each pixel.
+ */
+static void resampleRows(const ImageView &src, const ImageView &dst,
+                         const AxisTable &columns, const AxisTable &rows, int yStart, int yEnd) {
+    const int channels = cimg::min(src.channels, dst.channels);
+
+    for (int y = yStart; y < yEnd; ++y) {
+        const unsigned char *in = src.data + rows.offset[y];
+        const long nextRow = rows.next[y];
+        const float fy = rows.weight[y];
+        unsigned char *out = dst.data + (y - yStart) * dst.rowStride;
+
+        for (int x = 0; x < dst.width; ++x, out += dst.pixelStride) {
+            const unsigned char *p00 = in + columns.offset[x];
+            const unsigned char *p01 = p00 + columns.next[x];
+            const unsigned char *p10 = p00 + nextRow;
+            const unsigned char *p11 = p01 + nextRow;
+            const float fx = columns.weight[x];
+
+            for (int c = 0; c < channels; ++c) {
+                const long offset = c * src.channelStride;
+                const float
+                top = p00[offset] + fx * (p01[offset] - p00[offset]),
+                bottom = p10[offset] + fx * (p11[offset] - p10[offset]);
+                out[c * dst.channelStride] = (unsigned char) (top + fy * (bottom - top) + 0.5f);
+            }
+        }
+    }
+}
+
+/**
+ * Renders result rows with the cheapest kernel that is exact for the given transform.
+ */
+struct CropRenderer {
+    const ImageView src;
+    const Affine transform;
+    const int width, height;
+    WarpKind kind;
+    AxisTable columns, rows;
+    BilinearRowFunction sampleRow;
+
+    CropRenderer(const ImageView &source, const Affine &t, int resultWidth, int resultHeight)
+            : src(source), transform(t), width(resultWidth), height(resultHeight) {
+        kind = classifyTransform(transform, width, height);
+        sampleRow = selectBilinearRow();
+        if (kind == WARP_AXIS_ALIGNED) {
+            if (cimg::abs(transform.a) >= cimg::abs(transform.c)) {
+                // Result columns walk along source columns, result rows along source rows.
+                columns.build(width, transform.a, transform.tx, src.width, src.pixelStride);
+                rows.build(height, transform.d, transform.ty, src.height, src.rowStride);
+            } else {
+                // Transposed: result columns walk along source rows and vice versa.
+                columns.build(width, transform.c, transform.ty, src.height, src.rowStride);
+                rows.build(height, transform.b, transform.tx, src.width, src.pixelStride);
+            }
+        }
+    }
+
+    /**
+     * Renders result rows [yStart, yEnd) into band, whose first row is the result row yStart.
+     */
+    void render(const ImageView &band, int yStart, int yEnd) const {
+        switch (kind) {
+            case WARP_COPY:
+                copyRows(src, band, transform, yStart, yEnd);
+                break;
+            case WARP_AXIS_ALIGNED:
+                resampleRows(src, band, columns, rows, yStart, yEnd);
+                break;
+            default:
+                warpRows(src, band, transform, sampleRow, yStart, yEnd);
+                break;
+        }
+    }
+};
+
+/**
+ * Fixed set of worker threads for splitting a piece of work into independent chunks.
+ * The calling thread works on the chunks too, so a pool of size 1 has no worker threads at all.
+ */
+class ThreadPool {
+public:
+    typedef void (*Job)(void *arg, int index);
+
+    explicit ThreadPool(int threads) : job(0), arg(0), count(0), next(0), pending(0), generation(0), stopping(false) {
+        pthread_mutex_init(&mutex, 0);
+        pthread_cond_init(&started, 0);
+        pthread_cond_init(&finished, 0);
+        for (int i = 1; i < threads; ++i) {
+            pthread_t thread;
+            if (pthread_create(&thread, 0, work, this)) {
+                // Keep the threads that could be started.
+                break;
+            }
+            workers.push_back(thread);
+        }
+    }
+
+    ~ThreadPool() {
+        pthread_mutex_lock(&mutex);
+        stopping = true;
+        pthread_cond_broadcast(&started);
+        pthread_mutex_unlock(&mutex);
+        for (size_t i = 0; i < workers.size(); ++i) {
+            pthread_join(workers[i], 0);
+        }
+        pthread_cond_destroy(&finished);
+        pthread_cond_destroy(&started);
+        pthread_mutex_destroy(&mutex);
+    }
+
+    int size() const {
+        return (int) workers.size() + 1;
+    }
+
+    /**
+     * Calls job(arg, index) for each index in [0, jobCount) and returns when all of them are done.
+     * Jobs must not throw.
+     */
+    void run(Job jobFunction, void *jobArg, int jobCount) {
+        if (workers.empty() || jobCount < 2) {
+            for (int i = 0; i < jobCount; ++i) {
+                jobFunction(jobArg, i);
+            }
+            return;
+        }
+        pthread_mutex_lock(&mutex);
+        job = jobFunction;
+        arg = jobArg;
+        count = jobCount;
+        next = 0;
+        pending = jobCount;
+        ++generation;
+        pthread_cond_broadcast(&started);
+        drain();
+        while (pending > 0) {
+            pthread_cond_wait(&finished, &mutex);
+        }
+        pthread_mutex_unlock(&mutex);
+    }
+
+private:
+    pthread_mutex_t mutex;
+    pthread_cond_t started, finished;
+    vector<pthread_t> workers;
+    Job job;
+    void *arg;
+    int count, next, pending;
+    unsigned int generation;
+    bool stopping;
+
+    /**
+     * Takes chunks until there are none left. Called with the mutex held.
+     */
+    void drain() {
+        while (next < count) {
+            const int index = next++;
+            pthread_mutex_unlock(&mutex);
+            job(arg, index);
+            pthread_mutex_lock(&mutex);
+            if (--pending == 0) {
+                pthread_cond_broadcast(&finished);
+            }
+        }
+    }
+
+    static void *work(void *self) {
+        ThreadPool *pool = (ThreadPool *) self;
+        unsigned int seen = 0;
+        pthread_mutex_lock(&pool->mutex);
+        for (;;) {
+            while (!pool->stopping && pool->generation == seen) {
+                pthread_cond_wait(&pool->started, &pool->mutex);
+            }
+            if (pool->stopping) {
+                break;
+            }
+            seen = pool->generation;
+            pool->drain();
+        }
+        pthread_mutex_unlock(&pool->mutex);
+        return 0;
+    }
+
+    ThreadPool(const ThreadPool &);
+    ThreadPool &operator=(const ThreadPool &);
+};
+
+struct RenderJob {
+    const CropRenderer *renderer;
+    ImageView band;
+    int yStart, yEnd, rowsPerChunk;
+};
+
+static void renderChunk(void *arg, int index) {
+    const RenderJob *job = (const RenderJob *) arg;
+    const int y0 = job->yStart + index * job->rowsPerChunk;
+    const int y1 = cimg::min(job->yEnd, y0 + job->rowsPerChunk);
+    ImageView rows = job->band;
+    rows.data += (y0 - job->yStart) * rows.rowStride;
+    job->renderer->render(rows, y0, y1);
+}
+
+/**
+ * Renders result rows [yStart, yEnd) into band on all threads of the pool. Rows are independent,
+ * so they are split into chunks that are handed out as threads get free. There are a few chunks
+ * per thread, rotated rows are not equally expensive along the band.
+ */
+static void renderParallel(const CropRenderer &renderer, ThreadPool &pool,
+                           const ImageView &band, int yStart, int yEnd) {
+    const int rows = yEnd - yStart;
+    const RenderJob job = {&renderer, band, yStart, yEnd, cimg::max(1, rows / (pool.size() * 4))};
+    pool.run(renderChunk, (void *) &job, (rows + job.rowsPerChunk - 1) / job.rowsPerChunk);
+}
+
+/**
+ * Owned interleaved 8-bit pixel buffer, padded for the sampling kernels.
+ */
+struct PixelBuffer {
+    unsigned char *data;
+    int width, height, channels;
+
+    PixelBuffer() : data(0), width(0), height(0), channels(0) {}
+
+    ~PixelBuffer() {
+        free(data);
+    }
+
+    void allocate(int w, int h, int c) {
+        free(data);
+        data = (unsigned char *) malloc((size_t) w * h * c + SAMPLER_PADDING);
+        if (!data) {
+            width = height = channels = 0;
+            throw CImgInstanceException("Failed to allocate %d x %d x %d pixel buffer", w, h, c);
+        }
+        width = w;
+        height = h;
+        channels = c;
+    }
+
+    ImageView view() const {
+        const ImageView view = {data, width, height, channels, channels, (long) width * channels, 1};
+        return view;
+    }
+
+private:
+    PixelBuffer(const PixelBuffer &);
+    PixelBuffer &operator=(const PixelBuffer &);
+};
+
+/**
+ * Rectangle of source pixels.
+ */
+struct Region {
+    int x, y, width, height;
+};
+
+/**
+ * Returns bounding box of all source pixels that are sampled for the result image,
+ * including the neighbours used by bilinear interpolation.
+ */
+static Region sourceRegion(const Affine &t, int width, int height, int sourceWidth, int sourceHeight) {
+    const double
+    xs[] = {0, (double) width - 1, 0, (double) width - 1},
+    ys[] = {0, 0, (double) height - 1, (double) height - 1};
+    double minX = 0, maxX = 0, minY = 0, maxY = 0;
+    for (int i = 0; i < 4; ++i) {
+        const double
+        sx = t.a * xs[i] + t.b * ys[i] + t.tx,
+        sy = t.c * xs[i] + t.d * ys[i] + t.ty;
+        minX = i ? cimg::min(minX, sx) : sx;
+        maxX = i ? cimg::max(maxX, sx) : sx;
+        minY = i ? cimg::min(minY, sy) : sy;
+        maxY = i ? cimg::max(maxY, sy) : sy;
+    }
+    const int
+    x0 = clamp((int) std::floor(minX), 0, sourceWidth - 1),
+    y0 = clamp((int) std::floor(minY), 0, sourceHeight - 1),
+    x1 = clamp((int) std::floor(maxX) + 1, x0, sourceWidth - 1),
+    y1 = clamp((int) std::floor(maxY) + 1, y0, sourceHeight - 1);
+    const Region region = {x0, y0, x1 - x0 + 1, y1 - y0 + 1};
+    return region;
+}
+
+/**
+ * Decoder that reads only a region of the source image.
+ */
+class ImageReader {
+public:
+    virtual ~ImageReader() {}
+
+    virtual int width() const = 0;
+
+    virtual int height() const = 0;
+
+    /**
+     * Asks decoder to reduce the image by the given factor while decoding (when it can do it cheaply).
+     * {@link #width()} and {@link #height()} return reduced size afterwards.
+     *
+     * @return - factor that was actually applied
+     */
+    virtual int setDownscale(int /*factor*/) {
+        return 1;
+    }
+
+    /**
+     * Decodes source pixels of the given region into an interleaved buffer.
+     */
+    virtual void readRegion(const Region &region, PixelBuffer &pixels) = 0;
+};
+
+struct JpegErrorManager {
+    struct jpeg_error_mgr pub;
+    jmp_buf setjmp_buffer;
+    char message[JMSG_LENGTH_MAX];
+};
+
+static void jpegErrorExit(j_common_ptr cinfo) {
+    JpegErrorManager *err = (JpegErrorManager *) cinfo->err;
+    (*cinfo->err->format_message)(cinfo, err->message);
+    longjmp(err->setjmp_buffer, 1);
+}
+
+/**
+ * Streaming JPEG decoder. Rows above the region are skipped and rows below it are never decoded.
+ * With libjpeg-turbo, skipped rows are not even color converted and columns are cropped at iMCU level.
+ */
+class JpegReader : public ImageReader {
+public:
+    explicit JpegReader(FILE *file) {
+        cinfo.err = jpeg_std_error(&jerr.pub);
+        jerr.pub.error_exit = jpegErrorExit;
+        jpeg_create_decompress(&cinfo);
+        if (setjmp(jerr.setjmp_buffer)) {
+            jpeg_destroy_decompress(&cinfo);
+            throw CImgIOException("Failed to read JPEG header: %s", jerr.message);
+        }
+        jpeg_stdio_src(&cinfo, file);
+        jpeg_read_header(&cinfo, TRUE);
+        jpeg_calc_output_dimensions(&cinfo);
+    }
+
+    ~JpegReader() {
+        jpeg_destroy_decompress(&cinfo);
+    }
+
+    /**
+     * Only gray, YCbCr and RGB images are handled, CMYK is left to CImg.
+     */
+    bool isSupported() const {
+        return cinfo.jpeg_color_space == JCS_GRAYSCALE || cinfo.jpeg_color_space == JCS_YCbCr
+               || cinfo.jpeg_color_space == JCS_RGB;
+    }
+
+    int width() const {
+        return cinfo.output_width;
+    }
+
+    int height() const {
+        return cinfo.output_height;
+    }
+
+    /**
+     * libjpeg can scale by 1/2, 1/4 and 1/8 in the DCT domain, that is much cheaper than
+     * decoding at full size and resizing afterwards.
+     */
+    int setDownscale(int factor) {
+        int denom = 1;
+        while (denom < 8 && denom * 2 <= factor) {
+            denom *= 2;
+        }
+        cinfo.scale_num = 1;
+        cinfo.scale_denom = (unsigned int) denom;
+        if (setjmp(jerr.setjmp_buffer)) {
+            throw CImgIOException("Failed to scale JPEG: %s", jerr.message);
+        }
+        jpeg_calc_output_dimensions(&cinfo);
+        return denom;
+    }
+
+    void readRegion(const Region &region, PixelBuffer &pixels) {
+        if (setjmp(jerr.setjmp_buffer)) {
+            throw CImgIOException("Failed to decode JPEG: %s", jerr.message);
+        }
+        cinfo.out_color_space = cinfo.jpeg_color_space == JCS_GRAYSCALE ? JCS_GRAYSCALE : JCS_RGB;
+        jpeg_start_decompress(&cinfo);
+
+        const int channels = cinfo.output_components;
+        JDIMENSION rowOffset = 0;
+#ifdef LIBJPEG_TURBO_VERSION_NUMBER
+        // Decoded rows start at the iMCU boundary left of the region.
+        JDIMENSION cropX = (JDIMENSION) region.x, cropWidth = (JDIMENSION) region.width;
+        jpeg_crop_scanline(&cinfo, &cropX, &cropWidth);
+        rowOffset = (JDIMENSION) region.x - cropX;
+        jpeg_skip_scanlines(&cinfo, (JDIMENSION) region.y);
+#else
+        rowOffset = (JDIMENSION) region.x;
+#endif
+        JSAMPARRAY row = (*cinfo.mem->alloc_sarray)((j_common_ptr) &cinfo, JPOOL_IMAGE,
+                                                    cinfo.output_width * channels, 1);
+
+        pixels.allocate(region.width, region.height, channels);
+        const size_t rowBytes = (size_t) region.width * channels;
+        while (cinfo.output_scanline < (JDIMENSION) (region.y + region.height)) {
+            const int y = cinfo.output_scanline;
+            jpeg_read_scanlines(&cinfo, row, 1);
+            if (y >= region.y) {
+                memcpy(pixels.data + (y - region.y) * rowBytes, row[0] + rowOffset * channels, rowBytes);
+            }
+        }
+        // Rows below the region are not needed.
+        jpeg_abort_decompress(&cinfo);
+    }
+
+private:
+    struct jpeg_decompress_struct cinfo;
+    JpegErrorManager jerr;
+};
+
+/**
+ * Source rectangle of a crop that maps result pixels 1:1 onto the source (WARP_COPY at full
+ * source resolution), and how result axes run along it.
+ */
+struct LosslessPlan {
+    Region region;
+    // Result x runs along source y (and result y along source x).
+    bool transposed;
+    // Source x / y axis is walked from its end to its start.
+    bool flipX, flipY;
+    // Shift of the region that was needed to put it onto the block grid, in result pixels.
+    int shiftX, shiftY;
+};
+
+/**
+ * Moves start of [start, start + length) onto a multiple of step, or its end if the axis is walked
+ * backwards (that edge becomes left or top of the result). Without snapping only already aligned
+ * ranges are accepted. Returns false if the range does not fit into [0, size) afterwards.
+ */
+static bool alignRange(int &start, int length, int size, int step, bool fromEnd, bool snap) {
+    const int edge = fromEnd ? start + length : start;
+    int delta = (int) cimg::round((double) edge / step) * step - edge;
+    if (delta && !snap) {
+        return false;
+    }
+    if (start + delta < 0 || start + delta + length > size) {
+        // Nearest grid line is outside of the image, try the one on the other side.
+        delta += delta > 0 ? -step : step;
+    }
+    start += delta;
+    return start >= 0 && start + length <= size;
+}
+
+/**
+ * Checks whether the crop can be done on DCT blocks: no free rotation, no resize and the edges
+ * that become left and top of the result on the iMCU grid (others may cut through a block,
+ * the rest of it lies outside of the result image).
+ */
+static bool planLossless(const Affine &t, int width, int height, int sourceWidth, int sourceHeight,
+                         int blockWidth, int blockHeight, bool snap, LosslessPlan &plan) {
+    if (classifyTransform(t, width, height) != WARP_COPY) {
+        return false;
+    }
+    const int
+    ta = (int) cimg::round(t.a), tb = (int) cimg::round(t.b),
+    tc = (int) cimg::round(t.c), td = (int) cimg::round(t.d),
+    tx = (int) cimg::round(t.tx), ty = (int) cimg::round(t.ty);
+
+    plan.transposed = ta == 0;
+    const int
+    stepX = plan.transposed ? tb : ta, lengthX = plan.transposed ? height : width,
+    stepY = plan.transposed ? tc : td, lengthY = plan.transposed ? width : height;
+    plan.flipX = stepX < 0;
+    plan.flipY = stepY < 0;
+
+    Region &region = plan.region;
+    region.x = plan.flipX ? tx - (lengthX - 1) : tx;
+    region.y = plan.flipY ? ty - (lengthY - 1) : ty;
+    region.width = lengthX;
+    region.height = lengthY;
+    const int x = region.x, y = region.y;
+    if (!alignRange(region.x, lengthX, sourceWidth, blockWidth, plan.flipX, snap)
+        || !alignRange(region.y, lengthY, sourceHeight, blockHeight, plan.flipY, snap)) {
+        return false;
+    }
+    // Transform is orthogonal, so its inverse is the transposed matrix.
+    const int dx = region.x - x, dy = region.y - y;
+    plan.shiftX = ta * dx + tc * dy;
+    plan.shiftY = tb * dx + td * dy;
+    return true;
+}
+
+/**
+ * jpegtran-style lossless crop: DCT blocks of the source region are copied into the result,
+ * transposed or mirrored by reordering and negating their coefficients. Nothing is decoded
+ * or quantized again, so the result has exactly the quality of the source.
+ */
+class LosslessJpegCrop {
+public:
+    explicit LosslessJpegCrop(FILE *file) : srcCoefs(0), dstCoefs(0), resultWidth(0), resultHeight(0) {
+        src.err = jpeg_std_error(&jerr.pub);
+        jerr.pub.error_exit = jpegErrorExit;
+        jpeg_create_decompress(&src);
+        if (setjmp(jerr.setjmp_buffer)) {
+            jpeg_destroy_decompress(&src);
+            throw CImgIOException("Failed to read JPEG header: %s", jerr.message);
+        }
+        jpeg_stdio_src(&src, file);
+        jpeg_read_header(&src, TRUE);
+    }
+
+    ~LosslessJpegCrop() {
+        jpeg_destroy_decompress(&src);
+    }
+
+    int width() const {
+        return src.image_width;
+    }
+
+    int height() const {
+        return src.image_height;
+    }
+
+    /**
+     * Size of the iMCU, the unit in which all components are cut at a block boundary.
+     */
+    int blockWidth() const {
+        return src.max_h_samp_factor * DCTSIZE;
+    }
+
+    int blockHeight() const {
+        return src.max_v_samp_factor * DCTSIZE;
+    }
+
+    /**
+     * Reads coefficients of the whole source. Nothing is read from the source file afterwards,
+     * so the result may be written over it.
+     */
+    void read(const LosslessPlan &cropPlan, int width, int height) {
+        if (setjmp(jerr.setjmp_buffer)) {
+            throw CImgIOException("Failed to read JPEG: %s", jerr.message);
+        }
+        plan = cropPlan;
+        resultWidth = width;
+        resultHeight = height;
+
+        // Result coefficient arrays have to be requested before the source is read.
+        dstCoefs = (jvirt_barray_ptr *) (*src.mem->alloc_small)(
+                (j_common_ptr) &src, JPOOL_IMAGE, sizeof(jvirt_barray_ptr) * src.num_components);
+        for (int ci = 0; ci < src.num_components; ++ci) {
+            const jpeg_component_info *comp = src.comp_info + ci;
+            const int
+            h = plan.transposed ? comp->v_samp_factor : comp->h_samp_factor,
+            v = plan.transposed ? comp->h_samp_factor : comp->v_samp_factor,
+            maxH = plan.transposed ? src.max_v_samp_factor : src.max_h_samp_factor,
+            maxV = plan.transposed ? src.max_h_samp_factor : src.max_v_samp_factor,
+            blocksX = divideRoundUp((long) resultWidth * h, maxH * DCTSIZE),
+            blocksY = divideRoundUp((long) resultHeight * v, maxV * DCTSIZE);
+            dstCoefs[ci] = (*src.mem->request_virt_barray)(
+                    (j_common_ptr) &src, JPOOL_IMAGE, FALSE,
+                    (JDIMENSION) (divideRoundUp(blocksX, h) * h), (JDIMENSION) (divideRoundUp(blocksY, v) * v),
+                    (JDIMENSION) v);
+        }
+        srcCoefs = jpeg_read_coefficients(&src);
+    }
+
+    /**
+     * Writes the result from the coefficients taken by {@link #read}.
+     */
+    void write(FILE *file, const unsigned char *exif, size_t exifSize) {
+        struct jpeg_compress_struct dst;
+        // Both sides report errors through the same handler.
+        dst.err = &jerr.pub;
+        jpeg_create_compress(&dst);
+        if (setjmp(jerr.setjmp_buffer)) {
+            jpeg_destroy_compress(&dst);
+            throw CImgIOException("Failed to crop JPEG: %s", jerr.message);
+        }
+
+        jpeg_stdio_dest(&dst, file);
+        jpeg_copy_critical_parameters(&src, &dst);
+        dst.image_width = (JDIMENSION) resultWidth;
+        dst.image_height = (JDIMENSION) resultHeight;
+        dst.optimize_coding = TRUE;
+        if (plan.transposed) {
+            transposeParameters(dst);
+        }
+        if (exif) {
+            dst.write_JFIF_header = FALSE;
+        }
+        jpeg_write_coefficients(&dst, dstCoefs);
+        if (exif) {
+            jpeg_write_marker(&dst, JPEG_APP0 + 1, exif, (unsigned int) exifSize);
+        }
+
+        for (int ci = 0; ci < dst.num_components; ++ci) {
+            copyBlocks(src.comp_info + ci, srcCoefs[ci], dst.comp_info + ci, dstCoefs[ci]);
+        }
+
+        jpeg_finish_compress(&dst);
+        jpeg_destroy_compress(&dst);
+        jpeg_abort_decompress(&src);
+    }
+
+private:
+    struct jpeg_decompress_struct src;
+    JpegErrorManager jerr;
+    jvirt_barray_ptr *srcCoefs, *dstCoefs;
+    LosslessPlan plan;
+    int resultWidth, resultHeight;
+
+    static long divideRoundUp(long a, long b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Sampling factors and quantization tables follow the transposed blocks.
+     */
+    static void transposeParameters(jpeg_compress_struct &dst) {
+        for (int ci = 0; ci < dst.num_components; ++ci) {
+            jpeg_component_info *comp = dst.comp_info + ci;
+            const int h = comp->h_samp_factor;
+            comp->h_samp_factor = comp->v_samp_factor;
+            comp->v_samp_factor = h;
+        }
+        for (int i = 0; i < NUM_QUANT_TBLS; ++i) {
+            JQUANT_TBL *table = dst.quant_tbl_ptrs[i];
+            if (!table) {
+                continue;
+            }
+            for (int row = 0; row < DCTSIZE; ++row) {
+                for (int col = row + 1; col < DCTSIZE; ++col) {
+                    const UINT16 value = table->quantval[row * DCTSIZE + col];
+                    table->quantval[row * DCTSIZE + col] = table->quantval[col * DCTSIZE + row];
+                    table->quantval[col * DCTSIZE + row] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Index of the source block that goes to result block index along one source axis. Region edge
+     * the axis starts from is block aligned in every component.
+     */
+    static int sourceBlock(int index, int start, int length, bool flip, int samples, int maxSamples) {
+        return flip ? (start + length) * samples / (maxSamples * DCTSIZE) - 1 - index
+                    : start * samples / (maxSamples * DCTSIZE) + index;
+    }
+
+    void copyBlocks(const jpeg_component_info *srcComp, jvirt_barray_ptr srcArray,
+                    const jpeg_component_info *dstComp, jvirt_barray_ptr dstArray) {
+        const Region &region = plan.region;
+        // Mirroring a block negates its odd frequencies along the mirrored axis.
+        const bool
+        negateColumns = plan.transposed ? plan.flipY : plan.flipX,
+        negateRows = plan.transposed ? plan.flipX : plan.flipY;
+
+        for (JDIMENSION by = 0; by < dstComp->height_in_blocks; ++by) {
+            JBLOCKROW dstRow = (*src.mem->access_virt_barray)((j_common_ptr) &src, dstArray, by, 1, TRUE)[0];
+            for (JDIMENSION bx = 0; bx < dstComp->width_in_blocks; ++bx) {
+                const int
+                sx = sourceBlock(plan.transposed ? by : bx, region.x, region.width, plan.flipX,
+                                 srcComp->h_samp_factor, src.max_h_samp_factor),
+                sy = sourceBlock(plan.transposed ? bx : by, region.y, region.height, plan.flipY,
+                                 srcComp->v_samp_factor, src.max_v_samp_factor);
+                const JCOEF *in = (*src.mem->access_virt_barray)(
+                        (j_common_ptr) &src, srcArray,
+                        (JDIMENSION) clamp(sy, 0, srcComp->height_in_blocks - 1), 1, FALSE)[0]
+                                  [clamp(sx, 0, srcComp->width_in_blocks - 1)];
+                JCOEF *out = dstRow[bx];
+
+                for (int v = 0; v < DCTSIZE; ++v) {
+                    for (int u = 0; u < DCTSIZE; ++u) {
+                        const JCOEF value = plan.transposed ? in[u * DCTSIZE + v] : in[v * DCTSIZE + u];
+                        const bool negate = ((u & 1) && negateColumns) != ((v & 1) && negateRows);
+                        out[v * DCTSIZE + u] = negate ? (JCOEF) -value : value;
+                    }
+                }
+            }
+        }
+    }
+};
+
+static void pngError(png_structp png, png_const_charp message) {
+    LOGE("PNG error: %s", message);
+    longjmp(png_jmpbuf(png), 1);
+}
+
+static void pngWarning(png_structp, png_const_charp message) {
+    // LOGD is compiled out of host builds
+    (void) message;
+    LOGD("PNG warning: %s", message);
+}
+
+/**
+ * Streaming PNG decoder. Rows are read one by one and those outside of the region are dropped
+ * as they come. Interlaced images need all the passes at once, those are left to CImg.
+ */
+class PngReader : public ImageReader {
+public:
+    explicit PngReader(FILE *file) : info(0) {
+        png = png_create_read_struct(PNG_LIBPNG_VER_STRING, 0, pngError, pngWarning);
+        if (!png) {
+            throw CImgInstanceException("Failed to create PNG reader");
+        }
+        info = png_create_info_struct(png);
+        if (!info || setjmp(png_jmpbuf(png))) {
+            png_destroy_read_struct(&png, &info, 0);
+            throw CImgIOException("Failed to read PNG header");
+        }
+        png_init_io(png, file);
+        png_read_info(png, info);
+    }
+
+    ~PngReader() {
+        png_destroy_read_struct(&png, &info, 0);
+    }
+
+    bool isSupported() const {
+        return png_get_interlace_type(png, info) == PNG_INTERLACE_NONE;
+    }
+
+    int width() const {
+        return png_get_image_width(png, info);
+    }
+
+    int height() const {
+        return png_get_image_height(png, info);
+    }
+
+    void readRegion(const Region &region, PixelBuffer &pixels) {
+        png_bytep row = 0;
+        if (setjmp(png_jmpbuf(png))) {
+            free(row);
+            throw CImgIOException("Failed to decode PNG");
+        }
+
+        // Expand everything to 8-bit gray, gray + alpha, RGB or RGBA.
+        const int colorType = png_get_color_type(png, info);
+        if (colorType == PNG_COLOR_TYPE_PALETTE) {
+            png_set_palette_to_rgb(png);
+        }
+        if (colorType == PNG_COLOR_TYPE_GRAY && png_get_bit_depth(png, info) < 8) {
+            png_set_expand_gray_1_2_4_to_8(png);
+        }
+        if (png_get_valid(png, info, PNG_INFO_tRNS)) {
+            png_set_tRNS_to_alpha(png);
+        }
+        png_set_strip_16(png);
+        png_set_packing(png);
+        png_read_update_info(png, info);
+
+        const int channels = png_get_channels(png, info);
+        row = (png_bytep) malloc(png_get_rowbytes(png, info));
+        if (!row) {
+            throw CImgInstanceException("Failed to allocate PNG row");
+        }
+
+        pixels.allocate(region.width, region.height, channels);
+        const size_t rowBytes = (size_t) region.width * channels;
+        for (int y = 0; y < region.y + region.height; ++y) {
+            png_read_row(png, row, 0);
+            if (y >= region.y) {
+                memcpy(pixels.data + (y - region.y) * rowBytes, row + region.x * channels, rowBytes);
+            }
+        }
+        // Rows below the region are not needed.
+        free(row);
+    }
+
+private:
+    png_structp png;
+    png_infop info;
+};
+
+#ifdef __ANDROID__
+// fmemopen is only available since API 23, bionic has had funopen from the start.
+struct MemoryStream {
+    const char *data;
+    fpos_t size, position;
+};
+
+static int readMemory(void *cookie, char *buffer, int count) {
+    MemoryStream *stream = (MemoryStream *) cookie;
+    const int read = (int) cimg::min((fpos_t) count, stream->size - stream->position);
+    memcpy(buffer, stream->data + stream->position, (size_t) read);
+    stream->position += read;
+    return read;
+}
+
+static fpos_t seekMemory(void *cookie, fpos_t offset, int whence) {
+    MemoryStream *stream = (MemoryStream *) cookie;
+    const fpos_t base = whence == SEEK_SET ? 0 : (whence == SEEK_CUR ? stream->position : stream->size);
+    if (base + offset < 0 || base + offset > stream->size) {
+        return -1;
+    }
+    return stream->position = base + offset;
+}
+
+static int closeMemory(void *cookie) {
+    delete (MemoryStream *) cookie;
+    return 0;
+}
+
+static FILE *openMemory(const void *data, size_t size) {
+    MemoryStream *stream = new MemoryStream();
+    stream->data = (const char *) data;
+    stream->size = (fpos_t) size;
+    stream->position = 0;
+    FILE *file = funopen(stream, readMemory, 0, seekMemory, closeMemory);
+    if (!file) {
+        delete stream;
+    }
+    return file;
+}
+#else
+static FILE *openMemory(const void *data, size_t size) {
+    return fmemopen(const_cast<void *>(data), size, "rb");
+}
+#endif
+
+/**
+ * Opens a stdio stream of its own over the file descriptor, the descriptor itself stays
+ * open and owned by the caller.
+ */
+static FILE *openDescriptor(int fd, const char *mode) {
+    const int copy = dup(fd);
+    if (copy < 0) {
+        return 0;
+    }
+    FILE *file = fdopen(copy, mode);
+    if (!file) {
+        close(copy);
+    }
+    return file;
+}
+
+static FILE *openInput(const InputSource &input) {
+    FILE *file;
+    if (input.data) {
+        file = openMemory(input.data, input.size);
+        if (!file) {
+            throw CImgIOException("Failed to open memory buffer of %u bytes", (unsigned int) input.size);
+        }
+    } else if (input.fd >= 0) {
+        // Decoders rewind the file after checking its signature, a pipe can't be read.
+        if (lseek(input.fd, 0, SEEK_SET) != 0) {
+            throw CImgIOException("File descriptor %d is not seekable", input.fd);
+        }
+        file = openDescriptor(input.fd, "rb");
+        if (!file) {
+            throw CImgIOException("Failed to open file descriptor %d", input.fd);
+        }
+    } else {
+        file = fopen(input.path, "rb");
+        if (!file) {
+            throw CImgIOException("Failed to open file %s", input.path);
+        }
+    }
+    return file;
+}
+
+static FILE *openOutput(const OutputTarget &output) {
+    FILE *file;
+    if (output.fd >= 0) {
+        // Descriptor may point to a previous result, pipes are written as they are.
+        if (lseek(output.fd, 0, SEEK_SET) == 0 && ftruncate(output.fd, 0) != 0) {
+            // Tail of a longer previous file would stay after the new image
+            throw CImgIOException("Failed to truncate file descriptor %d", output.fd);
+        }
+        file = openDescriptor(output.fd, "wb");
+        if (!file) {
+            throw CImgIOException("Failed to write to file descriptor %d", output.fd);
+        }
+    } else {
+        file = fopen(output.path, "wb");
+        if (!file) {
+            throw CImgIOException("Failed to create file %s", output.path);
+        }
+    }
+    return file;
+}
+
+/**
+ * Do not leave a truncated image behind.
+ */
+static void discardOutput(const OutputTarget &output) {
+    if (output.fd >= 0) {
+        if (ftruncate(output.fd, 0) != 0) {
+            LOGE("Failed to truncate file descriptor %d", output.fd);
+        }
+    } else {
+        remove(output.path);
+    }
+}
+
+/**
+ * Loads the whole image from an open file. Used for sources without a path CImg could pick
+ * the format by, so only formats CImg decodes by itself are supported.
+ */
+static void loadWholeImage(CImg<unsigned char> &image, FILE *file) {
+    unsigned char signature[2];
+    const bool read = fread(signature, 1, sizeof(signature), file) == sizeof(signature);
+    rewind(file);
+    if (read && signature[0] == 0xFF && signature[1] == 0xD8) {
+        image.load_jpeg(file);
+    } else if (read && signature[0] == 0x89 && signature[1] == 'P') {
+        image.load_png(file);
+    } else if (read && signature[0] == 'B' && signature[1] == 'M') {
+        image.load_bmp(file);
+    } else {
+        throw CImgIOException("Unsupported image format");
+    }
+}
+
+/**
+ * Picks a region decoder by file signature. Returns NULL if the format or its flavour is not
+ * handled, then the whole image is loaded by CImg.
+ */
+static ImageReader *openReader(FILE *file) {
+    unsigned char signature[8];
+    const size_t read = fread(signature, 1, sizeof(signature), file);
+    rewind(file);
+    if (read >= 3 && signature[0] == 0xFF && signature[1] == 0xD8 && signature[2] == 0xFF) {
+        JpegReader *reader = new JpegReader(file);
+        if (reader->isSupported()) {
+            return reader;
+        }
+        delete reader;
+    } else if (read == 8 && !png_sig_cmp(signature, 0, 8)) {
+        PngReader *reader = new PngReader(file);
+        if (reader->isSupported()) {
+            return reader;
+        }
+        delete reader;
+    }
+    rewind(file);
+    return 0;
+}
+
+/**
+ * Integer factor the source can be reduced by before sampling without dropping below the
+ * resolution of the result (number of source pixels per result pixel along the denser axis).
+ */
+static int downscaleFactor(const Affine &t) {
+    const double step = cimg::min(std::sqrt(t.a * t.a + t.c * t.c), std::sqrt(t.b * t.b + t.d * t.d));
+    return cimg::max(1, (int) (step + AXIS_TOLERANCE));
+}
+
+/**
+ * Source pixels of a crop. Holds either the decoded region only, or the whole image loaded by CImg.
+ */
+struct SourceImage {
+    PixelBuffer region;
+    CImg<unsigned char> image;
+    ImageView view;
+    // Maps result pixels to pixels of the view.
+    Affine transform;
+};
+
+/**
+ * Decodes only those source pixels that are needed for the crop. Decoders that can reduce the image
+ * cheaply do it by at least minDownscale, even if the result loses detail then (to fit into memory).
+ */
+static void loadSource(const InputSource &input, int left, int top, int width, int height,
+                       float angle, float resizeScale, int exifDegrees, int exifTranslation,
+                       int minDownscale, SourceImage &source) {
+    FILE *file = openInput(input);
+
+    ImageReader *reader = 0;
+    try {
+        reader = openReader(file);
+        if (reader) {
+            const int fullWidth = reader->width(), fullHeight = reader->height();
+            Affine transform = buildCropTransform(fullWidth, fullHeight,
+                                                  left, top, angle, resizeScale,
+                                                  exifDegrees, exifTranslation);
+
+            // When result is much smaller than the source, decode it already reduced and
+            // leave only the remaining fractional resize to the warp.
+            const int factor = reader->setDownscale(cimg::max(downscaleFactor(transform), minDownscale));
+            if (factor > 1) {
+                const double
+                scaleX = (double) reader->width() / fullWidth,
+                scaleY = (double) reader->height() / fullHeight;
+                const Affine downscale = {scaleX, 0, 0.5 * scaleX - 0.5, 0, scaleY, 0.5 * scaleY - 0.5};
+                transform = concat(downscale, transform);
+                LOGD("Decode downscaled by %d: %d x %d", factor, reader->width(), reader->height());
+            }
+
+            const Region region = sourceRegion(transform, width, height, reader->width(), reader->height());
+            LOGD("Decode region %d, %d, %d x %d of %d x %d", region.x, region.y,
+                 region.width, region.height, reader->width(), reader->height());
+
+            reader->readRegion(region, source.region);
+            source.view = source.region.view();
+
+            const Affine offset = {1, 0, (double) -region.x, 0, 1, (double) -region.y};
+            source.transform = concat(offset, transform);
+        } else {
+            if (input.path) {
+                source.image.load(input.path);
+            } else {
+                loadWholeImage(source.image, file);
+            }
+            source.view = viewOf(source.image);
+            source.transform = buildCropTransform(source.image.width(), source.image.height(),
+                                                  left, top, angle, resizeScale,
+                                                  exifDegrees, exifTranslation);
+        }
+    } catch (...) {
+        delete reader;
+        fclose(file);
+        throw;
+    }
+    delete reader;
+    fclose(file);
+}
+
+/**
+ * Streaming encoder that takes the result image band by band, top to bottom.
+ */
+class ImageWriter {
+public:
+    virtual ~ImageWriter() {}
+
+    /**
+     * Encodes the given interleaved rows, they follow the rows written before.
+     */
+    virtual void writeRows(const ImageView &rows, int count) = 0;
+
+    /**
+     * Completes the file after all the rows were written.
+     */
+    virtual void finish() = 0;
+};
+
+/**
+ * Drops the alpha channel of gray + alpha and RGBA rows, formats without alpha store the rest as is.
+ */
+static const unsigned char *opaqueRow(const ImageView &rows, int y, int components, unsigned char *buffer) {
+    const unsigned char *row = rows.data + y * rows.rowStride;
+    if (rows.channels == components) {
+        return row;
+    }
+    for (int x = 0; x < rows.width; ++x, row += rows.pixelStride) {
+        for (int c = 0; c < components; ++c) {
+            buffer[x * components + c] = row[c];
+        }
+    }
+    return buffer;
+}
+
+class JpegWriter : public ImageWriter {
+public:
+    JpegWriter(FILE *file, int width, int height, int channels, int quality,
+               const unsigned char *exif, size_t exifSize) : row(0) {
+        cinfo.err = jpeg_std_error(&jerr.pub);
+        jerr.pub.error_exit = jpegErrorExit;
+        jpeg_create_compress(&cinfo);
+        if (setjmp(jerr.setjmp_buffer)) {
+            jpeg_destroy_compress(&cinfo);
+            throw CImgIOException("Failed to start JPEG: %s", jerr.message);
+        }
+        jpeg_stdio_dest(&cinfo, file);
+        cinfo.image_width = (JDIMENSION) width;
+        cinfo.image_height = (JDIMENSION) height;
+        cinfo.input_components = channels < 3 ? 1 : 3;
+        cinfo.in_color_space = channels < 3 ? JCS_GRAYSCALE : JCS_RGB;
+        jpeg_set_defaults(&cinfo);
+        jpeg_set_quality(&cinfo, cimg::min(quality, 100), TRUE);
+        if (exif) {
+            cinfo.write_JFIF_header = FALSE;
+        }
+        jpeg_start_compress(&cinfo, TRUE);
+        if (exif) {
+            jpeg_write_marker(&cinfo, JPEG_APP0 + 1, exif, (unsigned int) exifSize);
+        }
+        if (channels != cinfo.input_components) {
+            row = (unsigned char *) malloc((size_t) width * cinfo.input_components);
+            if (!row) {
+                jpeg_destroy_compress(&cinfo);
+                throw CImgInstanceException("Failed to allocate JPEG row");
+            }
+        }
+    }
+
+    ~JpegWriter() {
+        jpeg_destroy_compress(&cinfo);
+        free(row);
+    }
+
+    void writeRows(const ImageView &rows, int count) {
+        if (setjmp(jerr.setjmp_buffer)) {
+            throw CImgIOException("Failed to encode JPEG: %s", jerr.message);
+        }
+        for (int y = 0; y < count; ++y) {
+            JSAMPROW scanline = (JSAMPROW) opaqueRow(rows, y, cinfo.input_components, row);
+            jpeg_write_scanlines(&cinfo, &scanline, 1);
+        }
+    }
+
+    void finish() {
+        if (setjmp(jerr.setjmp_buffer)) {
+            throw CImgIOException("Failed to finish JPEG: %s", jerr.message);
+        }
+        jpeg_finish_compress(&cinfo);
+    }
+
+private:
+    struct jpeg_compress_struct cinfo;
+    JpegErrorManager jerr;
+    unsigned char *row;
+};
+
+class PngWriter : public ImageWriter {
+public:
+    PngWriter(FILE *file, int width, int height, int channels) : info(0) {
+        png = png_create_write_struct(PNG_LIBPNG_VER_STRING, 0, pngError, pngWarning);
+        if (!png) {
+            throw CImgInstanceException("Failed to create PNG writer");
+        }
+        info = png_create_info_struct(png);
+        if (!info || setjmp(png_jmpbuf(png))) {
+            png_destroy_write_struct(&png, &info);
+            throw CImgIOException("Failed to start PNG");
+        }
+        static const int colorTypes[] = {
+                PNG_COLOR_TYPE_GRAY, PNG_COLOR_TYPE_GRAY_ALPHA, PNG_COLOR_TYPE_RGB, PNG_COLOR_TYPE_RGB_ALPHA
+        };
+        png_init_io(png, file);
+        png_set_IHDR(png, info, (png_uint_32) width, (png_uint_32) height, 8, colorTypes[clamp(channels, 1, 4) - 1],
+                     PNG_INTERLACE_NONE, PNG_COMPRESSION_TYPE_DEFAULT, PNG_FILTER_TYPE_DEFAULT);
+        png_write_info(png, info);
+    }
+
+    ~PngWriter() {
+        png_destroy_write_struct(&png, &info);
+    }
+
+    void writeRows(const ImageView &rows, int count) {
+        if (setjmp(png_jmpbuf(png))) {
+            throw CImgIOException("Failed to encode PNG");
+        }
+        for (int y = 0; y < count; ++y) {
+            png_write_row(png, (png_bytep) (rows.data + y * rows.rowStride));
+        }
+    }
+
+    void finish() {
+        if (setjmp(png_jmpbuf(png))) {
+            throw CImgIOException("Failed to finish PNG");
+        }
+        png_write_end(png, info);
+    }
+
+private:
+    png_structp png;
+    png_infop info;
+};
+
+/**
+ * Writes the result into locked pixels of an ARGB_8888 Bitmap: RGBA bytes with premultiplied alpha,
+ * as the framework draws them.
+ */
+class BitmapWriter : public ImageWriter {
+public:
+    BitmapWriter(unsigned char *pixels, long stride) : pixels(pixels), stride(stride), row(0) {}
+
+    void writeRows(const ImageView &rows, int count) {
+        for (int y = 0; y < count; ++y, ++row) {
+            const unsigned char *in = rows.data + y * rows.rowStride;
+            unsigned char *out = pixels + row * stride;
+            for (int x = 0; x < rows.width; ++x, in += rows.pixelStride, out += 4) {
+                switch (rows.channels) {
+                    case 1:
+                        out[0] = out[1] = out[2] = in[0];
+                        out[3] = 255;
+                        break;
+                    case 2:
+                        out[0] = out[1] = out[2] = premultiply(in[0], in[1]);
+                        out[3] = in[1];
+                        break;
+                    case 3:
+                        out[0] = in[0];
+                        out[1] = in[1];
+                        out[2] = in[2];
+                        out[3] = 255;
+                        break;
+                    default:
+                        out[0] = premultiply(in[0], in[3]);
+                        out[1] = premultiply(in[1], in[3]);
+                        out[2] = premultiply(in[2], in[3]);
+                        out[3] = in[3];
+                        break;
+                }
+            }
+        }
+    }
+
+    void finish() {}
+
+private:
+    /**
+     * Rounded value * alpha / 255, the way Skia does it.
+     */
+    static unsigned char premultiply(unsigned int value, unsigned int alpha) {
+        const unsigned int product = value * alpha + 128;
+        return (unsigned char) ((product + (product >> 8)) >> 8);
+    }
+
+    unsigned char *pixels;
+    long stride;
+    int row;
+};
+
+/**
+ * Result rows are rendered and encoded in bands of this many rows. Two bands are in flight
+ * (one rendered while the other one is encoded), both have to fit into the memory budget.
+ */
+static int bandHeight(long long memoryBudget, int width, int height, int channels) {
+    if (memoryBudget <= 0) {
+        return height;
+    }
+    const long long rows = memoryBudget / (2LL * width * channels);
+    return (int) cimg::max(1LL, cimg::min((long long) height, rows));
+}
+
+/**
+ * Band of rows handed over to the encoder thread.
+ */
+struct EncodeJob {
+    ImageWriter *writer;
+    ImageView rows;
+    int count;
+    bool failed, outOfMemory;
+    char message[256];
+};
+
+static void *encodeBand(void *arg) {
+    EncodeJob *job = (EncodeJob *) arg;
+    try {
+        job->writer->writeRows(job->rows, job->count);
+    } catch (const CImgInstanceException &e) {
+        job->failed = job->outOfMemory = true;
+        snprintf(job->message, sizeof(job->message), "%s", e.what());
+    } catch (const CImgException &e) {
+        job->failed = true;
+        snprintf(job->message, sizeof(job->message), "%s", e.what());
+    }
+    return 0;
+}
+
+/**
+ * Rethrows failure of the band encoding on the calling thread.
+ */
+static void checkEncoded(const EncodeJob &job) {
+    if (job.failed) {
+        if (job.outOfMemory) {
+            throw CImgInstanceException("%s", job.message);
+        }
+        throw CImgIOException("%s", job.message);
+    }
+}
+
+/**
+ * Renders count result rows starting at y into rows on all threads, in slices of a few rows per
+ * thread. Cancellation is checked before and progress reported after each slice, so it is noticed
+ * within a fraction of a band, or of the whole image if it is not banded.
+ */
+static void renderChecked(const CropRenderer &renderer, ThreadPool &pool, const ImageView &rows,
+                          int y, int count, const CropControl &control) {
+    const int rowsPerSlice = pool.size() * ROWS_PER_CHECK;
+    for (int row = y; row < y + count; row += rowsPerSlice) {
+        control.check();
+        const int end = cimg::min(row + rowsPerSlice, y + count);
+        ImageView slice = rows;
+        slice.data += (row - y) * slice.rowStride;
+        renderParallel(renderer, pool, slice, row, end);
+        control.progress(end, renderer.height);
+    }
+}
+
+/**
+ * Renders the result in horizontal bands and passes each band to the encoder as soon as it is done.
+ * Encoding of a band runs on a second thread while the next band is being rendered, so peak memory
+ * is two bands whatever the result height is.
+ */
+static void renderBanded(const CropRenderer &renderer, ThreadPool &pool, int channels, ImageWriter &writer,
+                         long long memoryBudget, const CropControl &control) {
+    const int rowsPerBand = bandHeight(memoryBudget, renderer.width, renderer.height, channels);
+    LOGD("Band height: %d of %d", rowsPerBand, renderer.height);
+
+    PixelBuffer bands[2];
+    bands[0].allocate(renderer.width, rowsPerBand, channels);
+    if (rowsPerBand < renderer.height) {
+        bands[1].allocate(renderer.width, rowsPerBand, channels);
+    }
+
+    EncodeJob job;
+    pthread_t encoder;
+    bool encoding = false;
+    try {
+        for (int y = 0, band = 0; y < renderer.height; y += rowsPerBand, band ^= 1) {
+            const int count = cimg::min(rowsPerBand, renderer.height - y);
+            renderChecked(renderer, pool, bands[band].view(), y, count, control);
+
+            if (encoding) {
+                encoding = false;
+                pthread_join(encoder, 0);
+                checkEncoded(job);
+            }
+            job.writer = &writer;
+            job.rows = bands[band].view();
+            job.count = count;
+            job.failed = job.outOfMemory = false;
+            if (y + count < renderer.height && !pthread_create(&encoder, 0, encodeBand, &job)) {
+                encoding = true;
+            } else {
+                // Last band (or no thread available), nothing to overlap with.
+                encodeBand(&job);
+                checkEncoded(job);
+            }
+        }
+    } catch (...) {
+        if (encoding) {
+            pthread_join(encoder, 0);
+        }
+        throw;
+    }
+    writer.finish();
+}
+
+/**
+ * Renders the result and saves it to the file. JPEG and PNG are encoded band by band,
+ * other formats are saved by CImg from the whole result image (to a file path only,
+ * CImg picks the format by its extension).
+ */
+static void saveResult(const CropRenderer &renderer, ThreadPool &pool, int channels, const OutputTarget &output,
+                       const CropOptions &options, const CropControl &control) {
+    if (options.format != SAVE_FORMAT_JPEG && options.format != SAVE_FORMAT_PNG) {
+        if (!output.path) {
+            throw CImgIOException("Format %d can only be saved to a file path", options.format);
+        }
+        CImg<unsigned char> result(renderer.width, renderer.height, 1, channels);
+        renderChecked(renderer, pool, viewOf(result), 0, renderer.height, control);
+        control.check();
+        result.save(output.path);
+        return;
+    }
+
+    FILE *file = openOutput(output);
+    ImageWriter *writer = 0;
+    try {
+        if (options.format == SAVE_FORMAT_JPEG) {
+            writer = new JpegWriter(file, renderer.width, renderer.height, channels, options.quality,
+                                    options.exif, options.exifSize);
+        } else {
+            writer = new PngWriter(file, renderer.width, renderer.height, channels);
+        }
+        renderBanded(renderer, pool, channels, *writer, options.memoryBudget, control);
+    } catch (...) {
+        delete writer;
+        fclose(file);
+        discardOutput(output);
+        throw;
+    }
+    delete writer;
+    if (fclose(file)) {
+        discardOutput(output);
+        throw CImgIOException("Failed to write the result image");
+    }
+}
+
+/**
+ * Crops JPEG to JPEG losslessly when the crop allows it (see planLossless). Optionally moves
+ * the crop rect by less than a block to make it possible.
+ *
+ * @return - false if the pixel path has to be used, then nothing was written
+ */
+static bool cropLossless(const InputSource &input, const OutputTarget &output,
+                         int left, int top, int width, int height, float angle, float resizeScale,
+                         int exifDegrees, int exifTranslation, const CropOptions &options,
+                         int &shiftX, int &shiftY) {
+    FILE *file = openInput(input);
+    unsigned char signature[3];
+    const bool jpeg = fread(signature, 1, sizeof(signature), file) == sizeof(signature)
+                      && signature[0] == 0xFF && signature[1] == 0xD8 && signature[2] == 0xFF;
+    rewind(file);
+    if (!jpeg) {
+        fclose(file);
+        return false;
+    }
+
+    LosslessJpegCrop *crop = 0;
+    FILE *result = 0;
+    try {
+        crop = new LosslessJpegCrop(file);
+        const Affine transform = buildCropTransform(crop->width(), crop->height(),
+                                                    left, top, angle, resizeScale,
+                                                    exifDegrees, exifTranslation);
+        LosslessPlan plan;
+        const bool possible = planLossless(transform, width, height, crop->width(), crop->height(),
+                                           crop->blockWidth(), crop->blockHeight(), options.snapToJpegBlocks,
+                                           plan);
+        if (possible) {
+            LOGD("Lossless crop of %d, %d, %d x %d, shifted by %d, %d", plan.region.x, plan.region.y,
+                 plan.region.width, plan.region.height, plan.shiftX, plan.shiftY);
+            // Source is read before the output is opened, the output may be the source file itself.
+            crop->read(plan, width, height);
+            result = openOutput(output);
+            crop->write(result, options.exif, options.exifSize);
+            if (fclose(result)) {
+                result = 0;
+                discardOutput(output);
+                throw CImgIOException("Failed to write the result image");
+            }
+            shiftX = plan.shiftX;
+            shiftY = plan.shiftY;
+        }
+        delete crop;
+        fclose(file);
+        return possible;
+    } catch (...) {
+        delete crop;
+        fclose(file);
+        if (result) {
+            fclose(result);
+            discardOutput(output);
+        }
+        throw;
+    }
+}
+
+bool cropImage(const InputSource &input, const OutputTarget &output, const CropGeometry &geometry,
+               const CropOptions &options, const CropControl &control, int &shiftX, int &shiftY) {
+    const CropGeometry &g = geometry;
+    const int width = cimg::abs(g.width), height = cimg::abs(g.height);
+
+    // Straight JPEG crops without resize are done on DCT blocks, no quality is lost.
+    // Those read coefficients of the whole image, the caller may rule them out by memory.
+    shiftX = shiftY = 0;
+    control.check();
+    if (options.format == SAVE_FORMAT_JPEG && options.decodeDownscale == 0
+        && cropLossless(input, output, g.left, g.top, width, height, g.angle, g.resizeScale,
+                        g.exifDegrees, g.exifTranslation, options, shiftX, shiftY)) {
+        control.progress(1, 1);
+        return true;
+    }
+
+    // Exif rotation/mirroring, resize and rotation are fused into a single backward mapping,
+    // so only the result pixels are sampled and no intermediate copies of the source are made.
+    // Only the source region under the crop rect is decoded.
+    SourceImage source;
+    loadSource(input, g.left, g.top, width, height, g.angle, g.resizeScale,
+               g.exifDegrees, g.exifTranslation, options.decodeDownscale, source);
+    control.check();
+
+    // Source coordinates are computed on the fly, there is no per-pixel warp field.
+    // Straight crops (no free rotation) are copied or resampled along rows without per-pixel interpolation.
+    const CropRenderer renderer(source.view, source.transform, width, height);
+    LOGD("Warp kind: %d", renderer.kind);
+
+    // Whole result image is never held in memory, it is rendered and encoded band by band.
+    // Rows of each band are rendered on all threads, while the previous band is being encoded.
+    ThreadPool pool(clamp(options.threadCount, 1, MAX_THREADS));
+    LOGD("Threads: %d", pool.size());
+    saveResult(renderer, pool, source.view.channels, output, options, control);
+    return false;
+}
+
+void cropImageToPixels(const InputSource &input, const RgbaPixels &result, const CropGeometry &geometry,
+                       const CropOptions &options, const CropControl &control) {
+    const CropGeometry &g = geometry;
+    control.check();
+    SourceImage source;
+    loadSource(input, g.left, g.top, result.width, result.height, g.angle, g.resizeScale,
+               g.exifDegrees, g.exifTranslation, options.decodeDownscale, source);
+    control.check();
+    const CropRenderer renderer(source.view, source.transform, result.width, result.height);
+    ThreadPool pool(clamp(options.threadCount, 1, MAX_THREADS));
+
+    // Rendered bands are converted into the pixels, nothing is encoded.
+    BitmapWriter writer(result.data, result.stride);
+    renderBanded(renderer, pool, source.view.channels, writer, options.memoryBudget, control);
+}
+
+/**
+ * Undoes premultiplied alpha of RGBA pixels in place, the warp and the encoders take straight alpha.
+ */
+static void unpremultiply(const RgbaPixels &pixels) {
+    for (int y = 0; y < pixels.height; ++y) {
+        unsigned char *pixel = pixels.data + y * pixels.stride;
+        for (int x = 0; x < pixels.width; ++x, pixel += 4) {
+            const unsigned int alpha = pixel[3];
+            if (alpha && alpha != 255) {
+                for (int c = 0; c < 3; ++c) {
+                    pixel[c] = (unsigned char) cimg::min(255u, (pixel[c] * 255u + alpha / 2) / alpha);
+                }
+            }
+        }
+    }
+}
+
+void cropPixels(const RgbaPixels &source, bool hasAlpha, const SourcePlacement &placement,
+                const OutputTarget &output, const RgbaPixels *result, const CropGeometry &geometry,
+                const CropOptions &options, const CropControl &control) {
+    const CropGeometry &g = geometry;
+    if (hasAlpha) {
+        unpremultiply(source);
+        control.check();
+    }
+    const ImageView view = {
+            source.data, source.width, source.height, hasAlpha ? 4 : 3,
+            4, source.stride, 1
+    };
+
+    Affine transform;
+    if (placement.regionWidth > 0 && placement.regionHeight > 0) {
+        // Pixel centers of the region, decoded reduced, are mapped onto the pixels.
+        const double
+        scaleX = (double) view.width / placement.regionWidth,
+        scaleY = (double) view.height / placement.regionHeight;
+        const Affine sample = {
+                scaleX, 0, (0.5 - placement.regionLeft) * scaleX - 0.5,
+                0, scaleY, (0.5 - placement.regionTop) * scaleY - 0.5
+        };
+        transform = concat(sample, buildCropTransform(placement.sourceWidth, placement.sourceHeight,
+                                                      g.left, g.top, g.angle, g.resizeScale,
+                                                      g.exifDegrees, g.exifTranslation));
+    } else {
+        transform = buildCropTransform(view.width, view.height, g.left, g.top, g.angle, g.resizeScale,
+                                       g.exifDegrees, g.exifTranslation);
+    }
+    const CropRenderer renderer(view, transform, cimg::abs(g.width), cimg::abs(g.height));
+    LOGD("Warp kind: %d", renderer.kind);
+    ThreadPool pool(clamp(options.threadCount, 1, MAX_THREADS));
+
+    if (result) {
+        BitmapWriter writer(result->data, result->stride);
+        renderBanded(renderer, pool, view.channels, writer, options.memoryBudget, control);
+    } else {
+        saveResult(renderer, pool, view.channels, output, options, control);
+    }
+}
@@ -0,0 +1,141 @@
+//
+// Crop core: decoding, warp and encoding of the crop. It doesn't depend on JNI or on the Android
+// framework, so it also builds as a plain library on a desktop (see ucrop/src/host).
+//
+
+#ifndef UCROP_CROP_H
+#define UCROP_CROP_H
+
+#include <stddef.h>
+
+// cimg_use_jpeg and cimg_use_png come from the build (CMakeLists.txt), along with the libraries they need
+#define cimg_display 0
+
+#include "CImg.h"
+
+// Result formats, ordinals of Bitmap.CompressFormat. Others are saved by CImg by the file extension.
+#define SAVE_FORMAT_JPEG 0
+#define SAVE_FORMAT_PNG  1
+
+/**
+ * Where the source image is read from: a file path, an open file descriptor (when fd >= 0)
+ * or a memory buffer (when data is set).
+ */
+struct InputSource {
+    const char *path;
+    int fd;
+    const void *data;
+    size_t size;
+};
+
+/**
+ * Where the result image is written to: a file path or an open file descriptor (when fd >= 0).
+ */
+struct OutputTarget {
+    const char *path;
+    int fd;
+};
+
+/**
+ * Crop rect in pixels of the result, given in the bounding box of the source oriented by Exif,
+ * resized by resizeScale and rotated by angle (degrees, clockwise).
+ */
+struct CropGeometry {
+    int left, top, width, height;
+    float angle, resizeScale;
+    int exifDegrees, exifTranslation;
+};
+
+/**
+ * How the result is made and saved.
+ *
+ * memoryBudget    - bytes the result bands may take, 0 - whole result is rendered at once
+ * decodeDownscale - 0 to let the decoder pick its scale (and crop JPEG losslessly when it can),
+ *                   otherwise the least factor the source is reduced by
+ * exif            - payload of an APP1 segment ("Exif\0\0" and the TIFF structure) that JPEG results
+ *                   get right after SOI instead of the JFIF header, null for none. Written as it is,
+ *                   the caller patches its sizes and orientation.
+ */
+struct CropOptions {
+    int format, quality;
+    long long memoryBudget;
+    int decodeDownscale, threadCount;
+    bool snapToJpegBlocks;
+    const unsigned char *exif;
+    size_t exifSize;
+};
+
+/**
+ * RGBA pixels with premultiplied alpha, the memory layout of an ARGB_8888 Bitmap.
+ */
+struct RgbaPixels {
+    unsigned char *data;
+    int width, height;
+    long stride;
+};
+
+/**
+ * Where decoded pixels lie in the source image: a region of it, possibly decoded reduced
+ * (the pixels are smaller than the region then). Region of 0 x 0 means the whole image.
+ */
+struct SourcePlacement {
+    int sourceWidth, sourceHeight;
+    int regionLeft, regionTop, regionWidth, regionHeight;
+};
+
+/**
+ * Thrown when the crop was cancelled, it is abandoned as soon as possible.
+ */
+struct CropCancelled {
+};
+
+/**
+ * Polled for cancellation and told about progress, on the thread that started the crop only:
+ * worker and encoder threads never call it. Does nothing by default.
+ */
+class CropControl {
+public:
+    virtual ~CropControl() {}
+
+    /**
+     * Throws CropCancelled if the crop should stop.
+     */
+    virtual void check() const {}
+
+    /**
+     * Called each time a few more rows of the result are done, may throw CropCancelled too.
+     */
+    virtual void progress(int /*done*/, int /*total*/) const {}
+};
+
+/*
+ * Crops below throw CImgIOException when an image can't be read or written, CImgInstanceException
+ * when memory runs out and CropCancelled. Partially written output is removed then.
+ */
+
+/**
+ * Crops the source image into the output. Straight JPEG crops without resize are done on DCT blocks
+ * when the options allow it, the crop rect may be moved onto the block grid then by (shiftX, shiftY).
+ *
+ * @return - true if the crop was lossless
+ */
+bool cropImage(const InputSource &input, const OutputTarget &output, const CropGeometry &geometry,
+               const CropOptions &options, const CropControl &control, int &shiftX, int &shiftY);
+
+/**
+ * Crops the source image into RGBA pixels of the crop size, nothing is encoded.
+ * Format and quality of the options are not used.
+ */
+void cropImageToPixels(const InputSource &input, const RgbaPixels &result, const CropGeometry &geometry,
+                       const CropOptions &options, const CropControl &control);
+
+/**
+ * Crops decoded pixels into the result pixels if they are not null, otherwise into the output.
+ * Opaque sources are warped by their color channels only, sources with alpha are unpremultiplied
+ * in place first.
+ */
+void cropPixels(const RgbaPixels &source, bool hasAlpha, const SourcePlacement &placement,
+                const OutputTarget &output, const RgbaPixels *result, const CropGeometry &geometry,
+                const CropOptions &options, const CropControl &control);
+
+#endif //UCROP_CROP_H
@@ -0,0 +1,41 @@
+//
+// Portable bilinear kernel and the runtime choice between it and the vector ones.
+//
+
+#include "sampler.h"
+
+#if defined(__ANDROID__) && (defined(UCROP_NEON_SAMPLER) || defined(UCROP_SSE_SAMPLER))
+#include <cpu-features.h>
+#endif
+
+void bilinearRowScalar(const ImageView &src, unsigned char *out, int count,
+                       float sx, float sy, float stepX, float stepY) {
+    for (int x = 0; x < count; ++x, out += src.channels) {
+        bilinearPixel(src, out, sx + x * stepX, sy + x * stepY);
+    }
+}
+
+BilinearRowFunction selectBilinearRow() {
+#if defined(UCROP_NEON_SAMPLER) && defined(__aarch64__)
+    // NEON is mandatory on arm64-v8a.
+    return bilinearRowNeon;
+#elif defined(UCROP_NEON_SAMPLER) && defined(__ANDROID__)
+    // Optional on armeabi-v7a, some early devices (Tegra 2) lack it.
+    if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+        && (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON)) {
+        return bilinearRowNeon;
+    }
+#elif defined(UCROP_NEON_SAMPLER) && defined(__ARM_NEON)
+    // Host builds for 32-bit ARM use NEON only when the compiler may assume it.
+    return bilinearRowNeon;
+#elif defined(UCROP_SSE_SAMPLER) && defined(__ANDROID__)
+    if (android_getCpuFeatures() & ANDROID_CPU_X86_FEATURE_SSSE3) {
+        return bilinearRowSse;
+    }
+#elif defined(UCROP_SSE_SAMPLER)
+    if (__builtin_cpu_supports("ssse3")) {
+        return bilinearRowSse;
+    }
+#endif
+    return bilinearRowScalar;
+}
@@ -0,0 +1,83 @@
+//
+// Bilinear sampling kernels of the crop warp.
+//
+
+#ifndef UCROP_SAMPLER_H
+#define UCROP_SAMPLER_H
+
+/**
+ * Non-owning view of 8-bit image pixels. Strides are given in bytes, so the same view describes
+ * planar CImg data as well as interleaved scanline buffers.
+ */
+struct ImageView {
+    unsigned char *data;
+    int width, height, channels;
+    long pixelStride, rowStride, channelStride;
+};
+
+// Readable bytes a source buffer must have after its last pixel. Kernels load every
+// pixel as 4 bytes, so a 3 channel pixel at the very end reads one byte past it.
+#define SAMPLER_PADDING 4
+
+// Sub-pixel precision of the fixed-point kernels: positions are rounded to 1/128 of a pixel,
+// so interpolated values fit into signed 16-bit lanes.
+#define BILINEAR_BITS 7
+#define BILINEAR_ONE (1 << BILINEAR_BITS)
+
+/**
+ * Bilinear sampling of count result pixels along a line of the source: pixel x is interpolated at
+ * (sx + x * stepX, sy + x * stepY), positions outside of the source are clamped to its edges.
+ * Source and out are interleaved RGB or RGBA with the same number of channels, source pixels may
+ * also be padded to 4 bytes (RGB read from RGBA memory), out is always packed.
+ */
+typedef void (*BilinearRowFunction)(const ImageView &src, unsigned char *out, int count,
+                                    float sx, float sy, float stepX, float stepY);
+
+/**
+ * Returns the fastest kernel the CPU the library runs on supports.
+ */
+BilinearRowFunction selectBilinearRow();
+
+void bilinearRowScalar(const ImageView &src, unsigned char *out, int count,
+                       float sx, float sy, float stepX, float stepY);
+
+#ifdef UCROP_NEON_SAMPLER
+void bilinearRowNeon(const ImageView &src, unsigned char *out, int count,
+                     float sx, float sy, float stepX, float stepY);
+#endif
+
+#ifdef UCROP_SSE_SAMPLER
+void bilinearRowSse(const ImageView &src, unsigned char *out, int count,
+                    float sx, float sy, float stepX, float stepY);
+#endif
+
+/**
+ * Fixed-point bilinear interpolation of a single pixel. The vector kernels do exactly the same
+ * math lane by lane and use it for the pixels left over at the end of a row.
+ */
+static inline void bilinearPixel(const ImageView &src, unsigned char *out, float sx, float sy) {
+    const float wm1 = src.width - 1, hm1 = src.height - 1;
+    const float
+    cx = sx < 0 ? 0 : (sx > wm1 ? wm1 : sx),
+    cy = sy < 0 ? 0 : (sy > hm1 ? hm1 : sy);
+    const int
+    fx = (int) (cx * BILINEAR_ONE + 0.5f), fy = (int) (cy * BILINEAR_ONE + 0.5f),
+    ix = fx >> BILINEAR_BITS, iy = fy >> BILINEAR_BITS,
+    wx = fx & (BILINEAR_ONE - 1), wy = (fy & (BILINEAR_ONE - 1)) << (15 - BILINEAR_BITS);
+
+    const unsigned char *p00 = src.data + iy * src.rowStride + ix * src.pixelStride;
+    const unsigned char *p01 = p00 + (ix < src.width - 1 ? src.pixelStride : 0);
+    const unsigned char *p10 = p00 + (iy < src.height - 1 ? src.rowStride : 0);
+    const unsigned char *p11 = p10 + (p01 - p00);
+
+    for (int c = 0; c < src.channels; ++c) {
+        const int
+        top = (p00[c] << BILINEAR_BITS) + (p01[c] - p00[c]) * wx,
+        bottom = (p10[c] << BILINEAR_BITS) + (p11[c] - p10[c]) * wx,
+        // Rounding high half of a Q15 multiply, as vqrdmulh / pmulhrsw do it.
+        value = top + (((bottom - top) * wy + (1 << 14)) >> 15);
+        out[c] = (unsigned char) ((value + (BILINEAR_ONE >> 1)) >> BILINEAR_BITS);
+    }
+}
+
+#endif //UCROP_SAMPLER_H
@@ -0,0 +1,107 @@
+//
+// NEON bilinear kernel (armeabi-v7a with NEON, arm64-v8a).
+//
+
+#include <string.h>
+#include <arm_neon.h>
+#include "sampler.h"
+
+/**
+ * Loads 4 bytes of a pixel. The 4th byte of a 3 channel pixel belongs to the next pixel
+ * (or to SAMPLER_PADDING) and is dropped on store.
+ */
+static inline uint32_t loadPixel(const unsigned char *p) {
+    uint32_t value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+/**
+ * Widens 4 gathered pixels to 16-bit lanes, pixels 0, 1 go to low and 2, 3 to high.
+ */
+static inline void widen(const uint32_t *pixels, int16x8_t &low, int16x8_t &high) {
+    const uint8x16_t bytes = vreinterpretq_u8_u32(vld1q_u32(pixels));
+    low = vreinterpretq_s16_u16(vmovl_u8(vget_low_u8(bytes)));
+    high = vreinterpretq_s16_u16(vmovl_u8(vget_high_u8(bytes)));
+}
+
+/**
+ * Repeats weights of two pixels over their 4 channel lanes.
+ */
+static inline int16x8_t spread(int first, int second) {
+    return vcombine_s16(vdup_n_s16((int16_t) first), vdup_n_s16((int16_t) second));
+}
+
+static inline uint8x8_t interpolate(int16x8_t p00, int16x8_t p01, int16x8_t p10, int16x8_t p11,
+                                    int16x8_t wx, int16x8_t wy) {
+    const int16x8_t
+    top = vmlaq_s16(vshlq_n_s16(p00, BILINEAR_BITS), vsubq_s16(p01, p00), wx),
+    bottom = vmlaq_s16(vshlq_n_s16(p10, BILINEAR_BITS), vsubq_s16(p11, p10), wx),
+    value = vaddq_s16(top, vqrdmulhq_s16(vsubq_s16(bottom, top), wy));
+    return vqrshrun_n_s16(value, BILINEAR_BITS);
+}
+
+void bilinearRowNeon(const ImageView &src, unsigned char *out, int count,
+                     float sx, float sy, float stepX, float stepY) {
+    const int channels = src.channels;
+    const int wm1 = src.width - 1, hm1 = src.height - 1;
+    const float32x4_t
+    zero = vdupq_n_f32(0), one = vdupq_n_f32(BILINEAR_ONE), half = vdupq_n_f32(0.5f),
+    maxX = vdupq_n_f32(wm1), maxY = vdupq_n_f32(hm1),
+    originX = vdupq_n_f32(sx), originY = vdupq_n_f32(sy), four = vdupq_n_f32(4);
+    const int32x4_t fraction = vdupq_n_s32(BILINEAR_ONE - 1);
+    static const float lanes[] = {0, 1, 2, 3};
+    float32x4_t xs = vld1q_f32(lanes);
+
+    int32_t ix[4], iy[4], wx[4], wy[4];
+    uint32_t p00[4], p01[4], p10[4], p11[4];
+    unsigned char packed[16];
+
+    int x = 0;
+    for (; x + 4 <= count; x += 4, xs = vaddq_f32(xs, four)) {
+        // Same operations as bilinearPixel: position, clamp, round to fixed point.
+        const float32x4_t
+        cx = vmaxq_f32(vminq_f32(vaddq_f32(originX, vmulq_n_f32(xs, stepX)), maxX), zero),
+        cy = vmaxq_f32(vminq_f32(vaddq_f32(originY, vmulq_n_f32(xs, stepY)), maxY), zero);
+        const int32x4_t
+        fx = vcvtq_s32_f32(vaddq_f32(vmulq_f32(cx, one), half)),
+        fy = vcvtq_s32_f32(vaddq_f32(vmulq_f32(cy, one), half));
+        vst1q_s32(ix, vshrq_n_s32(fx, BILINEAR_BITS));
+        vst1q_s32(iy, vshrq_n_s32(fy, BILINEAR_BITS));
+        vst1q_s32(wx, vandq_s32(fx, fraction));
+        vst1q_s32(wy, vshlq_n_s32(vandq_s32(fy, fraction), 15 - BILINEAR_BITS));
+
+        for (int i = 0; i < 4; ++i) {
+            const unsigned char *p = src.data + iy[i] * src.rowStride + ix[i] * src.pixelStride;
+            const long right = ix[i] < wm1 ? src.pixelStride : 0, down = iy[i] < hm1 ? src.rowStride : 0;
+            p00[i] = loadPixel(p);
+            p01[i] = loadPixel(p + right);
+            p10[i] = loadPixel(p + down);
+            p11[i] = loadPixel(p + down + right);
+        }
+
+        int16x8_t p00Low, p00High, p01Low, p01High, p10Low, p10High, p11Low, p11High;
+        widen(p00, p00Low, p00High);
+        widen(p01, p01Low, p01High);
+        widen(p10, p10Low, p10High);
+        widen(p11, p11Low, p11High);
+
+        const uint8x16_t result = vcombine_u8(
+                interpolate(p00Low, p01Low, p10Low, p11Low, spread(wx[0], wx[1]), spread(wy[0], wy[1])),
+                interpolate(p00High, p01High, p10High, p11High, spread(wx[2], wx[3]), spread(wy[2], wy[3])));
+
+        if (channels == 4) {
+            vst1q_u8(out, result);
+            out += 16;
+        } else {
+            vst1q_u8(packed, result);
+            for (int i = 0; i < 4; ++i, out += channels) {
+                memcpy(out, packed + i * 4, (size_t) channels);
+            }
+        }
+    }
+
+    for (; x < count; ++x, out += channels) {
+        bilinearPixel(src, out, sx + x * stepX, sy + x * stepY);
+    }
+}
@@ -0,0 +1,103 @@
+//
+// SSSE3 bilinear kernel (x86, x86_64).
+//
+
+#include <string.h>
+#include <tmmintrin.h>
+#include "sampler.h"
+
+/**
+ * Loads 4 bytes of a pixel. The 4th byte of a 3 channel pixel belongs to the next pixel
+ * (or to SAMPLER_PADDING) and is dropped on store.
+ */
+static inline int loadPixel(const unsigned char *p) {
+    int value;
+    memcpy(&value, p, sizeof(value));
+    return value;
+}
+
+/**
+ * Repeats weights of two pixels over their 4 channel lanes.
+ */
+static inline __m128i spread(int first, int second) {
+    return _mm_setr_epi16((short) first, (short) first, (short) first, (short) first,
+                          (short) second, (short) second, (short) second, (short) second);
+}
+
+static inline __m128i interpolate(__m128i p00, __m128i p01, __m128i p10, __m128i p11, __m128i wx, __m128i wy) {
+    const __m128i
+    top = _mm_add_epi16(_mm_slli_epi16(p00, BILINEAR_BITS), _mm_mullo_epi16(_mm_sub_epi16(p01, p00), wx)),
+    bottom = _mm_add_epi16(_mm_slli_epi16(p10, BILINEAR_BITS), _mm_mullo_epi16(_mm_sub_epi16(p11, p10), wx)),
+    value = _mm_add_epi16(top, _mm_mulhrs_epi16(_mm_sub_epi16(bottom, top), wy));
+    return _mm_srai_epi16(_mm_add_epi16(value, _mm_set1_epi16(BILINEAR_ONE >> 1)), BILINEAR_BITS);
+}
+
+void bilinearRowSse(const ImageView &src, unsigned char *out, int count,
+                    float sx, float sy, float stepX, float stepY) {
+    const int channels = src.channels;
+    const int wm1 = src.width - 1, hm1 = src.height - 1;
+    const __m128
+    zero = _mm_setzero_ps(), one = _mm_set1_ps(BILINEAR_ONE), half = _mm_set1_ps(0.5f),
+    maxX = _mm_set1_ps(wm1), maxY = _mm_set1_ps(hm1),
+    originX = _mm_set1_ps(sx), originY = _mm_set1_ps(sy),
+    stepXs = _mm_set1_ps(stepX), stepYs = _mm_set1_ps(stepY), four = _mm_set1_ps(4);
+    const __m128i fraction = _mm_set1_epi32(BILINEAR_ONE - 1), zeroBytes = _mm_setzero_si128();
+    __m128 xs = _mm_setr_ps(0, 1, 2, 3);
+
+    int ix[4], iy[4], wx[4], wy[4];
+    unsigned char packed[16];
+
+    int x = 0;
+    for (; x + 4 <= count; x += 4, xs = _mm_add_ps(xs, four)) {
+        // Same operations as bilinearPixel: position, clamp, round to fixed point.
+        const __m128
+        cx = _mm_max_ps(_mm_min_ps(_mm_add_ps(originX, _mm_mul_ps(xs, stepXs)), maxX), zero),
+        cy = _mm_max_ps(_mm_min_ps(_mm_add_ps(originY, _mm_mul_ps(xs, stepYs)), maxY), zero);
+        const __m128i
+        fx = _mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(cx, one), half)),
+        fy = _mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(cy, one), half));
+        _mm_storeu_si128((__m128i *) ix, _mm_srai_epi32(fx, BILINEAR_BITS));
+        _mm_storeu_si128((__m128i *) iy, _mm_srai_epi32(fy, BILINEAR_BITS));
+        _mm_storeu_si128((__m128i *) wx, _mm_and_si128(fx, fraction));
+        _mm_storeu_si128((__m128i *) wy, _mm_slli_epi32(_mm_and_si128(fy, fraction), 15 - BILINEAR_BITS));
+
+        int p00[4], p01[4], p10[4], p11[4];
+        for (int i = 0; i < 4; ++i) {
+            const unsigned char *p = src.data + iy[i] * src.rowStride + ix[i] * src.pixelStride;
+            const long right = ix[i] < wm1 ? src.pixelStride : 0, down = iy[i] < hm1 ? src.rowStride : 0;
+            p00[i] = loadPixel(p);
+            p01[i] = loadPixel(p + right);
+            p10[i] = loadPixel(p + down);
+            p11[i] = loadPixel(p + down + right);
+        }
+        const __m128i
+        q00 = _mm_setr_epi32(p00[0], p00[1], p00[2], p00[3]),
+        q01 = _mm_setr_epi32(p01[0], p01[1], p01[2], p01[3]),
+        q10 = _mm_setr_epi32(p10[0], p10[1], p10[2], p10[3]),
+        q11 = _mm_setr_epi32(p11[0], p11[1], p11[2], p11[3]);
+
+        // Pixels 0, 1 in low and 2, 3 in high 16-bit lanes.
+        const __m128i
+        low = interpolate(_mm_unpacklo_epi8(q00, zeroBytes), _mm_unpacklo_epi8(q01, zeroBytes),
+                          _mm_unpacklo_epi8(q10, zeroBytes), _mm_unpacklo_epi8(q11, zeroBytes),
+                          spread(wx[0], wx[1]), spread(wy[0], wy[1])),
+        high = interpolate(_mm_unpackhi_epi8(q00, zeroBytes), _mm_unpackhi_epi8(q01, zeroBytes),
+                           _mm_unpackhi_epi8(q10, zeroBytes), _mm_unpackhi_epi8(q11, zeroBytes),
+                           spread(wx[2], wx[3]), spread(wy[2], wy[3])),
+        result = _mm_packus_epi16(low, high);
+
+        if (channels == 4) {
+            _mm_storeu_si128((__m128i *) out, result);
+            out += 16;
+        } else {
+            _mm_storeu_si128((__m128i *) packed, result);
+            for (int i = 0; i < 4; ++i, out += channels) {
+                memcpy(out, packed + i * 4, (size_t) channels);
+            }
+        }
+    }
+
+    for (; x < count; ++x, out += channels) {
+        bilinearPixel(src, out, sx + x * stepX, sy + x * stepY);
+    }
+}
@@ -2,20 +2,11 @@
 // Created by Oleksii Shliama on 3/13/16.
 //
 
-#include <stdio.h>
 #include <jni.h>
-#include <vector>
 #include <android/log.h>
-#include "com_yalantis_ucrop_task_BitmapCropTask.h"
-
-using namespace std;
-
-#define cimg_display 0
-#define cimg_use_jpeg
-#define cimg_use_png
-#define cimg_use_openmp
-
-#include "CImg.h"
+#include <android/bitmap.h>
+#include "com_yalantis_ucrop_task_NativeCropEngine.h"
+#include "crop.h"
 
 using namespace cimg_library;
 
@@ -23,94 +14,330 @@ using namespace cimg_library;
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
-#define SAVE_FORMAT_JPEG 0
-#define SAVE_FORMAT_PNG  1
+/**
+ * Link to the Java task running the crop: BitmapCropTask.isCancelled() is polled and rendered rows
+ * are reported to BitmapCropTask.onCropProgress(int, int). Both are called on the thread that
+ * entered native code only, worker and encoder threads never touch JNI. Does nothing without a task.
+ */
+class JavaCropControl : public CropControl {
+public:
+    JavaCropControl(JNIEnv *env, jobject task) : env(env), task(task), isCancelledMethod(0), progressMethod(0) {
+        if (task) {
+            jclass type = env->GetObjectClass(task);
+            isCancelledMethod = env->GetMethodID(type, "isCancelled", "()Z");
+            progressMethod = env->GetMethodID(type, "onCropProgress", "(II)V");
+            env->DeleteLocalRef(type);
+            if (!isCancelledMethod || !progressMethod) {
+                LOGE("Crop task can not be cancelled");
+                env->ExceptionClear();
+                this->task = 0;
+            }
+        }
+    }
+
+    /**
+     * Throws CropCancelled if the task was cancelled, or if the Java side threw an exception
+     * (it stays pending and is what Java gets).
+     */
+    void check() const {
+        if (task && (env->CallBooleanMethod(task, isCancelledMethod) || env->ExceptionCheck())) {
+            throw CropCancelled();
+        }
+    }
+
+    void progress(int done, int total) const {
+        if (task) {
+            env->CallVoidMethod(task, progressMethod, done, total);
+            if (env->ExceptionCheck()) {
+                throw CropCancelled();
+            }
+        }
+    }
+
+private:
+    JNIEnv *env;
+    jobject task;
+    jmethodID isCancelledMethod, progressMethod;
+};
+
+/**
+ * Describes whole capacity of a direct ByteBuffer as the source. Throws IllegalArgumentException
+ * to Java for other buffers.
+ */
+static bool directBufferInput(JNIEnv *env, jobject buffer, InputSource &input) {
+    void *data = env->GetDirectBufferAddress(buffer);
+    const jlong size = env->GetDirectBufferCapacity(buffer);
+    if (!data || size < 0) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "Source must be a direct ByteBuffer");
+        return false;
+    }
+    const InputSource direct = {0, -1, data, (size_t) size};
+    input = direct;
+    return true;
+}
+
+/**
+ * Throws CancellationException to Java, unless the task has thrown an exception of its own.
+ */
+static void throwCancelled(JNIEnv *env) {
+    if (!env->ExceptionCheck()) {
+        env->ThrowNew(env->FindClass("java/util/concurrent/CancellationException"), "Crop was cancelled");
+    }
+}
+
+/**
+ * Points the options at the Exif segment of JPEG results, when there is one. Bytes stay pinned
+ * until releaseExif(), they are only read.
+ */
+static jbyte *getExif(JNIEnv *env, jbyteArray exif, CropOptions &options) {
+    jbyte *bytes = exif ? env->GetByteArrayElements(exif, 0) : 0;
+    options.exif = (const unsigned char *) bytes;
+    options.exifSize = bytes ? (size_t) env->GetArrayLength(exif) : 0;
+    return bytes;
+}
 
-JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_BitmapCropTask_cropCImg
-    (JNIEnv *env, jobject obj,
+static void releaseExif(JNIEnv *env, jbyteArray exif, jbyte *bytes) {
+    if (bytes) {
+        env->ReleaseByteArrayElements(exif, bytes, JNI_ABORT);
+    }
+}
+
+/**
+ * Crops the source image and saves the result, common part of the entry points that read encoded images.
+ * Failures are thrown to Java as IOException or OutOfMemoryError, cancellation of the task
+ * as CancellationException (partially written result is removed).
+ */
+static jboolean crop(JNIEnv *env, const InputSource &input, const OutputTarget &output,
+                     jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+                     jint format, jint quality, jbyteArray exif,
+                     jint exifDegrees, jint exifTranslation, jlong memoryBudget, jint decodeDownscale,
+                     jint threadCount, jboolean snapToJpegBlocks, jintArray cropOffset, jobject task) {
+    const JavaCropControl control(env, task);
+    const CropGeometry geometry = {left, top, width, height, angle, resizeScale, exifDegrees, exifTranslation};
+    CropOptions options = {format, quality, memoryBudget, decodeDownscale, threadCount, (bool) snapToJpegBlocks, 0, 0};
+    jbyte *exifBytes = getExif(env, exif, options);
+    jboolean cropped = false;
+    try {
+        int shiftX, shiftY;
+        if (cropImage(input, output, geometry, options, control, shiftX, shiftY) && (shiftX || shiftY)) {
+            const jint offset[] = {left + shiftX, top + shiftY};
+            env->SetIntArrayRegion(cropOffset, 0, 2, offset);
+        }
+        cropped = true;
+
+    } catch (const CImgInstanceException &e) {
+        env->ThrowNew(env->FindClass("java/lang/OutOfMemoryError"), e.what());
+    } catch (const CImgIOException &e) {
+        env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+    } catch (const CropCancelled &) {
+        throwCancelled(env);
+    }
+    releaseExif(env, exif, exifBytes);
+    return cropped;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImg
+    (JNIEnv *env, jobject /* obj */,
     jstring pathSource, jstring pathResult,
     jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
-    jint format, jint quality,
-    jint exifDegrees, jint exifTranslation) {
+    jint format, jint quality, jbyteArray exif,
+    jint exifDegrees, jint exifTranslation, jlong memoryBudget, jint decodeDownscale, jint threadCount,
+    jboolean snapToJpegBlocks, jintArray cropOffset, jobject task) {
 
     LOGD("Crop image with CImg");
 
     const char *file_source_path = env->GetStringUTFChars(pathSource, 0);
     const char *file_result_path = env->GetStringUTFChars(pathResult, 0);
 
-    try {
-        CImg<unsigned char> img(file_source_path);
-        const int
-        x0 = left, y0 = top,
-        x1 = left + width - 1, y1 = top + height - 1;
-
-        /*
-        LOGD("left %d\ntop: %d", left, top);
-        LOGD("width %d\nheight: %d", width, height);
-        LOGD("angle %f\nresizeScale: %f", angle, resizeScale);
-        LOGD("image size pre: %d x %d", img.width(), img.height());
-        LOGD("exifDegrees: %d \nexifTranslation: %d", exifDegrees, exifTranslation);
-        */
-
-        // Handle exif. However it is slow, maybe calculate warp field according to exif rotation/translation.
-        if (exifDegrees != 0) {
-            img.rotate(exifDegrees);
-        }
-        if (exifTranslation != 1) {
-            img.mirror("x");
-        }
+    const InputSource input = {file_source_path, -1, 0, 0};
+    const OutputTarget output = {file_result_path, -1};
+    const jboolean cropped = crop(env, input, output, left, top, width, height, angle, resizeScale,
+                                  format, quality, exif, exifDegrees, exifTranslation, memoryBudget, decodeDownscale, threadCount,
+                                  snapToJpegBlocks, cropOffset, task);
 
-        const int
-            size_x = img.width() * resizeScale, size_y = img.height() * resizeScale,
-            size_z = -100, size_c = -100, interpolation_type = 1;
+    env->ReleaseStringUTFChars(pathSource, file_source_path);
+    env->ReleaseStringUTFChars(pathResult, file_result_path);
 
-        const unsigned int boundary_conditions = 0;
-        const float
-        centering_x = 0, centering_y = 0, centering_z = 0, centering_c = 0;
-        if (resizeScale != 1) {
-            img.resize(size_x, size_y, size_z, size_c, interpolation_type, boundary_conditions, centering_x, centering_y, centering_z, centering_c);
-        }
+    return cropped;
+}
 
-        // Create warp field.
-        CImg<float> warp(cimg::abs(x1 - x0 + 1), cimg::abs(y1 - y0 + 1), 1, 2);
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImgFd
+    (JNIEnv *env, jobject /* obj */,
+    jint fdSource, jint fdResult,
+    jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+    jint format, jint quality, jbyteArray exif,
+    jint exifDegrees, jint exifTranslation, jlong memoryBudget, jint decodeDownscale, jint threadCount,
+    jboolean snapToJpegBlocks, jintArray cropOffset, jobject task) {
 
-        const float
-        rad = angle * cimg::PI/180,
-        ca = std::cos(rad), sa = std::sin(rad),
-        ux = cimg::abs(img.width() * ca), uy = cimg::abs(img.width() * sa),
-        vx = cimg::abs(img.height() * sa), vy = cimg::abs(img.height() * ca),
-        w2 = 0.5f * img.width(), h2 = 0.5f * img.height(),
-        dw2 = 0.5f * (ux + vx), dh2 = 0.5f * (uy + vy);
+    LOGD("Crop image from file descriptor %d to %d", fdSource, fdResult);
 
-        cimg_forXY(warp, x, y) {
-            const float
-            u = x + x0 - dw2, v = y + y0 - dh2;
+    const InputSource input = {0, fdSource, 0, 0};
+    const OutputTarget output = {0, fdResult};
+    return crop(env, input, output, left, top, width, height, angle, resizeScale,
+                format, quality, exif, exifDegrees, exifTranslation, memoryBudget, decodeDownscale, threadCount,
+                snapToJpegBlocks, cropOffset, task);
+}
 
-            warp(x, y, 0) = w2 + u*ca + v*sa;
-            warp(x, y, 1) = h2 - u*sa + v*ca;
-        }
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImgBuffer
+    (JNIEnv *env, jobject /* obj */,
+    jobject bufferSource, jint fdResult,
+    jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+    jint format, jint quality, jbyteArray exif,
+    jint exifDegrees, jint exifTranslation, jlong memoryBudget, jint decodeDownscale, jint threadCount,
+    jboolean snapToJpegBlocks, jintArray cropOffset, jobject task) {
 
-        img = img.get_warp(warp, 0, 1, 2);
+    InputSource input;
+    if (!directBufferInput(env, bufferSource, input)) {
+        return false;
+    }
+    LOGD("Crop image from buffer of %u bytes to file descriptor %d", (unsigned int) input.size, fdResult);
 
-        if (format == SAVE_FORMAT_JPEG) {
-            img.save_jpeg(file_result_path, quality);
-        } else if (format == SAVE_FORMAT_PNG) {
-            img.save_png(file_result_path, 0);
-        } else {
-            img.save(file_result_path);
-        }
+    const OutputTarget output = {0, fdResult};
+    return crop(env, input, output, left, top, width, height, angle, resizeScale,
+                format, quality, exif, exifDegrees, exifTranslation, memoryBudget, decodeDownscale, threadCount,
+                snapToJpegBlocks, cropOffset, task);
+}
 
-        ~img;
-        env->ReleaseStringUTFChars(pathSource, file_source_path);
-        env->ReleaseStringUTFChars(pathResult, file_result_path);
+/**
+ * Locks pixels of an ARGB_8888 Bitmap. Throws IllegalArgumentException to Java for other Bitmaps,
+ * or if its size differs from the given one (when width is not 0).
+ *
+ * @return - false if an exception was thrown
+ */
+static bool lockBitmap(JNIEnv *env, jobject bitmap, int width, int height, RgbaPixels &pixels) {
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS
+        || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888
+        || (width && ((int) info.width != width || (int) info.height != height))) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+                      width ? "Bitmap must be ARGB_8888 of the crop size" : "Bitmap must be ARGB_8888");
+        return false;
+    }
+    void *data;
+    if (AndroidBitmap_lockPixels(env, bitmap, &data) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "Failed to lock Bitmap pixels");
+        return false;
+    }
+    const RgbaPixels locked = {(unsigned char *) data, (int) info.width, (int) info.height, (long) info.stride};
+    pixels = locked;
+    return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImgToBitmap
+    (JNIEnv *env, jobject /* obj */,
+    jint fdSource, jobject bufferSource, jobject bitmapResult,
+    jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+    jint exifDegrees, jint exifTranslation, jlong memoryBudget, jint decodeDownscale, jint threadCount,
+    jobject task) {
+
+    InputSource input = {0, fdSource, 0, 0};
+    if (bufferSource && !directBufferInput(env, bufferSource, input)) {
+        return false;
+    }
+
+    RgbaPixels result;
+    if (!lockBitmap(env, bitmapResult, cimg::abs(width), cimg::abs(height), result)) {
+        return false;
+    }
+    LOGD("Crop image into Bitmap %d x %d", result.width, result.height);
+
+    const JavaCropControl control(env, task);
+    const CropGeometry geometry = {left, top, width, height, angle, resizeScale, exifDegrees, exifTranslation};
+    const CropOptions options = {0, 0, memoryBudget, decodeDownscale, threadCount, false, 0, 0};
+    jboolean cropped = false;
+    try {
+        cropImageToPixels(input, result, geometry, options, control);
+        cropped = true;
+
+    } catch (const CImgInstanceException &e) {
+        env->ThrowNew(env->FindClass("java/lang/OutOfMemoryError"), e.what());
+    } catch (const CImgIOException &e) {
+        env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+    } catch (const CropCancelled &) {
+        throwCancelled(env);
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmapResult);
+    return cropped;
+}
+
+/**
+ * Warps pixels of a decoded Bitmap into the result Bitmap if it is not null, otherwise into the output
+ * path if it is not null, otherwise into the output file descriptor.
+ */
+static jboolean cropBitmap(JNIEnv *env, jobject bitmapSource, const SourcePlacement &placement, bool hasAlpha,
+                           jstring pathResult, jint fdResult, jobject bitmapResult, const CropGeometry &geometry,
+                           jint format, jint quality, jbyteArray exif, jlong memoryBudget, jint threadCount,
+                           jobject task) {
+    RgbaPixels source, result;
+    if (!lockBitmap(env, bitmapSource, 0, 0, source)) {
+        return false;
+    }
+    if (bitmapResult && !lockBitmap(env, bitmapResult, cimg::abs(geometry.width), cimg::abs(geometry.height), result)) {
+        AndroidBitmap_unlockPixels(env, bitmapSource);
+        return false;
+    }
+    const char *file_result_path = pathResult ? env->GetStringUTFChars(pathResult, 0) : 0;
+    LOGD("Crop image from Bitmap %d x %d", source.width, source.height);
 
-        return true;
+    const JavaCropControl control(env, task);
+    CropOptions options = {format, quality, memoryBudget, 0, threadCount, false, 0, 0};
+    jbyte *exifBytes = getExif(env, exif, options);
+    const OutputTarget output = {file_result_path, file_result_path ? -1 : fdResult};
+    jboolean cropped = false;
+    try {
+        cropPixels(source, hasAlpha, placement, output, bitmapResult ? &result : 0, geometry, options, control);
+        cropped = true;
 
-    } catch (CImgInstanceException e) {
+    } catch (const CImgInstanceException &e) {
         env->ThrowNew(env->FindClass("java/lang/OutOfMemoryError"), e.what());
-    } catch (CImgIOException e) {
+    } catch (const CImgIOException &e) {
         env->ThrowNew(env->FindClass("java/io/IOException"), e.what());
+    } catch (const CropCancelled &) {
+        throwCancelled(env);
+    }
+
+    releaseExif(env, exif, exifBytes);
+    if (file_result_path) {
+        env->ReleaseStringUTFChars(pathResult, file_result_path);
+    }
+    if (bitmapResult) {
+        AndroidBitmap_unlockPixels(env, bitmapResult);
     }
+    AndroidBitmap_unlockPixels(env, bitmapSource);
+    return cropped;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImgFromBitmap
+    (JNIEnv *env, jobject /* obj */,
+    jobject bitmapSource, jstring pathResult, jint fdResult, jobject bitmapResult,
+    jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+    jint exifDegrees, jint exifTranslation,
+    jint format, jint quality, jbyteArray exif, jlong memoryBudget, jint threadCount, jobject task) {
+
+    // Preview is already decoded, Exif orientation is applied by the crop transform unless it is oriented
+    // (0 and 1 then). Its color channels are warped in place, caller makes sure it is opaque,
+    // so premultiplied alpha does not matter.
+    const SourcePlacement placement = {0, 0, 0, 0, 0, 0};
+    const CropGeometry geometry = {left, top, width, height, angle, resizeScale, exifDegrees, exifTranslation};
+    return cropBitmap(env, bitmapSource, placement, false, pathResult, fdResult, bitmapResult, geometry,
+                      format, quality, exif, memoryBudget, threadCount, task);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_yalantis_ucrop_task_NativeCropEngine_cropCImgFromRegion
+    (JNIEnv *env, jobject /* obj */,
+    jobject bitmapRegion, jboolean hasAlpha, jint sourceWidth, jint sourceHeight,
+    jint regionLeft, jint regionTop, jint regionWidth, jint regionHeight,
+    jstring pathResult, jint fdResult, jobject bitmapResult,
+    jint left, jint top, jint width, jint height, jfloat angle, jfloat resizeScale,
+    jint exifDegrees, jint exifTranslation,
+    jint format, jint quality, jbyteArray exif, jlong memoryBudget, jint threadCount, jobject task) {
+
+    LOGD("Crop region %d, %d, %d x %d of %d x %d decoded by the platform", regionLeft, regionTop,
+         regionWidth, regionHeight, sourceWidth, sourceHeight);
 
-    return false;
-}
\ No newline at end of file
+    const SourcePlacement placement = {sourceWidth, sourceHeight, regionLeft, regionTop, regionWidth, regionHeight};
+    const CropGeometry geometry = {left, top, width, height, angle, resizeScale, exifDegrees, exifTranslation};
+    return cropBitmap(env, bitmapRegion, placement, hasAlpha, pathResult, fdResult, bitmapResult, geometry,
+                      format, quality, exif, memoryBudget, threadCount, task);
+}
@@ -0,0 +1,86 @@
+package com.yalantis.ucrop.view;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import com.yalantis.ucrop.callback.BitmapCropCallback;
+import com.yalantis.ucrop.callback.BitmapResultCallback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Crop asked for while the preview is shown waits for the full image, it has to fail when the image can't be loaded.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CropImageViewTest {
+
+    private CropImageView mView;
+    private TransformImageView.ProgressiveImageLoadCallback mLoadCallback;
+
+    @Before
+    public void setUp() {
+        mView = new CropImageView(RuntimeEnvironment.getApplication());
+        mLoadCallback = mView.new ProgressiveImageLoadCallback();
+        mLoadCallback.onPreviewLoaded(Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888), 64, 64);
+    }
+
+    @Test
+    public void pendingCropFailsWhenImageFailsToLoad() {
+        final Throwable[] failure = new Throwable[1];
+        assertTrue(mView.isPreviewShown());
+        mView.cropAndSaveImage(Bitmap.CompressFormat.JPEG, 90, new BitmapCropCallback() {
+            @Override
+            public void onBitmapCropped(@NonNull Uri resultUri, int offsetX, int offsetY, int imageWidth, int imageHeight) {
+                fail("Crop can't succeed without the full image");
+            }
+
+            @Override
+            public void onCropFailure(@NonNull Throwable t) {
+                failure[0] = t;
+            }
+        });
+
+        Exception loadError = new IOException("Broken image");
+        mLoadCallback.onFailure(loadError);
+
+        assertFalse(mView.isPreviewShown());
+        assertSame(loadError, failure[0]);
+        assertFalse(mView.cancelCrop());
+    }
+
+    @Test
+    public void pendingCropToBitmapFailsWhenImageFailsToLoad() {
+        final Throwable[] failure = new Throwable[1];
+        mView.cropToBitmap(null, new BitmapResultCallback() {
+            @Override
+            public void onBitmapCropped(@NonNull Bitmap result, int offsetX, int offsetY) {
+                fail("Crop can't succeed without the full image");
+            }
+
+            @Override
+            public void onCropFailure(@NonNull Throwable t) {
+                failure[0] = t;
+            }
+        });
+
+        Exception loadError = new IOException("Broken image");
+        mLoadCallback.onFailure(loadError);
+
+        assertFalse(mView.isPreviewShown());
+        assertSame(loadError, failure[0]);
+    }
+
+}